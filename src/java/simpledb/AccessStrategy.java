@@ -0,0 +1,98 @@
+package simpledb;
+
+/**
+ * AccessStrategy is a hint passed to {@link BufferPool#getPage} that tells
+ * the buffer pool how the caller is going to use the pages it asks for.
+ * <p>
+ * {@link #NORMAL} pages compete for the shared pool under its eviction
+ * policy. A bulk-read strategy owns a small private ring of frames instead:
+ * pages the scan reads from disk are cached only in the ring, and once the
+ * ring is full each new page recycles the frame of the oldest one. A large
+ * sequential scan therefore cannot push the hot pages of other queries (for
+ * instance B+ tree internal pages) out of the pool. Pages that are already
+ * cached in the shared pool are used as they are.
+ * <p>
+ * A ring is private to one scan and is reused when the scan is rewound.
+ */
+public class AccessStrategy {
+
+    /**
+     * Maximum number of frames in the ring of a bulk-read strategy.
+     */
+    public static final int BULK_READ_RING_SIZE = 16;
+
+    /**
+     * The default strategy: pages are cached in the shared pool.
+     */
+    public static final AccessStrategy NORMAL = new AccessStrategy(0);
+
+    private final PageId[] ring;
+    private int next = 0;
+
+    private AccessStrategy(int ringSize) {
+        this.ring = new PageId[ringSize];
+    }
+
+    /**
+     * @return a new strategy with a private ring for one bulk sequential read
+     */
+    public static AccessStrategy bulkRead() {
+        return new AccessStrategy(BULK_READ_RING_SIZE);
+    }
+
+    /**
+     * Chooses the strategy for a sequential scan over a file of the given
+     * size. Only scans that could not be cached by the shared pool anyway
+     * use a ring; smaller tables (e.g. the inner table of a nested loop join
+     * that is rewound over and over) are still worth caching. The ring takes
+     * at most a quarter of the pool's size, so tiny pools get no ring.
+     *
+     * @param numPages the number of pages the scan will read
+     */
+    public static AccessStrategy forScan(int numPages) {
+        int poolPages = Database.getBufferPool().getNumPages();
+        int ringSize = Math.min(BULK_READ_RING_SIZE, poolPages / 4);
+        if (numPages > poolPages && ringSize >= 2) {
+            return new AccessStrategy(ringSize);
+        }
+        return NORMAL;
+    }
+
+    /**
+     * @return true if pages read with this strategy go to a private ring
+     */
+    public boolean usesRing() {
+        return ring.length > 0;
+    }
+
+    /**
+     * @return the number of frames in the ring of this strategy
+     */
+    public int getRingSize() {
+        return ring.length;
+    }
+
+    /**
+     * Puts pid into the next frame of the ring.
+     *
+     * @return the page id whose frame was recycled, or null if it was free
+     */
+    synchronized PageId add(PageId pid) {
+        PageId recycled = ring[next];
+        ring[next] = pid;
+        next = (next + 1) % ring.length;
+        return recycled;
+    }
+
+    /**
+     * Frees the frame of pid, e.g. because the page moved to the shared pool.
+     */
+    synchronized void remove(PageId pid) {
+        for (int i = 0; i < ring.length; i++) {
+            if (pid.equals(ring[i])) {
+                ring[i] = null;
+                return;
+            }
+        }
+    }
+}
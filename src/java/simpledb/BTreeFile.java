@@ -3,10 +3,15 @@ package simpledb;
 import simpledb.Predicate.Op;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BTreeFile is an implementation of a DbFile that stores a B+ tree.
@@ -14,6 +19,12 @@ import java.util.NoSuchElementException;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Transactions only lock the leaf pages they read or write and the pages they
+ * change.  Searches descend from the root pointer page with short-term page
+ * latches instead (see BufferPool#latchPage), and changes to the structure of
+ * the tree, i.e. page splits, merges and redistributions, are made one at a
+ * time under a latch of the file, see changeStructure.
  *
  * @author Becca Taft
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
@@ -27,6 +38,10 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private int keyField;
+    private final DbFileChannel channel;
+    private volatile boolean memoryMapped;
+    // held while the structure of the tree changes
+    private final ReentrantLock structureLatch = new ReentrantLock();
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -41,6 +56,7 @@ public class BTreeFile implements DbFile {
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.channel = new DbFileChannel(f);
     }
 
     /**
@@ -74,6 +90,24 @@ public class BTreeFile implements DbFile {
         return td;
     }
 
+    /**
+     * Turns the memory-mapped read path on or off. When on, leaf pages are
+     * parsed straight out of a read-only mapping of the file instead of
+     * being copied into a fresh byte array; the small upper levels of the
+     * tree are read as usual. Writes are unaffected: dirty pages still reach
+     * the file through the BufferPool and writePage.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * @return true if leaf pages are read through a memory mapping of the file
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
     /**
      * Read a page from the file on disk. This should not be called directly
      * but should be called from the BufferPool via getPage()
@@ -84,13 +118,11 @@ public class BTreeFile implements DbFile {
     @Override
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
-        BufferedInputStream bis = null;
 
         try {
-            bis = new BufferedInputStream(new FileInputStream(f));
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+                int retval = channel.read(0, pageBuf);
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -102,13 +134,15 @@ public class BTreeFile implements DbFile {
                 BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
                 return p;
             } else {
-                byte pageBuf[] = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
+                if (memoryMapped && id.pgcateg() == BTreePageId.LEAF) {
+                    ByteBuffer mapped = channel.map(pageOffset(id.getPageNumber()), BufferPool.getPageSize());
+                    if (mapped != null) {
+                        Debug.log(1, "BTreeFile.readPage: mapped page %d", id.getPageNumber());
+                        return new BTreeLeafPage(id, mapped, keyField);
+                    }
                 }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+                byte pageBuf[] = new byte[BufferPool.getPageSize()];
+                int retval = channel.read(pageOffset(id.getPageNumber()), pageBuf);
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -117,28 +151,27 @@ public class BTreeFile implements DbFile {
                             + BufferPool.getPageSize() + " bytes from BTreeFile");
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-                    return p;
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-                    return p;
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-                    return p;
-                }
+                return pageFromData(id, pageBuf);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            // Close the file on success or error
-            try {
-                if (bis != null) {
-                    bis.close();
-                }
-            } catch (IOException ioe) {
-                // Ignore failures closing the file
-            }
+        }
+    }
+
+    /**
+     * Constructs the page with the given id from its data, e.g. as read from
+     * disk or as returned by getPageData() of another page
+     */
+    private Page pageFromData(BTreePageId id, byte[] data) throws IOException {
+        switch (id.pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return new BTreeRootPtrPage(id, data);
+            case BTreePageId.INTERNAL:
+                return new BTreeInternalPage(id, data, keyField);
+            case BTreePageId.LEAF:
+                return new BTreeLeafPage(id, data, keyField);
+            default: // BTreePageId.HEADER
+                return new BTreeHeaderPage(id, data);
         }
     }
 
@@ -153,17 +186,26 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
+            channel.write(0, data);
         } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            channel.write(pageOffset(id.getPageNumber()), data);
         }
     }
 
+    /**
+     * Returns the offset in the file of the (non root pointer) page with the given page number.
+     * Pages are numbered from 1, right after the root pointer page.
+     */
+    private long pageOffset(int pageNo) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
     /**
      * Returns the number of pages in this BTreeFile.
      */
@@ -181,9 +223,9 @@ public class BTreeFile implements DbFile {
 
     /**
      * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-     * the left-most page possibly containing the key field f. It locks all internal
-     * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-     * leaf node with permission perm.
+     * the left-most page possibly containing the key field f. It reads the internal
+     * nodes along the path to the leaf node without locking them, which is only safe
+     * while the structure latch is held, and locks the leaf node with permission perm.
      * <p>
      * If f is null, it finds the left-most leaf page -- used for the iterator
      *
@@ -199,84 +241,115 @@ public class BTreeFile implements DbFile {
             return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
         } else if (pid.pgcateg() == BTreePageId.INTERNAL) {
             BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-            Iterator<BTreeEntry> it = internalPage.iterator();
-            BTreeEntry entry;
-            if (it.hasNext()) {
-                entry = it.next();
-            } else {
+            BTreePageId child = internalPage.findChildId(f);
+            if (child == null) {
                 throw new DbException("empty page");
             }
-            if (f == null) {
-                return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-            }
-            while (true) {
-                if (entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-                    return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-                }
-                if (it.hasNext()) {
-                    entry = it.next();
-                } else {
-                    break;
-                }
-            }
-            return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+            return findLeafPage(tid, dirtypages, child, perm, f);
         }
         // should not run here
         return null;
     }
 
     /**
-     * Convenience method to find a leaf page when there is no dirtypages HashMap.
-     * Used by the BTreeFile iterator.
+     * Find and lock the left-most leaf page possibly containing the key field f,
+     * without holding the structure latch.  Used by the BTreeFile iterators and
+     * by inserts that do not split a page.
      *
      * @param tid  - the transaction id
-     * @param pid  - the current page being searched
      * @param perm - the permissions with which to lock the leaf page
-     * @param f    - the field to search for
-     * @return the left-most leaf page possibly containing the key field f
-     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+     * @param f    - the field to search for, or null for the left-most leaf page
+     * @return the leaf page, or null if the tree has no root page yet
+     * @see #descend(TransactionId, Permissions, Field, boolean)
      */
-    BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-                               Field f)
+    BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
             throws DbException, TransactionAbortedException {
-        return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+        return descend(tid, perm, f, false);
     }
 
-    private BTreeLeafPage reversedFindLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm, Field f) throws DbException, TransactionAbortedException {
-        if (pid.pgcateg() == BTreePageId.LEAF) {
-            return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-        } else if (pid.pgcateg() == BTreePageId.INTERNAL) {
-            BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-            Iterator<BTreeEntry> it = internalPage.reverseIterator();
-            BTreeEntry entry;
-            if (it.hasNext()) {
-                entry = it.next();
-            } else {
-                throw new DbException("empty page");
-            }
-            if (f == null) {
-                return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
-            }
-            while (true) {
-                if (entry.getKey().compare(Op.LESS_THAN_OR_EQ, f)) {
-                    return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+    /**
+     * Like findLeafPage(TransactionId, Permissions, Field), but finds the
+     * right-most leaf page possibly containing f, or the right-most leaf page
+     * if f is null.  Used by the reversed BTreeFile iterators.
+     */
+    BTreeLeafPage reversedFindLeafPage(TransactionId tid, Permissions perm, Field f)
+            throws DbException, TransactionAbortedException {
+        return descend(tid, perm, f, true);
+    }
+
+    /**
+     * Descend from the root pointer page to a leaf page by latch crabbing: each
+     * internal page on the way is latched for reading before the latch on its
+     * parent is released, so a structure change, which latches the pages it
+     * changes for writing, is never seen half done.  The leaf page is locked with
+     * permission perm while its parent is still latched.  If that would mean
+     * waiting, the latch is released first, and the descent starts over once the
+     * lock is granted.  So does a descent through a page that an abort has rolled
+     * back meanwhile.
+     *
+     * @param tid  - the transaction id
+     * @param perm - the permissions with which to lock the leaf page
+     * @param f    - the field to search for
+     * @param last - whether to find the right-most instead of the left-most leaf
+     *             page possibly containing f
+     * @return the leaf page, or null if the tree has no root page yet
+     */
+    private BTreeLeafPage descend(TransactionId tid, Permissions perm, Field f, boolean last)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        createIfEmpty();
+        // a leaf page locked by an earlier attempt, and whether it was locked before
+        BTreePageId tried = null;
+        boolean triedWasLocked = false;
+        while (true) {
+            List<Page> read = new ArrayList<Page>();
+            BTreePageId latched = BTreeRootPtrPage.getId(tableid);
+            BTreePageId pid;
+            boolean wasLocked = false;
+            BTreeLeafPage leaf = null;
+            bp.latchPage(latched, Permissions.READ_ONLY);
+            try {
+                BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getLatchedPage(latched);
+                read.add(rootPtr);
+                pid = rootPtr.getRootId();
+                while (pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+                    bp.latchPage(pid, Permissions.READ_ONLY);
+                    bp.unlatchPage(latched, Permissions.READ_ONLY);
+                    latched = pid;
+                    BTreeInternalPage page = (BTreeInternalPage) bp.getLatchedPage(pid);
+                    read.add(page);
+                    pid = last ? page.findLastChildId(f) : page.findChildId(f);
+                    if (pid == null) {
+                        throw new DbException("empty page");
+                    }
                 }
-                if (it.hasNext()) {
-                    entry = it.next();
-                } else {
-                    break;
+                if (pid != null) {
+                    wasLocked = bp.holdsLock(tid, pid);
+                    leaf = (BTreeLeafPage) bp.tryGetPage(tid, pid, perm);
                 }
+            } finally {
+                bp.unlatchPage(latched, Permissions.READ_ONLY);
             }
-            return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-        }
-        // should not run here
-        return null;
-    }
 
-    BTreeLeafPage reversedFindLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-                                       Field f)
-            throws DbException, TransactionAbortedException {
-        return reversedFindLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+            // keep no lock on a leaf page that was locked only to find another one
+            if (tried != null && !tried.equals(pid) && !triedWasLocked) {
+                bp.releasePage(tid, tried);
+            }
+            if (pid == null) {
+                return null;
+            }
+            if (leaf != null && bp.isCurrent(read)) {
+                return leaf;
+            }
+            if (!pid.equals(tried)) {
+                tried = pid;
+                triedWasLocked = wasLocked;
+            }
+            if (leaf == null) {
+                // wait for the lock with no latch held
+                bp.getPage(tid, pid, perm);
+            }
+        }
     }
 
     /**
@@ -515,10 +588,17 @@ public class BTreeFile implements DbFile {
      * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
      * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
      * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
-     * presumably they will soon be dirtied by this transaction.
+     * presumably they will soon be dirtied by this transaction.  The real run of a structure change
+     * marks them dirty right away.
      * <p>
      * This method is needed to ensure that page updates are not lost if the same pages are
      * accessed multiple times.
+     * <p>
+     * Pages requested with read-only permission are not locked.  They are only read by
+     * structure changes, under the structure latch, which keeps them from changing, except for
+     * an abort rolling back a page another transaction dirtied.  In the dry run of a structure
+     * change, pages requested with read-write permission are locked only if that can be done
+     * without waiting, and copied.
      *
      * @param tid        - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -534,18 +614,177 @@ public class BTreeFile implements DbFile {
             throws DbException, TransactionAbortedException {
         if (dirtypages.containsKey(pid)) {
             return dirtypages.get(pid);
+        }
+        BufferPool bp = Database.getBufferPool();
+        if (perm == Permissions.READ_ONLY) {
+            Page page = bp.getLatchedPage(pid);
+            TransactionId dirtier = page.isDirty();
+            if (isDryRun(dirtypages) && dirtier != null && !dirtier.equals(tid)) {
+                ((StructureChangePages) dirtypages).read.add(page);
+            }
+            return page;
+        }
+        Page p;
+        if (isDryRun(dirtypages)) {
+            Page page = bp.tryGetPage(tid, pid, perm);
+            if (page == null) {
+                throw new LockUnavailable(pid);
+            }
+            try {
+                p = pageFromData(pid, page.getPageData());
+            } catch (IOException e) {
+                throw new DbException("could not copy page " + pid + ": " + e.getMessage());
+            }
+            if (pid.pgcateg() == BTreePageId.ROOT_PTR || pid.pgcateg() == BTreePageId.INTERNAL) {
+                ((StructureChangePages) dirtypages).latched.add(pid);
+            }
         } else {
-            Page p = Database.getBufferPool().getPage(tid, pid, perm);
-            if (perm == Permissions.READ_WRITE) {
-                dirtypages.put(pid, p);
+            p = bp.getPage(tid, pid, perm);
+            if (dirtypages instanceof StructureChangePages) {
+                // a clean page changed in place could be evicted, and read back stale by the
+                // next dry run, before the BufferPool marks the pages this operation returns
+                p.markDirty(true, tid);
             }
-            return p;
+        }
+        dirtypages.put(pid, p);
+        return p;
+    }
+
+    /**
+     * A change to the structure of the tree, see changeStructure.
+     */
+    private interface StructureChange<T> {
+        /**
+         * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+         */
+        T apply(HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException;
+    }
+
+    /**
+     * The local cache of a structure change, which tells getPage, getEmptyPageNo and
+     * getEmptyPage whether the change is being dry run.
+     */
+    private static class StructureChangePages extends HashMap<PageId, Page> {
+        private static final long serialVersionUID = 1L;
+
+        final boolean dryRun;
+        // the root pointer and internal pages a dry run wrote, in order
+        final Set<BTreePageId> latched = new LinkedHashSet<BTreePageId>();
+        // the pages a dry run read from the buffer pool without locking them while another
+        // transaction had them dirty, so that an abort may roll them back
+        final List<Page> read = new ArrayList<Page>();
+        // the number of pages a dry run appended to the file
+        int appended = 0;
+
+        StructureChangePages(boolean dryRun) {
+            this.dryRun = dryRun;
+        }
+    }
+
+    /**
+     * Thrown by the dry run of a structure change that cannot lock a page without waiting.
+     */
+    private static class LockUnavailable extends DbException {
+        private static final long serialVersionUID = 1L;
+
+        final BTreePageId pid;
+
+        LockUnavailable(BTreePageId pid) {
+            super("lock on page " + pid + " not available");
+            this.pid = pid;
+        }
+    }
+
+    private static boolean isDryRun(HashMap<PageId, Page> dirtypages) {
+        return dirtypages instanceof StructureChangePages && ((StructureChangePages) dirtypages).dryRun;
+    }
+
+    /**
+     * Make a change to the structure of the tree under the structure latch, which keeps out
+     * other structure changes.  The change is first dry run on copies of the pages it writes,
+     * to lock those pages.  If a lock is not granted right away, the structure latch is
+     * released while waiting for it, and the dry run starts over.  Once a dry run got all its
+     * locks, the change is made for real, with the root pointer and internal pages it writes
+     * latched, so that concurrent descents never see them half changed.  Either run must
+     * only read pages with read-only permission that the structure latch keeps from changing,
+     * i.e. anything but leaf pages other transactions may write.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param change     - the change, run once dry and once for real
+     * @return the result of the real run of the change
+     */
+    private <T> T changeStructure(TransactionId tid, HashMap<PageId, Page> dirtypages, StructureChange<T> change)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        structureLatch.lock();
+        try {
+            while (true) {
+                StructureChangePages dryRun = new StructureChangePages(true);
+                try {
+                    change.apply(dryRun);
+                } catch (LockUnavailable e) {
+                    structureLatch.unlock();
+                    try {
+                        bp.getPage(tid, e.pid, Permissions.READ_WRITE);
+                    } finally {
+                        structureLatch.lock();
+                    }
+                    continue;
+                }
+                latchAll(dryRun.latched);
+                try {
+                    if (!bp.isCurrent(dryRun.read)) {
+                        // an abort may have rolled back pages the dry run read, up to the
+                        // moment the latches were taken
+                        continue;
+                    }
+                    StructureChangePages pages = new StructureChangePages(false);
+                    pages.putAll(dirtypages);
+                    T result = change.apply(pages);
+                    dirtypages.putAll(pages);
+                    return result;
+                } finally {
+                    for (BTreePageId pid : dryRun.latched) {
+                        bp.unlatchPage(pid, Permissions.READ_WRITE);
+                    }
+                }
+            }
+        } finally {
+            structureLatch.unlock();
+        }
+    }
+
+    /**
+     * Latch the given pages for writing.  Descents latch pages top-down while a structure
+     * change latches them in any order, so rather than waiting for one latch while holding
+     * others, this backs off and tries again.
+     */
+    private void latchAll(Set<BTreePageId> pids) {
+        BufferPool bp = Database.getBufferPool();
+        ArrayList<BTreePageId> held = new ArrayList<BTreePageId>();
+        while (true) {
+            for (BTreePageId pid : pids) {
+                if (!bp.tryLatchPage(pid, Permissions.READ_WRITE)) {
+                    break;
+                }
+                held.add(pid);
+            }
+            if (held.size() == pids.size()) {
+                return;
+            }
+            for (BTreePageId pid : held) {
+                bp.unlatchPage(pid, Permissions.READ_WRITE);
+            }
+            held.clear();
+            Thread.yield();
         }
     }
 
     /**
      * Insert a tuple into this BTreeFile, keeping the tuples in sorted order.
      * May cause pages to split if the page where tuple t belongs is full.
+     * Inserts into pages that have room do not take the structure latch.
      *
      * @param tid - the transaction id
      * @param t   - the tuple to insert
@@ -557,26 +796,35 @@ public class BTreeFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        Field key = t.getField(keyField);
+
+        // find and lock the left-most leaf page corresponding to the key field
+        BTreeLeafPage leafPage = findLeafPage(tid, Permissions.READ_WRITE, key);
+        if (leafPage == null || leafPage.getNumEmptySlots() == 0) {
+            // set the root pointer or split the leaf page, and find the leaf page again
+            leafPage = changeStructure(tid, dirtypages, pages -> {
+                // use the root pointer page to locate the root page
+                BTreeRootPtrPage rootPtr = getRootPtrPage(tid, pages);
+                BTreePageId rootId = rootPtr.getRootId();
+
+                if (rootId == null) { // the root has just been created, so set the root pointer to point to it
+                    rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+                    rootPtr = (BTreeRootPtrPage) getPage(tid, pages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+                    rootPtr.setRootId(rootId);
+                }
 
-        // get a read lock on the root pointer page and use it to locate the root page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId rootId = rootPtr.getRootId();
-
-        if (rootId == null) { // the root has just been created, so set the root pointer to point to it
-            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-            rootPtr.setRootId(rootId);
-        }
-
-        // find and lock the left-most leaf page corresponding to the key field,
-        // and split the leaf page if there are no more slots available
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-        if (leafPage.getNumEmptySlots() == 0) {
-            leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+                // split the leaf page if there are no more slots available
+                BTreeLeafPage page = findLeafPage(tid, pages, rootId, Permissions.READ_WRITE, key);
+                if (page.getNumEmptySlots() == 0) {
+                    page = splitLeafPage(tid, pages, page, key);
+                }
+                return page;
+            });
         }
 
         // insert the tuple into the leaf page
         leafPage.insertTuple(t);
+        dirtypages.put(leafPage.getId(), leafPage);
 
         ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
         dirtyPagesArr.addAll(dirtypages.values());
@@ -1002,7 +1250,7 @@ public class BTreeFile implements DbFile {
     /**
      * Delete a tuple from this BTreeFile.
      * May cause pages to merge or redistribute entries/tuples if the pages
-     * become less than half full.
+     * become less than half full, which is done under the structure latch.
      *
      * @param tid - the transaction id
      * @param t   - the tuple to delete
@@ -1018,13 +1266,17 @@ public class BTreeFile implements DbFile {
         BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
                 BTreePageId.LEAF);
         BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+        page.markDirty(true, tid); // before the dry run below reads it again, see getPage
         page.deleteTuple(t);
 
         // if the page is below minimum occupancy, get some tuples from its siblings
         // or merge with one of the siblings
         int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
         if (page.getNumEmptySlots() > maxEmptySlots) {
-            handleMinOccupancyPage(tid, dirtypages, page);
+            changeStructure(tid, dirtypages, pages -> {
+                handleMinOccupancyPage(tid, pages, (BTreeLeafPage) getPage(tid, pages, pageId, Permissions.READ_WRITE));
+                return null;
+            });
         }
 
         ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -1033,7 +1285,7 @@ public class BTreeFile implements DbFile {
     }
 
     /**
-     * Get a read lock on the root pointer page. Create the root pointer page and root page
+     * Get the root pointer page, without locking it. Create the root pointer page and root page
      * if necessary.
      *
      * @param tid        - the transaction id
@@ -1045,21 +1297,24 @@ public class BTreeFile implements DbFile {
      */
     BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws
             DbException, IOException, TransactionAbortedException {
-        synchronized (this) {
-            if (f.length() == 0) {
-                // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
+        createIfEmpty();
+        return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Create the root pointer page and the root page if the file is empty.
+     */
+    private synchronized void createIfEmpty() throws DbException {
+        if (f.length() == 0) {
+            try {
                 byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
                 byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                channel.write(0, emptyRootPtrData);
+                channel.write(emptyRootPtrData.length, emptyLeafData);
+            } catch (IOException e) {
+                throw new DbException("could not create " + f + ": " + e.getMessage());
             }
         }
-
-        // get a read lock on the root pointer page
-        return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
     }
 
     /**
@@ -1075,7 +1330,7 @@ public class BTreeFile implements DbFile {
      */
     protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
             throws DbException, IOException, TransactionAbortedException {
-        // get a read lock on the root pointer page and use it to locate the first header page
+        // use the root pointer page to locate the first header page
         BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
         BTreePageId headerId = rootPtr.getHeaderId();
         int emptyPageNo = 0;
@@ -1084,7 +1339,8 @@ public class BTreeFile implements DbFile {
             BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
             int headerPageCount = 0;
             // try to find a header page with an empty slot
-            while (headerPage != null && headerPage.getEmptySlot() == -1) {
+            while (headerPage != null && (headerPage.getEmptySlot() == -1
+                    || !canAllocateFrom(tid, dirtypages, headerId))) {
                 headerId = headerPage.getNextPageId();
                 if (headerId != null) {
                     headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
@@ -1106,24 +1362,43 @@ public class BTreeFile implements DbFile {
         // at this point if headerId is null, either there are no header pages
         // or there are no free slots
         if (headerId == null) {
-            synchronized (this) {
-                // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-                emptyPageNo = numPages();
+            if (isDryRun(dirtypages)) {
+                // leave the file alone and number the new page past its end
+                emptyPageNo = numPages() + ++((StructureChangePages) dirtypages).appended;
+            } else {
+                synchronized (this) {
+                    // create the new page
+                    byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+                    channel.append(emptyData);
+                    emptyPageNo = numPages();
+                }
             }
         }
 
         return emptyPageNo;
     }
 
+    /**
+     * A structure change only takes empty pages from the header pages it can lock without
+     * waiting in its dry run, so that its real run never waits for a lock while it holds
+     * latches.  Other callers take them from any header page.
+     */
+    private boolean canAllocateFrom(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId headerId) {
+        if (!(dirtypages instanceof StructureChangePages) || dirtypages.containsKey(headerId)) {
+            return true;
+        }
+        BufferPool bp = Database.getBufferPool();
+        if (((StructureChangePages) dirtypages).dryRun) {
+            return bp.tryLockPage(tid, headerId, Permissions.READ_WRITE);
+        }
+        return bp.holdsExclusiveLock(tid, headerId);
+    }
+
     /**
      * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
-     * and creates a new page if none are available.  It wipes the page on disk and in the cache and
-     * returns a clean copy locked with read-write permission
+     * and creates a new page if none are available.  It replaces the page in the cache with an
+     * empty one, locked with read-write permission and dirty, which reaches the file when the
+     * transaction commits
      *
      * @param tid        - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -1142,17 +1417,26 @@ public class BTreeFile implements DbFile {
         int emptyPageNo = getEmptyPageNo(tid, dirtypages);
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
-        // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
-
-        // make sure the page is not in the buffer pool	or in the local cache
-        Database.getBufferPool().discardPage(newPageId);
-        dirtypages.remove(newPageId);
+        if (isDryRun(dirtypages)) {
+            // lock a reused page, and make up the new page in memory
+            if (emptyPageNo <= numPages() && !Database.getBufferPool().tryLockPage(tid, newPageId, Permissions.READ_WRITE)) {
+                throw new LockUnavailable(newPageId);
+            }
+            Page p = pageFromData(newPageId, BTreePage.createEmptyPageData());
+            dirtypages.put(newPageId, p);
+            return p;
+        }
 
-        return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+        // make sure the page is not in the buffer pool, including a copy cached under
+        // the category it was last used for, and make up the empty page there instead
+        BufferPool bp = Database.getBufferPool();
+        for (int categ : new int[]{BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER}) {
+            bp.discardPage(new BTreePageId(tableid, emptyPageNo, categ));
+        }
+        Page p = pageFromData(newPageId, BTreePage.createEmptyPageData());
+        bp.newPage(tid, p);
+        dirtypages.put(newPageId, p);
+        return p;
     }
 
     /**
@@ -1269,7 +1553,21 @@ public class BTreeFile implements DbFile {
      */
     @Override
     public DbFileIterator iterator(TransactionId tid) {
-        return new BTreeFileIterator(this, tid);
+        return iterator(tid, AccessStrategy.NORMAL);
+    }
+
+    /**
+     * Get an iterator for all tuples in this B+ tree file in sorted order that
+     * fetches the leaf pages with the given access strategy. Internal pages
+     * on the way down are always fetched normally.
+     *
+     * @param tid      - the transaction id
+     * @param strategy - the access strategy for the leaf pages
+     * @return an iterator for all the tuples in this file
+     * @see AccessStrategy
+     */
+    public DbFileIterator iterator(TransactionId tid, AccessStrategy strategy) {
+        return new BTreeFileIterator(this, tid, strategy);
     }
 
     public DbFileIterator reverseIterator(TransactionId tid) {
@@ -1288,16 +1586,19 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
     TransactionId tid;
     BTreeFile f;
+    AccessStrategy strategy;
 
     /**
      * Constructor for this iterator
      *
-     * @param f   - the BTreeFile containing the tuples
-     * @param tid - the transaction id
+     * @param f        - the BTreeFile containing the tuples
+     * @param tid      - the transaction id
+     * @param strategy - the access strategy for the leaf pages
      */
-    public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+    public BTreeFileIterator(BTreeFile f, TransactionId tid, AccessStrategy strategy) {
         this.f = f;
         this.tid = tid;
+        this.strategy = strategy;
     }
 
     /**
@@ -1305,11 +1606,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      */
     @Override
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-        it = curp.iterator();
+        curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+        it = curp == null ? null : curp.iterator();
     }
 
     /**
@@ -1330,7 +1628,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
                 curp = null;
             } else {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
+                        nextp, Permissions.READ_ONLY, strategy);
                 it = curp.iterator();
                 if (!it.hasNext()) {
                     it = null;
@@ -1388,11 +1686,8 @@ class BTreeFileReversedIterator extends AbstractDbFileIterator {
      */
     @Override
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.reversedFindLeafPage(tid, root, Permissions.READ_ONLY, null);
-        it = curp.reverseIterator();
+        curp = f.reversedFindLeafPage(tid, Permissions.READ_ONLY, null);
+        it = curp == null ? null : curp.reverseIterator();
     }
 
     /**
@@ -1479,16 +1774,14 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      */
     @Override
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
                 || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+            curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+            it = curp == null ? null : curp.iterator(ipred.getField());
         } else {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+            curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+            it = curp == null ? null : curp.iterator();
         }
-        it = curp.iterator();
     }
 
     /**
@@ -1580,16 +1873,14 @@ class BTreeReversedSearchIterator extends AbstractDbFileIterator {
      */
     @Override
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
                 || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-            curp = f.reversedFindLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+            curp = f.reversedFindLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+            it = curp == null ? null : curp.reverseIterator(ipred.getField());
         } else {
-            curp = f.reversedFindLeafPage(tid, root, Permissions.READ_ONLY, null);
+            curp = f.reversedFindLeafPage(tid, Permissions.READ_ONLY, null);
+            it = curp == null ? null : curp.reverseIterator();
         }
-        it = curp.reverseIterator();
     }
 
     /**
@@ -601,6 +601,79 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Binary search for the first entry on this page whose key is greater
+	 * than the given key, or greater than or equal to it if inclusive.
+	 * Used slots hold their entries in key order, possibly with empty slots
+	 * in between; only the keys of used slots are compared.
+	 * @param key - the key to search for
+	 * @param inclusive - whether an entry with an equal key qualifies
+	 * @return the slot of the entry, or getMaxEntries() + 1 if there is none
+	 */
+	public int findSlot(Field key, boolean inclusive) {
+		Op before = inclusive ? Op.LESS_THAN : Op.LESS_THAN_OR_EQ;
+		int lo = 1;
+		int hi = numSlots;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int slot = nextUsedSlot(mid, hi);
+			if (slot < hi && keys[slot].compare(before, key))
+				lo = slot + 1;
+			else
+				hi = mid;
+		}
+		return nextUsedSlot(lo, numSlots);
+	}
+
+	// the first used slot in [from, to), or to if there is none
+	private int nextUsedSlot(int from, int to) {
+		while (from < to && !isSlotUsed(from))
+			from++;
+		return from;
+	}
+
+	// the last used slot before slot, or -1 if there is none
+	private int previousUsedSlot(int slot) {
+		slot--;
+		while (slot >= 0 && !isSlotUsed(slot))
+			slot--;
+		return slot;
+	}
+
+	/**
+	 * Find, by binary search, the child to descend to for the left-most leaf
+	 * possibly containing the key: the left child of the first entry whose
+	 * key is greater than or equal to it, or the right child of the last
+	 * entry if there is none. The left-most child is returned for a null key.
+	 * @param key - the key to search for, or null
+	 * @return the id of the child, or null if the page has no entries
+	 */
+	public BTreePageId findChildId(Field key) {
+		int first = nextUsedSlot(0, numSlots);
+		if (first >= numSlots || nextUsedSlot(first + 1, numSlots) >= numSlots)
+			return null;
+		if (key == null)
+			return getChildId(first);
+		return getChildId(previousUsedSlot(findSlot(key, true)));
+	}
+
+	/**
+	 * Find, by binary search, the child to descend to for the right-most
+	 * leaf possibly containing the key: the right child of the last entry
+	 * whose key is less than or equal to it, or the left child of the first
+	 * entry if there is none. The right-most child is returned for a null key.
+	 * @param key - the key to search for, or null
+	 * @return the id of the child, or null if the page has no entries
+	 */
+	public BTreePageId findLastChildId(Field key) {
+		int first = nextUsedSlot(0, numSlots);
+		if (first >= numSlots || nextUsedSlot(first + 1, numSlots) >= numSlots)
+			return null;
+		if (key == null)
+			return getChildId(previousUsedSlot(numSlots));
+		return getChildId(previousUsedSlot(findSlot(key, false)));
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -761,8 +834,15 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null)
+					continue;
+				// the left child is in the closest used slot before the entry,
+				// which may be preceded by empty slots
+				int left = entry - 1;
+				while(left > 0 && !p.isSlotUsed(left))
+					left--;
+				BTreePageId childId = p.getChildId(left);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -11,7 +12,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
@@ -62,9 +63,25 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, new DataInputStream(new ByteArrayInputStream(data)), key);
+	}
+
+	/**
+	 * Create a BTreeLeafPage straight from a buffer holding the page's bytes,
+	 * e.g. a view of a memory-mapped file, without copying them into a byte
+	 * array. The buffer is only read during construction.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the field which the index is keyed on
+	 */
+	public BTreeLeafPage(BTreePageId id, ByteBuffer data, int key) throws IOException {
+		this(id, new DataInputStream(new ByteBufferInputStream(data)), key);
+	}
+
+	private BTreeLeafPage(BTreePageId id, DataInputStream dis, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
 		try {
@@ -103,7 +120,8 @@ public class BTreeLeafPage extends BTreePage {
 		}
 		dis.close();
 
-		setBeforeImage();
+		// the before image is the page as read; it is only copied out once
+		// the page is about to be modified (see snapshotBeforeImage)
 	}
 
 	/** 
@@ -137,6 +155,8 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
+			if(oldDataRef == null) // not modified since the before image was set
+				oldDataRef = getPageData();
 			return new BTreeLeafPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -149,7 +169,8 @@ public class BTreeLeafPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			// null means the before image equals the current contents
+			oldData = null;
 		}
 	}
 
@@ -294,6 +315,7 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
+		snapshotBeforeImage();
 		markSlotUsed(rid.getTupleNumber(), false);
 		t.setRecordId(null);
 	}
@@ -321,18 +343,12 @@ public class BTreeLeafPage extends BTreePage {
 
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
+		snapshotBeforeImage();
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int lessOrEqKey = findSlot(t.getField(keyField), false) - 1;
+		while (lessOrEqKey >= 0 && !isSlotUsed(lessOrEqKey))
+			lessOrEqKey--;
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -400,6 +416,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
+		snapshotBeforeImage();
 		if(id == null) {
 			leftSibling = 0;
 		}
@@ -420,6 +437,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
+		snapshotBeforeImage();
 		if(id == null) {
 			rightSibling = 0;
 		}
@@ -434,6 +452,27 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	public int getNumSlots() {
+		return numSlots;
+	}
+
+	public int getSlotSize() {
+		return td.getSize();
+	}
+
+	public int getHeaderOffset() {
+		// after the parent and sibling pointers
+		return 3 * INDEX_SIZE;
+	}
+
+	public int getSlotOffset() {
+		return 3 * INDEX_SIZE + header.length;
+	}
+
+	public BTreeLeafPage withPageData(byte[] data) throws IOException {
+		return new BTreeLeafPage(pid, data, keyField);
+	}
+
 	/**
 	 * Returns the number of tuples currently stored on this page
 	 */
@@ -475,6 +514,37 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Binary search for the first tuple on this page whose key is greater
+	 * than the given key, or greater than or equal to it if inclusive.
+	 * Used slots hold their tuples in key order, possibly with empty slots
+	 * in between; only the keys of used slots are compared.
+	 * @param key - the key to search for
+	 * @param inclusive - whether a tuple with an equal key qualifies
+	 * @return the slot of the tuple, or getMaxTuples() if there is none
+	 */
+	public int findSlot(Field key, boolean inclusive) {
+		Predicate.Op before = inclusive ? Predicate.Op.LESS_THAN : Predicate.Op.LESS_THAN_OR_EQ;
+		int lo = 0;
+		int hi = numSlots;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int slot = nextUsedSlot(mid, hi);
+			if (slot < hi && tuples[slot].getField(keyField).compare(before, key))
+				lo = slot + 1;
+			else
+				hi = mid;
+		}
+		return nextUsedSlot(lo, numSlots);
+	}
+
+	// the first used slot in [from, to), or to if there is none
+	private int nextUsedSlot(int from, int to) {
+		while (from < to && !isSlotUsed(from))
+			from++;
+		return from;
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -483,6 +553,16 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param key - the key to start from
+	 * @return an iterator over the tuples on this page whose key is greater than or equal
+	 * to key, found by binary search
+	 * @see #findSlot(Field, boolean)
+	 */
+	public Iterator<Tuple> iterator(Field key) {
+		return new BTreeLeafPageIterator(this, findSlot(key, true));
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -491,6 +571,16 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @param key - the key to start from
+	 * @return a reverse iterator over the tuples on this page whose key is less than or
+	 * equal to key, found by binary search
+	 * @see #findSlot(Field, boolean)
+	 */
+	public Iterator<Tuple> reverseIterator(Field key) {
+		return new BTreeLeafPageReverseIterator(this, findSlot(key, false) - 1);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -526,7 +616,12 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 	BTreeLeafPage p;
 
 	public BTreeLeafPageIterator(BTreeLeafPage p) {
+		this(p, 0);
+	}
+
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
 		this.p = p;
+		this.curTuple = firstSlot;
 	}
 
 	public boolean hasNext() {
@@ -574,8 +669,12 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 	BTreeLeafPage p;
 
 	public BTreeLeafPageReverseIterator(BTreeLeafPage p) {
+		this(p, p.getMaxTuples() - 1);
+	}
+
+	public BTreeLeafPageReverseIterator(BTreeLeafPage p, int lastSlot) {
 		this.p = p;
-		this.curTuple = p.getMaxTuples() - 1;
+		this.curTuple = lastSlot;
 	}
 
 	public boolean hasNext() {
@@ -77,7 +77,14 @@ public class BTreeScan implements OpIterator {
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
-			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+			DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+			if(file instanceof BTreeFile) {
+				BTreeFile btree = (BTreeFile) file;
+				this.it = btree.iterator(tid, AccessStrategy.forScan(btree.numPages()));
+			}
+			else {
+				this.it = file.iterator(tid);
+			}
 		}
 		else {
 			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
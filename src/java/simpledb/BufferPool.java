@@ -2,8 +2,20 @@ package simpledb;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -37,104 +49,219 @@ public class BufferPool {
 
     private final LockManager lockManager;
 
-    private class Lock {
-        TransactionId transactionId;
-        int type; // 0 shared 1 exclusive
+    private final EvictionPolicy evictionPolicy;
 
-        public Lock(TransactionId tid, int type) {
-            this.transactionId = tid;
-            this.type = type;
-        }
-    }
+    /**
+     * Pages cached in the private ring of a bulk-read AccessStrategy rather
+     * than in the shared pool, mapped to the strategy owning them. They are
+     * not managed by the eviction policy and not counted against
+     * maxPageNumber.
+     */
+    private final ConcurrentHashMap<PageId, AccessStrategy> ringPages;
 
-    private class LockManager {
-        private ConcurrentHashMap<PageId, List<Lock>> lockHashMap;
+    /**
+     * Background threads that read pages ahead of sequential scans.
+     */
+    private static final ExecutorService prefetchExecutor = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "simpledb-read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-        public LockManager() {
-            this.lockHashMap = new ConcurrentHashMap<PageId, List<Lock>>();
-        }
+    /**
+     * Bumped whenever a page may change on disk behind the pool's back
+     * (flushes and discards). A page read from disk is only cached if this
+     * did not move while it was being read.
+     */
+    private final AtomicLong diskGeneration = new AtomicLong();
 
-        public synchronized boolean lock(TransactionId tid, PageId pid, int type) {
-            List<Lock> locks = lockHashMap.get(pid);
-            // 如果还没有锁
-            if (locks == null) {
-                locks = new ArrayList<>();
-                Lock lock = new Lock(tid, type);
-                locks.add(lock);
-                lockHashMap.put(pid, locks);
-                return true;
-            }
-            for (Lock lock : locks) {
-                if (lock.transactionId.equals(tid)) {
-                    // 已经有同级/更高级锁
-                    if (lock.type == type || lock.type == 1) {
-                        return true;
-                    }
-                    // 独占sharedLock，升级为exclusiveLock
-                    if (locks.size() == 1) {
-                        lock.type = 1;
-                        return true;
-                    }
-                    // 本来是sharedLock想提升为exclusiveLock，但还有其他tx有sharedLock
-                    return false;
-                }
-            }
-            // 没锁并且已有其他tx的exclusiveLock
-            if (locks.get(0).type == 1) {
-                assert locks.size() == 1;
-                return false;
-            }
-            // 没有exclusiveLock并且只想加一个sharedLock
-            if (type == 0) {
-                Lock lock = new Lock(tid, type);
-                locks.add(lock);
-                lockHashMap.put(pid, locks);
-                return true;
-            }
-            // 想加exclusiveLock但有其他tx的sharedLock
-            return false;
-        }
+    /**
+     * Prefetches that have been issued but not finished yet, so a scan that
+     * catches up with its read-ahead waits for the read instead of issuing
+     * the same read again.
+     */
+    private final ConcurrentHashMap<PageId, Future<?>> prefetching = new ConcurrentHashMap<>();
 
-        public synchronized boolean unlock(TransactionId tid, PageId pid) throws DbException {
-            List<Lock> locks = lockHashMap.get(pid);
-            if (locks == null || locks.size() == 0) {
-                throw new DbException("empty lock map");
-            }
-            for (Lock lock : locks) {
-                if (lock.transactionId.equals(tid)) {
-                    locks.remove(lock);
-                    if (locks.size() == 0) {
-                        lockHashMap.remove(pid);
-                    }
-                    return true;
-                }
-            }
-            return false;
-        }
+    /**
+     * The pages each running transaction has fetched for writing or dirtied,
+     * so committing or aborting it only visits those pages instead of the
+     * whole pool. Its read locks are tracked by the lock manager.
+     */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> transactionPages = new ConcurrentHashMap<>();
 
-        public synchronized boolean holdLock(TransactionId tid, PageId pid) {
-            List<Lock> locks = lockHashMap.get(pid);
-            if (locks == null || locks.size() == 0) {
-                return false;
-            }
-            for (Lock lock : locks) {
-                if (lock.transactionId == tid) {
-                    return true;
-                }
-            }
-            return false;
-        }
+    /**
+     * The pages each running transaction made up in memory through
+     * {@link #newPage}, which have no version on disk to roll back to.
+     */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> newPages = new ConcurrentHashMap<>();
+
+    /**
+     * Whether dirty pages of running transactions may be evicted (STEAL).
+     * An evicted dirty page is written out after its UPDATE record has been
+     * forced, and an abort undoes it from the log, see LogFile#rollback.
+     */
+    private volatile boolean steal = false;
+
+    /**
+     * The pages each running transaction had written out by STEAL eviction.
+     * Aborting it must undo them from the log; LogFile#rollback clears the
+     * entry once it has.
+     */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> stolenPages = new ConcurrentHashMap<>();
+
+    /**
+     * Whether committing a transaction only logs its dirty pages instead of
+     * writing them (NO-FORCE). The logged pages are written later by the
+     * cleaner thread, and recovery redoes them from the log after a crash.
+     */
+    private volatile boolean noForce = false;
+
+    /**
+     * Pages of committed transactions that are logged but not written yet,
+     * mapped to the LSN of the first record not on disk (recLSN). They are
+     * written by the cleaner, by flushAllPages, or when they are evicted.
+     */
+    private final ConcurrentHashMap<PageId, Long> unwrittenPages = new ConcurrentHashMap<>();
+
+    /**
+     * Takes shared locks on unwritten pages while the pool writes them out,
+     * so no transaction modifies them meanwhile. Only used under the pool's
+     * monitor, and never waits for a lock.
+     */
+    private final TransactionId writerTid = new TransactionId();
+
+    /**
+     * Short-term latches on pages, separate from the transaction locks of the
+     * lock manager. A latch is held while a thread reads or changes a page
+     * in place, not until its transaction ends; BTreeFile latches the root
+     * pointer and internal pages of a tree this way instead of locking them.
+     * Latches are owned by threads, never waited for by the deadlock
+     * detector, and a thread holding one must not wait for a page lock.
+     * An entry only exists while some thread holds or waits for its latch.
+     */
+    private final ConcurrentHashMap<PageId, Latch> latches = new ConcurrentHashMap<>();
+
+    /**
+     * A page latch that counts the threads holding or waiting for it, so
+     * that it can be dropped from the latch table once none are left.
+     * The count only changes inside a compute of the table.
+     */
+    private static class Latch extends ReentrantReadWriteLock {
+        private static final long serialVersionUID = 1L;
+
+        int users;
     }
 
+    /** How long the cleaner thread stays alive without pages to write */
+    static final long CLEANER_IDLE_MILLIS = 1000;
+
+    private volatile int cleanerHighWater;
+    private volatile long cleanerIntervalMillis = 100;
+    private final Object cleanerLock = new Object();
+    private boolean cleanerRunning = false; // protected by cleanerLock
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * with the CLOCK policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockEvictionPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages       maximum number of pages in this buffer pool.
+     * @param evictionPolicy the policy choosing which page to evict when the
+     *                       pool is full
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
         this.maxPageNumber = numPages;
         pageConcurrentHashMap = new ConcurrentHashMap<>(numPages);
-        lockManager = new LockManager();
+        lockManager = new LockManager(LockManager.VictimPolicy.YOUNGEST);
+        this.evictionPolicy = evictionPolicy;
+        ringPages = new ConcurrentHashMap<>();
+        cleanerHighWater = Math.max(1, numPages / 2);
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Sets how the transaction to abort is chosen when transactions waiting
+     * for page locks deadlock. The default is to abort the youngest.
+     */
+    public void setDeadlockVictimPolicy(LockManager.VictimPolicy policy) {
+        lockManager.setVictimPolicy(policy);
+    }
+
+    /**
+     * Enables or disables STEAL: with it, a pool whose pages are all dirty
+     * evicts a dirty page instead of failing.
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    public boolean isSteal() {
+        return steal;
+    }
+
+    /**
+     * Enables or disables NO-FORCE: with it, commit only logs the dirty pages
+     * of the transaction and the cleaner thread writes them out later.
+     */
+    public void setNoForce(boolean noForce) {
+        this.noForce = noForce;
+    }
+
+    public boolean isNoForce() {
+        return noForce;
+    }
+
+    /**
+     * Tunes the cleaner thread of NO-FORCE mode.
+     *
+     * @param highWater      number of unwritten committed pages at which the
+     *                       cleaner writes them out without waiting for its
+     *                       interval to pass; defaults to half the pool
+     * @param intervalMillis how often the cleaner writes out unwritten pages
+     *                       below the high-water mark
+     */
+    public void setCleaner(int highWater, long intervalMillis) {
+        if (highWater < 1 || intervalMillis < 0) {
+            throw new IllegalArgumentException("invalid cleaner high-water mark " + highWater
+                    + " or interval " + intervalMillis);
+        }
+        cleanerHighWater = highWater;
+        cleanerIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * @return the number of pages of committed transactions that have not
+     * been written out yet
+     */
+    public int getNumUnwrittenPages() {
+        return unwrittenPages.size();
+    }
+
+    /**
+     * @return a copy of the dirty page table: the pages of committed
+     * transactions that have not been written out yet, each mapped to the
+     * LSN of its first log record that recovery may have to redo
+     */
+    public synchronized Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<PageId, Long>(unwrittenPages);
+    }
+
+    /**
+     * @return the number of pages the shared pool can hold
+     */
+    public int getNumPages() {
+        return maxPageNumber;
     }
 
     public static int getPageSize() {
@@ -168,36 +295,363 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        int type = perm == Permissions.READ_ONLY ? 0 : 1;
-        boolean isLocked = lockManager.lock(tid, pid, type);
-        long start = System.currentTimeMillis();
-        while (!isLocked) {
-            long end = System.currentTimeMillis();
-            if (end - start > 300) {
-                throw new TransactionAbortedException();
+        return getPage(tid, pid, perm, AccessStrategy.NORMAL);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, caching
+     * it as described by the access strategy. Read-only pages missed by a
+     * bulk-read strategy are cached in its private ring instead of the
+     * shared pool.
+     *
+     * @param tid      the ID of the transaction requesting the page
+     * @param pid      the ID of the requested page
+     * @param perm     the requested permissions on the page
+     * @param strategy how the caller is going to use the page
+     * @see AccessStrategy
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, AccessStrategy strategy)
+            throws TransactionAbortedException, DbException {
+        lockManager.acquire(tid, pid, perm);
+        return lockedPage(tid, pid, perm, strategy);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage}, but only if its lock
+     * can be granted without waiting for another transaction.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the page, or null if another transaction holds a conflicting lock
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (!lockManager.tryAcquire(tid, pid, perm)) {
+            return null;
+        }
+        return lockedPage(tid, pid, perm, AccessStrategy.NORMAL);
+    }
+
+    /**
+     * Locks a page for the transaction without reading it into the pool,
+     * for a page the transaction writes to disk itself, like a new page of
+     * a bulk load, if the lock can be granted without waiting.
+     *
+     * @return true if the transaction holds the lock now
+     * @see HeapFile#bulkLoad
+     */
+    public boolean tryLockPage(TransactionId tid, PageId pid, Permissions perm) {
+        return lockManager.tryAcquire(tid, pid, perm);
+    }
+
+    /**
+     * Caches a page the transaction made up in memory in place of whatever
+     * is cached or on disk for its page id, e.g. a page a B+ tree file takes
+     * for a new node. The page is locked and marked dirty for the
+     * transaction, so it reaches the file, logged, when the transaction
+     * commits; an abort drops it from the pool.
+     *
+     * @param tid  the ID of the transaction making the page
+     * @param page the new page
+     */
+    public void newPage(TransactionId tid, Page page) throws TransactionAbortedException, DbException {
+        PageId pid = page.getId();
+        lockManager.acquire(tid, pid, Permissions.READ_WRITE);
+        notePage(tid, pid);
+        newPages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+        page.markDirty(true, tid);
+        updatePage(page);
+    }
+
+    /**
+     * Latches a page for reading (READ_ONLY) or changing it in place
+     * (READ_WRITE), waiting for latches other threads hold.
+     *
+     * @see #getLatchedPage
+     */
+    public void latchPage(PageId pid, Permissions perm) {
+        Latch latch = useLatch(pid);
+        if (perm == Permissions.READ_WRITE) {
+            latch.writeLock().lock();
+        } else {
+            latch.readLock().lock();
+        }
+    }
+
+    /**
+     * Latches a page like {@link #latchPage}, but only if no other thread
+     * holds a conflicting latch.
+     *
+     * @return true if the page is latched now
+     */
+    public boolean tryLatchPage(PageId pid, Permissions perm) {
+        Latch latch = useLatch(pid);
+        boolean latched = perm == Permissions.READ_WRITE ? latch.writeLock().tryLock() : latch.readLock().tryLock();
+        if (!latched) {
+            stopUsingLatch(pid);
+        }
+        return latched;
+    }
+
+    /**
+     * Releases a latch taken by {@link #latchPage} or {@link #tryLatchPage}.
+     */
+    public void unlatchPage(PageId pid, Permissions perm) {
+        Latch latch = latches.get(pid);
+        if (perm == Permissions.READ_WRITE) {
+            latch.writeLock().unlock();
+        } else {
+            latch.readLock().unlock();
+        }
+        stopUsingLatch(pid);
+    }
+
+    private Latch useLatch(PageId pid) {
+        return latches.compute(pid, (p, latch) -> {
+            if (latch == null) {
+                latch = new Latch();
             }
+            latch.users++;
+            return latch;
+        });
+    }
+
+    private void stopUsingLatch(PageId pid) {
+        latches.computeIfPresent(pid, (p, latch) -> --latch.users == 0 ? null : latch);
+    }
+
+    /**
+     * @return the number of pages some thread holds or waits for a latch on
+     */
+    int latchedPageCount() {
+        return latches.size();
+    }
+
+    /**
+     * Retrieve the specified page without locking it for a transaction, for
+     * a caller that latched it or otherwise keeps it from changing.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page getLatchedPage(PageId pid) throws DbException {
+        return lockedPage(null, pid, Permissions.READ_ONLY, AccessStrategy.NORMAL);
+    }
+
+    /**
+     * @return true if the page is cached, in the shared pool or in a ring
+     */
+    boolean isCached(PageId pid) {
+        return pageConcurrentHashMap.containsKey(pid);
+    }
+
+    /**
+     * Tells whether pages read earlier, e.g. through {@link #getLatchedPage},
+     * are still the cached versions of their pages. An abort that rolls a
+     * page back replaces its cached version before the aborting transaction
+     * releases its locks, so a caller that found a page through pages it
+     * read unlocked can check them once it holds the lock. A page that was
+     * evicted meanwhile counts as replaced too.
+     *
+     * @return true if none of the pages has been replaced since it was read
+     */
+    boolean isCurrent(Collection<Page> pages) {
+        for (Page page : pages) {
+            if (pageConcurrentHashMap.get(page.getId()) != page) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Page lockedPage(TransactionId tid, PageId pid, Permissions perm, AccessStrategy strategy)
+            throws DbException {
+        if (perm == Permissions.READ_WRITE) {
+            notePage(tid, pid);
+        }
+        boolean useRing = strategy.usesRing() && perm == Permissions.READ_ONLY;
+        awaitPrefetch(pid);
+        Page page = pageConcurrentHashMap.get(pid);
+        if (page != null) {
+            if (!ringPages.containsKey(pid)) {
+                evictionPolicy.pageAccessed(pid);
+            } else if (!useRing) {
+                promote(pid);
+            }
+            return page;
+        }
+        // 读盘不占用BufferPool的锁，放入时再检查一次是否已被别人读入
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        while (true) {
+            long generation = diskGeneration.get();
+            page = file.readPage(pid);
+            synchronized (this) {
+                // a copy read while pages were written out or discarded may be older than a
+                // version that was cached, written out and evicted meanwhile
+                if (diskGeneration.get() == generation || pageConcurrentHashMap.containsKey(pid)) {
+                    return useRing ? cacheInRing(page, strategy) : cachePage(page);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a page into the pool on a background thread, ahead of a
+     * sequential scan that is going to ask for it. No lock is taken; the
+     * scan still locks the page through {@link #getPage}, which then finds
+     * it cached. Nothing happens if the page is already cached.
+     *
+     * @param pid      the ID of the page to read
+     * @param strategy the access strategy of the scan
+     * @return a future that completes once the page is cached or skipped
+     * @see ReadAhead
+     */
+    public Future<?> prefetchPage(PageId pid, AccessStrategy strategy) {
+        FutureTask<Void> prefetch = new FutureTask<Void>(() -> {
+            if (pageConcurrentHashMap.containsKey(pid)) {
+                return null;
+            }
+            long generation = diskGeneration.get();
             try {
-                Thread.sleep(20);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                synchronized (this) {
+                    if (diskGeneration.get() != generation || pageConcurrentHashMap.containsKey(pid)) {
+                        return null;
+                    }
+                    if (strategy.usesRing()) {
+                        cacheInRing(page, strategy);
+                    } else {
+                        cachePage(page);
+                    }
+                }
+            } catch (DbException | RuntimeException e) {
+                // read-ahead is only a hint; the scan reads the page itself
+            }
+            return null;
+        }) {
+            @Override
+            protected void done() {
+                prefetching.remove(pid, this);
             }
-            isLocked = lockManager.lock(tid, pid, type);
+        };
+        Future<?> issued = prefetching.putIfAbsent(pid, prefetch);
+        if (issued != null) {
+            return issued;
         }
-        if (pageConcurrentHashMap.containsKey(pid)) {
-            return pageConcurrentHashMap.get(pid);
-        } else {
-            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = file.readPage(pid);
-            if (pageConcurrentHashMap.size() < maxPageNumber) {
-                pageConcurrentHashMap.put(pid, page);
+        prefetchExecutor.execute(prefetch);
+        return prefetch;
+    }
+
+    /**
+     * Waits for a prefetch of pid that is still in flight, if any.
+     */
+    private void awaitPrefetch(PageId pid) {
+        Future<?> prefetch = prefetching.get(pid);
+        if (prefetch != null) {
+            try {
+                prefetch.get();
+            } catch (Exception e) {
+                // cancelled or failed; the caller reads the page itself
+            }
+        }
+    }
+
+    /**
+     * Puts a page just read from disk into the pool, evicting pages as needed.
+     * If another thread cached the same page in the meantime, its copy wins.
+     *
+     * @return the cached copy of the page
+     */
+    private synchronized Page cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        Page cached = pageConcurrentHashMap.get(pid);
+        if (cached != null) {
+            evictionPolicy.pageAccessed(pid);
+            return cached;
+        }
+        makeRoom();
+        pageConcurrentHashMap.put(pid, page);
+        evictionPolicy.pageAdmitted(pid);
+        return page;
+    }
+
+    /**
+     * Puts a page just read from disk into the ring of strategy, recycling
+     * the frame of the oldest page of the ring.
+     *
+     * @return the cached copy of the page
+     */
+    private synchronized Page cacheInRing(Page page, AccessStrategy strategy) throws DbException {
+        PageId pid = page.getId();
+        Page cached = pageConcurrentHashMap.get(pid);
+        if (cached != null) {
+            return cached;
+        }
+        PageId recycled = strategy.add(pid);
+        if (recycled != null && ringPages.get(recycled) == strategy) {
+            Page old = pageConcurrentHashMap.get(recycled);
+            if (old != null && (old.isDirty() != null || unwrittenPages.containsKey(recycled))) {
+                promote(recycled);
             } else {
-//                throw new DbException("no space for new page!");
-                evictPage();
+                ringPages.remove(recycled);
+                pageConcurrentHashMap.remove(recycled);
             }
-            return page;
+        }
+        pageConcurrentHashMap.put(pid, page);
+        ringPages.put(pid, strategy);
+        return page;
+    }
+
+    /**
+     * Moves a page from the ring that cached it into the shared pool, e.g.
+     * because a normal access or an update needs it to stay cached.
+     */
+    private synchronized void promote(PageId pid) throws DbException {
+        AccessStrategy owner = ringPages.remove(pid);
+        if (owner != null) {
+            owner.remove(pid);
+            makeRoom();
+            evictionPolicy.pageAdmitted(pid);
+        }
+    }
+
+    /**
+     * Evicts pages until the shared pool has a free frame.
+     */
+    private synchronized void makeRoom() throws DbException {
+        while (pageConcurrentHashMap.size() - ringPages.size() >= maxPageNumber) {
+            evictPage();
         }
     }
 
+    /**
+     * Makes page the cached version of its page id, e.g. after a DbFile
+     * returned it as dirtied.
+     */
+    private synchronized void updatePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        if (pageConcurrentHashMap.containsKey(pid)) {
+            promote(pid);
+            pageConcurrentHashMap.put(pid, page);
+        } else {
+            cachePage(page);
+        }
+    }
+
+    /**
+     * Records that the transaction may have modified the page.
+     */
+    private void notePage(TransactionId tid, PageId pid) {
+        transactionPages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /**
+     * @return the pages the transaction has fetched for writing or dirtied
+     */
+    private Set<PageId> pagesOf(TransactionId tid) {
+        Set<PageId> pages = transactionPages.get(tid);
+        return pages == null ? Collections.<PageId>emptySet() : pages;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -208,11 +662,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {
-        try {
-            lockManager.unlock(tid, pid);
-        } catch (DbException e) {
-            e.printStackTrace();
-        }
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -228,7 +678,15 @@ public class BufferPool {
      * Return true if the specified transaction has a lock on the specified page
      */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        return lockManager.holdLock(tid, p);
+        return lockManager.holdsLock(tid, p);
+    }
+
+    /**
+     * Return true if the specified transaction has an exclusive lock on the
+     * specified page
+     */
+    public boolean holdsExclusiveLock(TransactionId tid, PageId p) {
+        return lockManager.holdsExclusiveLock(tid, p);
     }
 
     /**
@@ -242,22 +700,75 @@ public class BufferPool {
             throws IOException {
         if (commit) {
             flushPages(tid);
+            commitBeforeImages(tid);
         } else {
+            if (stolenPages.containsKey(tid)) {
+                // not rolled back through LogFile.logAbort yet
+                Database.getLogFile().logAbort(tid);
+            }
             restorePages(tid);
         }
-        for (PageId pageId : pageConcurrentHashMap.keySet()) {
-            if (holdsLock(tid, pageId)) {
-                releasePage(tid, pageId);
+        stolenPages.remove(tid);
+        transactionPages.remove(tid);
+        newPages.remove(tid);
+        lockManager.releaseAll(tid);
+    }
+
+    /**
+     * Called by HeapFile#bulkLoad for pages the transaction is about to
+     * write straight to disk, so that an abort rolls them back through the
+     * log like stolen pages.
+     */
+    void pagesWritten(TransactionId tid, Collection<PageId> pids) {
+        stolenPages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).addAll(pids);
+    }
+
+    /**
+     * Called by LogFile#rollback once the pages of the transaction have been
+     * undone from the log.
+     */
+    void rolledBack(TransactionId tid) {
+        stolenPages.remove(tid);
+    }
+
+    /**
+     * Makes the current contents of the cached pages of a committed
+     * transaction their before images, so the next UPDATE record written
+     * for them starts from the committed version.
+     */
+    private synchronized void commitBeforeImages(TransactionId tid) {
+        for (PageId pageId : pagesOf(tid)) {
+            Page page = pageConcurrentHashMap.get(pageId);
+            if (page != null) {
+                page.setBeforeImage();
             }
         }
     }
 
+    /**
+     * Reverts the cached pages the transaction may have modified to their
+     * versions on disk, and drops the pages it made up.
+     */
     public synchronized void restorePages(TransactionId tid) {
-        for (PageId pageId : pageConcurrentHashMap.keySet()) {
+        Set<PageId> made = newPages.getOrDefault(tid, Collections.<PageId>emptySet());
+        for (PageId pageId : pagesOf(tid)) {
             Page page = pageConcurrentHashMap.get(pageId);
-            if (page.isDirty() == tid) {
-                DbFile f = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-                pageConcurrentHashMap.put(pageId, f.readPage(page.getId()));
+            if (page == null) {
+                continue;
+            }
+            if (page.isDirty() == tid || lockManager.holdsExclusiveLock(tid, pageId)) {
+                if (made.contains(pageId)) {
+                    // what is on disk may be a page the page number was used for before
+                    removePage(pageId);
+                } else if (unwrittenPages.containsKey(pageId)) {
+                    // the committed version is not on disk yet
+                    Page restored = page.getBeforeImage();
+                    restored.setLsn(page.getLsn());
+                    pageConcurrentHashMap.put(pageId, restored);
+                } else {
+                    DbFile f = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+                    pageConcurrentHashMap.put(pageId, f.readPage(page.getId()));
+                }
             }
         }
     }
@@ -272,6 +783,8 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
+     * <p>
+     * Then adds the entries for the tuple to the secondary indexes of the table.
      *
      * @param tid     the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -282,7 +795,11 @@ public class BufferPool {
         ArrayList<Page> dirtyPages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
         for (Page page : dirtyPages) {
             page.markDirty(true, tid);
-            pageConcurrentHashMap.put(page.getId(), page);
+            notePage(tid, page.getId());
+            updatePage(page);
+        }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.insert(tid, t);
         }
     }
 
@@ -296,15 +813,23 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
      *
+     * <p>
+     * First removes the entries for the tuple from the secondary indexes of the table.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t   the tuple to delete
      */
     public void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        ArrayList<Page> dirtyPages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.delete(tid, t);
+        }
+        ArrayList<Page> dirtyPages = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
         for (Page page : dirtyPages) {
             page.markDirty(true, tid);
-            pageConcurrentHashMap.put(page.getId(), page);
+            notePage(tid, page.getId());
+            updatePage(page);
         }
     }
 
@@ -314,10 +839,7 @@ public class BufferPool {
      * break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        for (Page page : pageConcurrentHashMap.values()) {
-            flushPage(page.getId());
-        }
-
+        writePages(new ArrayList<Page>(pageConcurrentHashMap.values()));
     }
 
     /**
@@ -330,7 +852,24 @@ public class BufferPool {
      * are removed from the cache so they can be reused safely
      */
     public synchronized void discardPage(PageId pid) {
-        pageConcurrentHashMap.remove(pid);
+        diskGeneration.incrementAndGet();
+        unwrittenPages.remove(pid);
+        removePage(pid);
+    }
+
+    /**
+     * Removes a page from the pool and from the bookkeeping of the eviction
+     * policy or the ring holding it.
+     */
+    private synchronized void removePage(PageId pid) {
+        if (pageConcurrentHashMap.remove(pid) != null) {
+            AccessStrategy owner = ringPages.remove(pid);
+            if (owner != null) {
+                owner.remove(pid);
+            } else {
+                evictionPolicy.pageRemoved(pid);
+            }
+        }
     }
 
     /**
@@ -340,61 +879,202 @@ public class BufferPool {
      */
     private synchronized void flushPage(PageId pid) throws IOException {
         Page page = pageConcurrentHashMap.get(pid);
-        if (page.isDirty() != null) {
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
-            page.markDirty(false, null);
+        if (page != null) {
+            writePages(Collections.singletonList(page));
         }
     }
 
     /**
      * Write all pages of the specified transaction to disk.
+     * In NO-FORCE mode the pages are only logged; they count as clean for
+     * the transaction and the cleaner thread writes them out later.
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
-        for (PageId pageId : pageConcurrentHashMap.keySet()) {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (PageId pageId : pagesOf(tid)) {
             Page page = pageConcurrentHashMap.get(pageId);
-            if (page.isDirty() == tid) {
-                flushPage(pageId);
+            if (page != null && page.isDirty() == tid) {
+                pages.add(page);
+            }
+        }
+        if (noForce) {
+            for (Page page : pages) {
+                page.setLsn(Database.getLogFile().logWrite(tid, page.getBeforeImage(), page));
+                page.markDirty(false, null);
+                unwrittenPages.putIfAbsent(page.getId(), page.getLsn());
+            }
+            if (!pages.isEmpty()) {
+                wakeCleaner();
+            }
+        } else {
+            writePages(pages);
+        }
+    }
+
+    /**
+     * Writes the dirty and the unwritten committed pages among pages to
+     * disk, following the write-ahead rule: an UPDATE record is logged for
+     * each dirty page and sets its page LSN, then the log is forced once up
+     * to the highest page LSN before any page is written. The pages of each
+     * file are written in page number order, so the file can coalesce
+     * adjacent pages.
+     */
+    private synchronized void writePages(List<Page> pages) throws IOException {
+        LogFile log = Database.getLogFile();
+        long maxLsn = -1;
+        Map<Integer, List<Page>> byFile = new HashMap<Integer, List<Page>>();
+        for (Page page : pages) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null) {
+                page.setLsn(log.logWrite(dirtier, page.getBeforeImage(), page));
+            } else if (!unwrittenPages.containsKey(page.getId())) {
+                continue;
+            }
+            maxLsn = Math.max(maxLsn, page.getLsn());
+            byFile.computeIfAbsent(page.getId().getTableId(), t -> new ArrayList<Page>()).add(page);
+        }
+        if (byFile.isEmpty()) {
+            return;
+        }
+        log.forceTo(maxLsn);
+        diskGeneration.incrementAndGet();
+        for (Map.Entry<Integer, List<Page>> e : byFile.entrySet()) {
+            List<Page> filePages = e.getValue();
+            filePages.sort(Comparator.comparingInt(p -> p.getId().getPageNumber()));
+            Database.getCatalog().getDatabaseFile(e.getKey()).writePages(filePages);
+            for (Page page : filePages) {
+                page.markDirty(false, null);
+                unwrittenPages.remove(page.getId());
+            }
+        }
+    }
+
+    /**
+     * Writes out the committed pages waiting for the cleaner. Pages a
+     * running transaction dirtied again, or may be modifying under its
+     * exclusive lock, are left for its commit or abort.
+     */
+    synchronized void cleanPages() throws IOException {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        try {
+            for (PageId pid : unwrittenPages.keySet()) {
+                Page page = pageConcurrentHashMap.get(pid);
+                if (page == null) {
+                    unwrittenPages.remove(pid);
+                } else if (lockManager.tryAcquire(writerTid, pid, Permissions.READ_ONLY)
+                        && page.isDirty() == null) {
+                    pages.add(page);
+                }
+            }
+            writePages(pages);
+        } finally {
+            lockManager.releaseAll(writerTid);
+        }
+    }
+
+    /**
+     * Starts the cleaner thread if it is not running, and makes it write
+     * out the unwritten pages right away if they reached the high-water mark.
+     */
+    private void wakeCleaner() {
+        synchronized (cleanerLock) {
+            if (!cleanerRunning) {
+                cleanerRunning = true;
+                Thread cleaner = new Thread(this::runCleaner, "simpledb-page-cleaner");
+                cleaner.setDaemon(true);
+                cleaner.start();
+            }
+            if (unwrittenPages.size() >= cleanerHighWater) {
+                cleanerLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Body of the cleaner thread: write out the unwritten pages every
+     * cleanerIntervalMillis, or as soon as they reach the high-water mark,
+     * and exit after being idle for CLEANER_IDLE_MILLIS. It also exits once
+     * the pool has been replaced (Database.reset or resetBufferPool), which
+     * drops the unwritten pages like a crash would.
+     */
+    private void runCleaner() {
+        while (true) {
+            synchronized (cleanerLock) {
+                try {
+                    long idleUntil = System.currentTimeMillis() + CLEANER_IDLE_MILLIS;
+                    while (unwrittenPages.isEmpty() || Database.getBufferPool() != this) {
+                        long left = idleUntil - System.currentTimeMillis();
+                        if (left <= 0 || Database.getBufferPool() != this) {
+                            cleanerRunning = false;
+                            return;
+                        }
+                        cleanerLock.wait(left);
+                    }
+                    if (unwrittenPages.size() < cleanerHighWater && cleanerIntervalMillis > 0) {
+                        cleanerLock.wait(cleanerIntervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    // nobody interrupts the cleaner; clean what we have
+                }
+            }
+            if (Database.getBufferPool() != this) {
+                continue;
+            }
+            try {
+                cleanPages();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the eviction policy among the clean pages, so
+     * nothing has to be flushed; committed pages the cleaner has not written
+     * yet are written out first. Only if all pages are dirty and the pool
+     * runs in STEAL mode is a dirty page chosen; it is logged and written
+     * out before it is discarded.
      */
     private synchronized void evictPage() throws DbException {
-        /*
-        PageId[] pageIds = pageConcurrentHashMap.keySet().toArray(new PageId[0]);
-        Random random = new Random();
-        PageId pageId = null;
-        do {
-            pageId = pageIds[random.nextInt(pageIds.length)];
-        } while (pageConcurrentHashMap.get(pageId).isDirty() != null);
-        if (pageConcurrentHashMap.get(pageId).isDirty() != null) {
-            throw new DbException("All pages are dirty!");
-        }
-        */
-        // 随机的效果太差了，换成从头遍历的
-        PageId pageId = null;
-        Page page = null;
-        for (PageId pageid : pageConcurrentHashMap.keySet()) {
-            page = pageConcurrentHashMap.get(pageid);
-            pageId = pageid;
-            if (page.isDirty() == null) {
-                break;
+        PageId victim = evictionPolicy.chooseVictim(pid -> {
+            Page page = pageConcurrentHashMap.get(pid);
+            return page != null && page.isDirty() == null && !unwrittenPages.containsKey(pid);
+        });
+        if (victim == null && !unwrittenPages.isEmpty()) {
+            try {
+                victim = evictionPolicy.chooseVictim(pid -> {
+                    Page page = pageConcurrentHashMap.get(pid);
+                    return page != null && page.isDirty() == null
+                            && lockManager.tryAcquire(writerTid, pid, Permissions.READ_ONLY);
+                });
+                if (victim != null) {
+                    flushPage(victim);
+                }
+            } catch (IOException e) {
+                throw new DbException("could not write out committed page " + victim + ": " + e);
+            } finally {
+                lockManager.releaseAll(writerTid);
+            }
+        }
+        if (victim == null && steal) {
+            victim = evictionPolicy.chooseVictim(pid -> pageConcurrentHashMap.get(pid) != null);
+            if (victim != null) {
+                TransactionId dirtier = pageConcurrentHashMap.get(victim).isDirty();
+                if (dirtier != null) {
+                    stolenPages.computeIfAbsent(dirtier, t -> ConcurrentHashMap.newKeySet()).add(victim);
+                }
+                try {
+                    flushPage(victim);
+                } catch (IOException e) {
+                    throw new DbException("could not write out dirty page " + victim + ": " + e);
+                }
             }
         }
-        assert page != null;
-        if (page.isDirty() != null) {
+        if (victim == null) {
             throw new DbException("All pages are dirty");
         }
-        // 由于换出的不是dirty的，也就没必要flush了
-//        try {
-//            flushPage(pageId);
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
-        discardPage(pageId);
+        removePage(victim);
     }
 
 }
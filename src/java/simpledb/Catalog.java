@@ -3,9 +3,12 @@ package simpledb;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.UUID;
 
@@ -23,6 +26,11 @@ public class Catalog {
 
     private ArrayList<Integer> idList;
 
+    private ArrayList<SecondaryIndex> indexList;
+
+    // the schema file loaded last, which saveIndex adds index lines to
+    private String schemaFile;
+
     private class Table {
         public DbFile file;
         public String name;
@@ -44,6 +52,7 @@ public class Catalog {
     public Catalog() {
         tableList = new ArrayList<>();
         idList = new ArrayList<>();
+        indexList = new ArrayList<>();
     }
 
     /**
@@ -54,19 +63,20 @@ public class Catalog {
      *                  this file/tupledesc param for the calls getTupleDesc and getFile
      * @param name      the name of the table -- may be an empty string.  May not be null.  If a name
      *                  conflict exists, use the last table to be added as the table for a given name.
+     *                  The file of a table that is replaced is closed.
      * @param pkeyField the name of the primary key field
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         Table table = new Table(file, name, pkeyField);
         for (int i = 0; i < tableList.size(); i++) {
             boolean flag = (tableList.get(i).name == null && name == null) || tableList.get(i).name.equals(name);
-            if (flag) {
-                tableList.set(i, table);
-                idList.set(i, table.id);
-                return;
-            } else if (table.id == tableList.get(i).id) {
+            if (flag || table.id == tableList.get(i).id) {
+                DbFile replaced = tableList.get(i).file;
                 tableList.set(i, table);
                 idList.set(i, table.id);
+                if (replaced != file) {
+                    close(replaced);
+                }
                 return;
             }
         }
@@ -119,12 +129,7 @@ public class Catalog {
      * @throws NoSuchElementException if the table doesn't exist
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
-        for (Table table : tableList) {
-            if (table.id == tableid) {
-                return table.file.getTupleDesc();
-            }
-        }
-        throw new NoSuchElementException();
+        return getDatabaseFile(tableid).getTupleDesc();
     }
 
     /**
@@ -140,9 +145,204 @@ public class Catalog {
                 return table.file;
             }
         }
+        for (SecondaryIndex index : indexList) {
+            if (index.getFile().getId() == tableid) {
+                return index.getFile();
+            }
+        }
         throw new NoSuchElementException();
     }
 
+    /**
+     * Add a secondary index to the catalog.  From now on, BufferPool.insertTuple and
+     * deleteTuple maintain it, and its file can be read like that of a table, by the id
+     * of its BTreeFile, but it is not listed among the tables.  If an index with the
+     * same name exists, it is replaced.
+     */
+    public void addIndex(SecondaryIndex index) {
+        for (int i = 0; i < indexList.size(); i++) {
+            if (indexList.get(i).getName().equals(index.getName())) {
+                SecondaryIndex replaced = indexList.set(i, index);
+                if (replaced.getFile() != index.getFile()) {
+                    close(replaced.getFile());
+                }
+                return;
+            }
+        }
+        indexList.add(index);
+    }
+
+    /**
+     * Remove the secondary index with the specified name from the catalog, if there is one.
+     */
+    public void removeIndex(String name) {
+        for (Iterator<SecondaryIndex> it = indexList.iterator(); it.hasNext(); ) {
+            SecondaryIndex index = it.next();
+            if (index.getName().equals(name)) {
+                it.remove();
+                close(index.getFile());
+            }
+        }
+    }
+
+    // close a file that left the catalog; it reopens its channel if it is used again
+    private static void close(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the secondary indexes of the specified table
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = new ArrayList<>();
+        for (SecondaryIndex index : indexList) {
+            if (index.getTableId() == tableid) {
+                indexes.add(index);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Create a secondary index over a field of a HeapFile table, in a file named after the
+     * index next to the file of the table, e.g. name.idx, and add it to the catalog.  The
+     * index is filled on behalf of transaction tid with an entry per tuple the table holds.
+     * Tuples other transactions insert into the table while the index is being built may
+     * get an entry twice, so no other transaction should write the table meanwhile.
+     * An index file no index in the catalog uses, e.g. one left behind by an index of an
+     * earlier run that was not saved, is replaced.  The index lasts for this run only
+     * unless it is saved with saveIndex.
+     *
+     * @param tid       the transaction building the index
+     * @param name      the name of the index
+     * @param tableid   the id of the table to index
+     * @param fieldName the name of the field to index
+     * @return the new index
+     * @throws DbException if the table is not a HeapFile, the field does not exist or an
+     *                     index in the catalog uses the index file
+     */
+    public SecondaryIndex createIndex(TransactionId tid, String name, int tableid, String fieldName)
+            throws DbException, IOException, TransactionAbortedException {
+        return createIndex(tid, name, tableid, fieldName, new String[0]);
+    }
+
+    /**
+     * Create a secondary index over a field of a HeapFile table whose entries include
+     * other fields of the table, as createIndex(tid, name, tableid, fieldName) does.
+     *
+     * @param includeNames the names of the fields to include
+     * @throws DbException if the table is not a HeapFile, a field does not exist or an
+     *                     index in the catalog uses the index file
+     * @see SecondaryIndex#covers
+     */
+    public SecondaryIndex createIndex(TransactionId tid, String name, int tableid, String fieldName,
+                                      String[] includeNames)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile file = getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile)) {
+            throw new DbException("table " + getTableName(tableid) + " is not a heap file and cannot be indexed");
+        }
+        int field = fieldIndex(tableid, fieldName);
+        int[] include = new int[includeNames.length];
+        for (int i = 0; i < includeNames.length; i++) {
+            include[i] = fieldIndex(tableid, includeNames[i]);
+        }
+        File indexFile = new File(((HeapFile) file).getFile().getAbsoluteFile().getParent(), name + ".idx");
+        if (!indexFile.createNewFile()) {
+            for (SecondaryIndex index : indexList) {
+                if (index.getFile().getFile().getAbsoluteFile().equals(indexFile)) {
+                    throw new DbException("index file " + indexFile + " exists already");
+                }
+            }
+            // an orphan, which may be stale
+            if (!indexFile.delete() || !indexFile.createNewFile()) {
+                throw new DbException("could not replace index file " + indexFile);
+            }
+        }
+
+        SecondaryIndex index = new SecondaryIndex(name, tableid, field, include, indexFile);
+        addIndex(index);
+        try {
+            if (((HeapFile) file).numPages() > 0) {
+                DbFileIterator it = file.iterator(tid);
+                it.open();
+                while (it.hasNext()) {
+                    index.insert(tid, it.next());
+                }
+                it.close();
+            }
+        } catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+            removeIndex(name);
+            indexFile.delete();
+            throw e;
+        }
+        return index;
+    }
+
+    /**
+     * Add a line for a secondary index in the catalog to the schema file loaded last, so
+     * that loadSchema opens the index again instead of leaving its file behind.  Indexes
+     * of tables that schema file does not list, or created when no schema was loaded,
+     * cannot be saved.
+     *
+     * @param name the name of the index
+     * @throws NoSuchElementException if there is no index with this name
+     * @throws DbException if the index cannot be saved
+     */
+    public void saveIndex(String name) throws DbException, IOException {
+        SecondaryIndex index = null;
+        for (SecondaryIndex i : indexList) {
+            if (i.getName().equals(name)) {
+                index = i;
+            }
+        }
+        if (index == null) {
+            throw new NoSuchElementException("no index " + name);
+        }
+        String tableName = getTableName(index.getTableId());
+        DbFile file = getDatabaseFile(index.getTableId());
+        File baseFolder = schemaFile == null ? null : new File(schemaFile).getParentFile();
+        if (baseFolder == null || !(file instanceof HeapFile)
+                || !((HeapFile) file).getFile().getAbsoluteFile().equals(new File(baseFolder, tableName + ".dat"))) {
+            throw new DbException("table " + tableName + " is not in a schema file");
+        }
+
+        TupleDesc td = getTupleDesc(index.getTableId());
+        StringBuilder line = new StringBuilder("index " + name + " on " + tableName
+                + " (" + td.getFieldName(index.getField()) + ")");
+        int[] include = index.getIncludedFields();
+        for (int i = 0; i < include.length; i++) {
+            line.append(i == 0 ? " include (" : ", ").append(td.getFieldName(include[i]));
+        }
+        if (include.length > 0) {
+            line.append(")");
+        }
+        try (RandomAccessFile schema = new RandomAccessFile(schemaFile, "r")) {
+            if (schema.length() > 0) {
+                schema.seek(schema.length() - 1);
+                if (schema.read() != '\n') {
+                    line.insert(0, '\n');
+                }
+            }
+        }
+        try (FileWriter w = new FileWriter(schemaFile, true)) {
+            w.write(line.append('\n').toString());
+        }
+    }
+
+    // the index of a field of a table, or a DbException if there is no such field
+    private int fieldIndex(int tableid, String fieldName) throws DbException {
+        try {
+            return getTupleDesc(tableid).fieldNameToIndex(fieldName);
+        } catch (NoSuchElementException e) {
+            throw new DbException("table " + getTableName(tableid) + " has no field " + fieldName);
+        }
+    }
+
     public String getPrimaryKey(int tableid) {
         for (Table table : tableList) {
             if (table.id == tableid) {
@@ -152,6 +352,39 @@ public class Catalog {
         return null;
     }
 
+    /**
+     * Marks the specified table as eligible (or no longer eligible) for the
+     * memory-mapped read path; see {@link HeapFile#setMemoryMapped}. Meant
+     * for large, rarely updated tables.
+     *
+     * @throws NoSuchElementException if the table doesn't exist
+     * @throws UnsupportedOperationException if the table's file has no
+     *                                       memory-mapped read path
+     */
+    public void setMemoryMapped(int tableid, boolean memoryMapped) throws NoSuchElementException {
+        DbFile file = getDatabaseFile(tableid);
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).setMemoryMapped(memoryMapped);
+        } else if (file instanceof BTreeFile) {
+            ((BTreeFile) file).setMemoryMapped(memoryMapped);
+        } else if (memoryMapped) {
+            throw new UnsupportedOperationException("table " + getTableName(tableid) + " cannot be memory-mapped");
+        }
+    }
+
+    /**
+     * @return true if the specified table is read through a memory mapping
+     */
+    public boolean isMemoryMapped(int tableid) throws NoSuchElementException {
+        DbFile file = getDatabaseFile(tableid);
+        if (file instanceof HeapFile) {
+            return ((HeapFile) file).isMemoryMapped();
+        } else if (file instanceof BTreeFile) {
+            return ((BTreeFile) file).isMemoryMapped();
+        }
+        return false;
+    }
+
     public Iterator<Integer> tableIdIterator() {
         return idList.iterator();
     }
@@ -166,25 +399,46 @@ public class Catalog {
     }
 
     /**
-     * Delete all tables from the catalog
+     * Delete all tables and indexes from the catalog, closing their files
      */
     public void clear() {
+        for (Table table : tableList) {
+            close(table.file);
+        }
+        for (SecondaryIndex index : indexList) {
+            close(index.getFile());
+        }
         tableList.clear();
         idList.clear();
+        indexList.clear();
+        schemaFile = null;
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line has the format name (field type [pk], field type, ...) [mmap|hash];
+     * a trailing mmap marks the table for the memory-mapped read path, and a
+     * trailing hash stores the table in a HashFile keyed on its primary key.
+     * A line of the format index name on table (field) [include (field, ...)]
+     * adds a secondary index of a table listed before it, which is built if its
+     * file name.idx does not exist yet; saveIndex adds such lines.  An existing
+     * index file is opened as it is, so it must have been kept up to date with
+     * its table, as it is while the line is in the schema.
      *
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
         String line = "";
         String baseFolder = new File(new File(catalogFile).getAbsolutePath()).getParent();
+        schemaFile = new File(catalogFile).getAbsolutePath();
         try {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
 
             while ((line = br.readLine()) != null) {
+                if (line.trim().toLowerCase().startsWith("index ")) {
+                    loadIndex(baseFolder, line);
+                    continue;
+                }
                 //assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
@@ -216,17 +470,75 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
-                addTable(tabHf, name, primaryKey);
+                File dataFile = new File(baseFolder + "/" + name + ".dat");
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                DbFile tabFile;
+                if (options.toLowerCase().equals("hash")) {
+                    if (primaryKey.isEmpty()) {
+                        System.out.println("Hash table " + name + " has no primary key");
+                        System.exit(0);
+                    }
+                    tabFile = new HashFile(dataFile, names.indexOf(primaryKey), t);
+                } else {
+                    HeapFile tabHf = new HeapFile(dataFile, t);
+                    if (options.toLowerCase().equals("mmap")) {
+                        tabHf.setMemoryMapped(true);
+                    } else if (!options.isEmpty()) {
+                        System.out.println("Unknown annotation " + options);
+                        System.exit(0);
+                    }
+                    tabFile = tabHf;
+                }
+                addTable(tabFile, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NoSuchElementException e) {
             System.out.println("Invalid catalog entry : " + line);
             System.exit(0);
         }
     }
+
+    // add the index in a line of the format index name on table (field) [include (field, ...)]
+    private void loadIndex(String baseFolder, String line) throws IOException {
+        String[] words = line.substring(0, line.indexOf("(")).trim().split("\\s+");
+        if (words.length != 4 || !words[2].toLowerCase().equals("on")) {
+            throw new IndexOutOfBoundsException();
+        }
+        String name = words[1];
+        int tableid = getTableId(words[3]);
+        String fieldName = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+        String[] includeNames = new String[0];
+        String rest = line.substring(line.indexOf(")") + 1).trim();
+        if (!rest.isEmpty()) {
+            if (!rest.toLowerCase().startsWith("include")) {
+                throw new IndexOutOfBoundsException();
+            }
+            includeNames = rest.substring(rest.indexOf("(") + 1, rest.indexOf(")")).trim().split("\\s*,\\s*");
+        }
+        File indexFile = new File(baseFolder + "/" + name + ".idx");
+        if (indexFile.exists()) {
+            TupleDesc td = getTupleDesc(tableid);
+            int[] include = new int[includeNames.length];
+            for (int i = 0; i < includeNames.length; i++) {
+                include[i] = td.fieldNameToIndex(includeNames[i]);
+            }
+            addIndex(new SecondaryIndex(name, tableid, td.fieldNameToIndex(fieldName), include, indexFile));
+        } else {
+            Transaction t = new Transaction();
+            t.start();
+            try {
+                createIndex(t.getId(), name, tableid, fieldName, includeNames);
+                t.commit();
+            } catch (DbException | TransactionAbortedException e) {
+                t.abort();
+                throw new IOException("could not build index " + name + ": " + e.getMessage());
+            }
+        }
+        System.out.println("Added index : " + name + " on " + words[3] + " (" + fieldName + ")"
+                + (includeNames.length == 0 ? "" : " include (" + String.join(", ", includeNames) + ")"));
+    }
 }
 
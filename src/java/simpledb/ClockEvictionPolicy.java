@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) approximation of LRU. Resident pages sit in a ring
+ * of frames with one reference bit each; a hit only sets the bit, and the
+ * hand sweeps the ring clearing bits until it meets an unreferenced page.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private PageId[] frames;
+    private boolean[] referenced;
+    private final HashMap<PageId, Integer> frameOf;
+    private final ArrayDeque<Integer> freeFrames;
+    private int hand = 0;
+
+    /**
+     * @param numPages the number of frames in the ring; the ring grows if
+     *                 more pages than that are ever admitted
+     */
+    public ClockEvictionPolicy(int numPages) {
+        int capacity = Math.max(numPages, 1);
+        frames = new PageId[capacity];
+        referenced = new boolean[capacity];
+        frameOf = new HashMap<>(capacity * 2);
+        freeFrames = new ArrayDeque<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            freeFrames.add(i);
+        }
+    }
+
+    @Override
+    public synchronized void pageAdmitted(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced[frame] = true;
+            return;
+        }
+        if (freeFrames.isEmpty()) {
+            grow();
+        }
+        frame = freeFrames.poll();
+        frames[frame] = pid;
+        referenced[frame] = true;
+        frameOf.put(pid, frame);
+    }
+
+    @Override
+    public synchronized void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced[frame] = true;
+        }
+    }
+
+    @Override
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames[frame] = null;
+            referenced[frame] = false;
+            freeFrames.add(frame);
+        }
+    }
+
+    @Override
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        // two full turns: the first one may only clear reference bits
+        for (int i = 0; i < 2 * frames.length; i++) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            PageId pid = frames[frame];
+            if (pid == null) {
+                continue;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;
+            } else if (evictable.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void grow() {
+        int oldLength = frames.length;
+        frames = Arrays.copyOf(frames, oldLength * 2);
+        referenced = Arrays.copyOf(referenced, oldLength * 2);
+        for (int i = oldLength; i < frames.length; i++) {
+            freeFrames.add(i);
+        }
+    }
+}
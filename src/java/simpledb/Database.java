@@ -21,12 +21,56 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    /**
+     * Name of the eviction policy used by the buffer pools of this instance,
+     * see {@link EvictionPolicy#create}. Set with -Dsimpledb.evictionPolicy.
+     */
+    private final String _evictionPolicy;
+
+    /**
+     * How the buffer pools of this instance pick the transaction to abort
+     * on a deadlock, see {@link LockManager.VictimPolicy#fromName}. Set with
+     * -Dsimpledb.deadlockVictim.
+     */
+    private final LockManager.VictimPolicy _deadlockVictimPolicy;
+
+    /**
+     * Whether the buffer pools of this instance may evict dirty pages, see
+     * {@link BufferPool#setSteal}. Set with -Dsimpledb.steal=true.
+     */
+    private final boolean _steal;
+
+    /**
+     * Whether the buffer pools of this instance leave committed pages to a
+     * background cleaner, see {@link BufferPool#setNoForce}. Set with
+     * -Dsimpledb.noForce=true.
+     */
+    private final boolean _noForce;
+
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _evictionPolicy = System.getProperty("simpledb.evictionPolicy", "clock");
+        _deadlockVictimPolicy = LockManager.VictimPolicy.fromName(
+                System.getProperty("simpledb.deadlockVictim", "youngest"));
+        _steal = Boolean.getBoolean("simpledb.steal");
+        _noForce = Boolean.getBoolean("simpledb.noForce");
+        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES,
+                EvictionPolicy.create(_evictionPolicy, BufferPool.DEFAULT_PAGES));
+        _bufferpool.setDeadlockVictimPolicy(_deadlockVictimPolicy);
+        _bufferpool.setSteal(_steal);
+        _bufferpool.setNoForce(_noForce);
         LogFile tmp = null;
         try {
-            tmp = new LogFile(new File(LOGFILENAME));
+            tmp = new LogFile(new File(LOGFILENAME),
+                    Long.getLong("simpledb.logSegmentSize", SegmentedLog.DEFAULT_SEGMENT_SIZE));
+            // group commit, see LogFile#setGroupCommit
+            tmp.setGroupCommit(Boolean.getBoolean("simpledb.groupCommit"),
+                    Long.getLong("simpledb.groupCommitWindowMs", 5),
+                    Integer.getInteger("simpledb.groupCommitMaxBatch", 64));
+            tmp.setRecoveryThreads(Integer.getInteger("simpledb.recoveryThreads",
+                    Runtime.getRuntime().availableProcessors()));
+            // background fuzzy checkpoints, see LogFile#setCheckpointInterval
+            tmp.setCheckpointInterval(Long.getLong("simpledb.checkpointIntervalMs", 0));
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -55,11 +99,23 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, EvictionPolicy.create(_instance.get()._evictionPolicy, pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that evicts with the given policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy policy) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            BufferPool bufferPool = new BufferPool(pages, policy);
+            bufferPool.setDeadlockVictimPolicy(_instance.get()._deadlockVictimPolicy);
+            bufferPool.setSteal(_instance.get()._steal);
+            bufferPool.setNoForce(_instance.get()._noForce);
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -28,6 +28,30 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages of this file to disk, in increasing page number
+     * order. Files may write each run of adjacent pages with a single write;
+     * by default the pages are written one at a time.
+     *
+     * @param pages The pages to write, sorted by page number
+     * @throws IOException if a write fails
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+    }
+
+    /**
+     * Releases what the file keeps open to do its I/O, e.g. when it leaves
+     * the catalog. By default there is nothing to release. A file that is
+     * used again after close reopens what it needs.
+     *
+     * @throws IOException if closing fails
+     */
+    default void close() throws IOException {
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
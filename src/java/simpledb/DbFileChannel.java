@@ -0,0 +1,218 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * DbFileChannel gives a DbFile one FileChannel to its backing file that stays
+ * open for the lifetime of the DbFile, instead of a new RandomAccessFile or
+ * stream per page access.
+ * <p>
+ * All page I/O is positional (pread/pwrite), so concurrent readers and
+ * writers of the same file never share, or serialize on, a file pointer.
+ * Page arrays are wrapped in heap ByteBuffers; the JDK copies them through a
+ * per-thread temporary direct buffer that it reuses across calls.
+ * <p>
+ * Closing the channel waits for the calls in progress on it, so they do not
+ * fail with a ClosedChannelException half way.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel {
+
+    private final File file;
+    private volatile FileChannel channel;
+    private volatile MappedByteBuffer mapped;
+
+    /**
+     * Held for reading by every call that uses the channel, and for writing
+     * by close. Opening the channel and remapping the file synchronize on
+     * openLock rather than on this channel, so a caller that synchronizes on
+     * the channel around allocate never waits for a thread that close waits
+     * for.
+     */
+    private final ReentrantReadWriteLock inUse = new ReentrantReadWriteLock();
+    private final Object openLock = new Object();
+
+    /**
+     * @param file the file to do page I/O on; it is created on first access
+     *             if it does not exist yet
+     */
+    public DbFileChannel(File file) {
+        this.file = file;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel fc = channel;
+        if (fc == null || !fc.isOpen()) {
+            synchronized (openLock) {
+                fc = channel;
+                if (fc == null || !fc.isOpen()) {
+                    fc = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                    channel = fc;
+                }
+            }
+        }
+        return fc;
+    }
+
+    /**
+     * Reads data.length bytes starting at position, or as many as the file
+     * holds.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the
+     * end of the file
+     */
+    public int read(long position, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        inUse.readLock().lock();
+        try {
+            FileChannel fc = channel();
+            while (buffer.hasRemaining()) {
+                int n = fc.read(buffer, position + buffer.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+        } finally {
+            inUse.readLock().unlock();
+        }
+        return buffer.position() == 0 && data.length > 0 ? -1 : buffer.position();
+    }
+
+    /**
+     * Writes all of data starting at position, extending the file if needed.
+     */
+    public void write(long position, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        inUse.readLock().lock();
+        try {
+            FileChannel fc = channel();
+            while (buffer.hasRemaining()) {
+                fc.write(buffer, position + buffer.position());
+            }
+        } finally {
+            inUse.readLock().unlock();
+        }
+    }
+
+    /**
+     * Atomically appends data to the end of the file.
+     *
+     * @return the position data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        inUse.readLock().lock();
+        try {
+            long position = channel().size();
+            write(position, data);
+            return position;
+        } finally {
+            inUse.readLock().unlock();
+        }
+    }
+
+    /**
+     * Atomically extends the file by length bytes without writing them; they
+     * read as zeros until they are written. Callers that need to act on the
+     * new positions before any other append can synchronize on this channel.
+     *
+     * @return the position of the first new byte
+     */
+    public synchronized long allocate(long length) throws IOException {
+        inUse.readLock().lock();
+        try {
+            long position = channel().size();
+            if (length > 0) {
+                write(position + length - 1, new byte[1]);
+            }
+            return position;
+        } finally {
+            inUse.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forces everything written so far to disk.
+     */
+    public void force() throws IOException {
+        inUse.readLock().lock();
+        try {
+            channel().force(false);
+        } finally {
+            inUse.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a read-only view of length bytes at position of a memory
+     * mapping of the file. No bytes are copied; writes made through this
+     * channel show up in the view, so callers copy out what they keep before
+     * the file is next written, and must not touch the view once the file
+     * may have been truncated. The file is remapped when it has grown past
+     * the current mapping.
+     *
+     * @return the view, or null if the range lies past the end of the file
+     * or the file is too large to be mapped in one piece
+     */
+    public ByteBuffer map(long position, int length) throws IOException {
+        MappedByteBuffer m = mapped;
+        if (m == null || position + length > m.capacity()) {
+            inUse.readLock().lock();
+            try {
+                synchronized (openLock) {
+                    m = mapped;
+                    if (m == null || position + length > m.capacity()) {
+                        long size = channel().size();
+                        if (position + length > size || size > Integer.MAX_VALUE) {
+                            return null;
+                        }
+                        m = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                        mapped = m;
+                    }
+                }
+            } finally {
+                inUse.readLock().unlock();
+            }
+        }
+        ByteBuffer view = m.duplicate();
+        view.position((int) position);
+        view.limit((int) position + length);
+        return view.slice();
+    }
+
+    /**
+     * @return the current size of the file in bytes
+     */
+    public long size() throws IOException {
+        inUse.readLock().lock();
+        try {
+            return channel().size();
+        } finally {
+            inUse.readLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the channel once the calls in progress on it are done; it is
+     * reopened on the next access.
+     */
+    public void close() throws IOException {
+        inUse.writeLock().lock();
+        try {
+            mapped = null;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } finally {
+            inUse.writeLock().unlock();
+        }
+    }
+}
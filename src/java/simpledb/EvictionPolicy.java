@@ -0,0 +1,70 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which cached page the BufferPool gives up when it
+ * needs a frame for a page that is not resident yet.
+ * <p>
+ * The BufferPool reports every admission, hit and removal to the policy, so
+ * a policy only has to keep its own bookkeeping up to date; it never touches
+ * pages itself. All callbacks should run in amortized O(1) so that neither
+ * hits nor evictions have to scan the whole pool.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Tells the policy whether a resident page may be evicted right now.
+     * The BufferPool uses this to keep dirty pages in memory (NO STEAL).
+     */
+    interface Evictable {
+        boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Called after pid has been brought into the buffer pool.
+     */
+    void pageAdmitted(PageId pid);
+
+    /**
+     * Called whenever a resident page is requested again.
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Called after pid has left the buffer pool, either because it was
+     * evicted or because it was discarded.
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Chooses the page to evict. Pages rejected by evictable must be skipped
+     * but kept under management. The victim is not forgotten by this call;
+     * the BufferPool reports it through {@link #pageRemoved} once it is gone.
+     *
+     * @param evictable filter for the pages that may currently be evicted
+     * @return the victim, or null if no resident page may be evicted
+     */
+    PageId chooseVictim(Evictable evictable);
+
+    /**
+     * Creates one of the built-in policies by name.
+     *
+     * @param name     "clock", "lru-k" (LRU-2) or "2q"
+     * @param numPages the capacity of the buffer pool the policy serves
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static EvictionPolicy create(String name, int numPages) {
+        switch (name.toLowerCase()) {
+            case "clock":
+                return new ClockEvictionPolicy(numPages);
+            case "lru-k":
+            case "lru-2":
+                return new LRUKEvictionPolicy(2, numPages);
+            case "2q":
+                return new TwoQueueEvictionPolicy(numPages);
+            default:
+                throw new IllegalArgumentException("unknown eviction policy " + name);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pages of a HeapFile that have free slots, one bit per page, kept in a
+ * file next to the heap file and named after it, e.g. table.dat.fsm.
+ * Inserts go to a page listed here instead of trying every page of the heap
+ * file in turn.
+ *
+ * <p> The map is only a hint.  A listed page may have filled up since, and
+ * the insert that finds it full clears its bit; a page with free slots that
+ * is not listed is listed again once it is read or written.  Bits are
+ * written through to the map file without forcing it.  The map file also
+ * holds the length and modification time of the heap file, recorded once
+ * per batch of pages the BufferPool flushes, per bulk load and when the
+ * HeapFile is closed, not on every page write.  If they no longer match
+ * when the map is opened, e.g. after a crash, after pages were written one
+ * at a time by recovery, or after the heap file was rewritten by
+ * HeapFileEncoder, the map is rebuilt from the page headers.
+ *
+ * <p> The map file of a heap file in the temporary directory, e.g. one made
+ * by File.createTempFile, is deleted when the JVM exits.
+ */
+class FreeSpaceMap {
+    // heap file length and modification time in nanoseconds
+    private static final int HEADER_SIZE = 16;
+
+    private final File heapFile;
+    private final File file;
+    private final BitSet free = new BitSet();
+    // null once writing the map file failed; the map is then only kept in memory
+    private RandomAccessFile raf;
+
+    private FreeSpaceMap(File heapFile) {
+        this.heapFile = heapFile;
+        this.file = new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Open the free-space map of a heap file, reading the page headers of
+     * the file if the map file is missing or stale.
+     *
+     * @param heapFile the file backing the HeapFile
+     * @param channel  the channel the HeapFile reads its pages through
+     * @param td       the TupleDesc of the HeapFile
+     */
+    static FreeSpaceMap open(File heapFile, DbFileChannel channel, TupleDesc td) throws IOException {
+        FreeSpaceMap map = new FreeSpaceMap(heapFile);
+        if (isTemporary(heapFile)) {
+            map.file.deleteOnExit();
+        }
+        try {
+            map.raf = new RandomAccessFile(map.file, "rw");
+        } catch (IOException e) {
+            map.raf = null;
+        }
+        if (!map.load()) {
+            map.rebuild(channel, td);
+        }
+        return map;
+    }
+
+    private static boolean isTemporary(File heapFile) {
+        File dir = heapFile.getAbsoluteFile().getParentFile();
+        if (dir == null) {
+            return false;
+        }
+        try {
+            File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+            return dir.getCanonicalFile().equals(tmpDir.getCanonicalFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean load() {
+        if (raf == null) {
+            return false;
+        }
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer header = heapFileHeader();
+            byte[] recorded = new byte[HEADER_SIZE];
+            raf.seek(0);
+            raf.readFully(recorded);
+            if (!header.equals(ByteBuffer.wrap(recorded))) {
+                return false;
+            }
+            byte[] bits = new byte[(int) (raf.length() - HEADER_SIZE)];
+            raf.readFully(bits);
+            free.or(BitSet.valueOf(bits));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void rebuild(DbFileChannel channel, TupleDesc td) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int numSlots = HeapPage.getNumTuples(td);
+        byte[] header = new byte[HeapPage.getHeaderSize(td)];
+        int numPages = (int) (heapFile.length() / pageSize);
+        for (int pageNo = 0; pageNo < numPages; pageNo++) {
+            if (channel.read((long) pageNo * pageSize, header) < header.length) {
+                break;
+            }
+            for (int slot = 0; slot < numSlots; slot++) {
+                if ((header[slot / 8] & (1 << (slot % 8))) == 0) {
+                    free.set(pageNo);
+                    break;
+                }
+            }
+        }
+        if (raf != null) {
+            try {
+                byte[] bits = free.toByteArray();
+                raf.setLength(HEADER_SIZE + bits.length);
+                raf.seek(HEADER_SIZE);
+                raf.write(bits);
+            } catch (IOException e) {
+                lost();
+            }
+        }
+        heapFileWritten();
+    }
+
+    // the header the map file should hold for the heap file as it is now
+    private ByteBuffer heapFileHeader() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(heapFile.toPath(), BasicFileAttributes.class);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(attributes.size());
+        header.putLong(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        header.flip();
+        return header;
+    }
+
+    // stop writing the map file and delete it, so it is rebuilt next time
+    private void lost() {
+        try {
+            raf.close();
+        } catch (IOException ignored) {
+        }
+        raf = null;
+        file.delete();
+    }
+
+    /**
+     * Close the map file, recording the heap file as it is now. The map must
+     * not be used afterwards.
+     */
+    synchronized void close() throws IOException {
+        heapFileWritten();
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    /**
+     * @return the first page at or after pageNo that may have free slots,
+     * or -1 if there is none
+     */
+    synchronized int nextFree(int pageNo) {
+        return free.nextSetBit(pageNo);
+    }
+
+    /**
+     * Record whether a page has free slots.
+     */
+    synchronized void setFree(int pageNo, boolean hasFreeSlots) {
+        if (free.get(pageNo) == hasFreeSlots) {
+            return;
+        }
+        free.set(pageNo, hasFreeSlots);
+        if (raf != null) {
+            try {
+                int first = pageNo - pageNo % 8;
+                byte[] bits = free.get(first, first + 8).toByteArray();
+                raf.seek(HEADER_SIZE + pageNo / 8);
+                raf.write(bits.length == 0 ? 0 : bits[0]);
+            } catch (IOException e) {
+                lost();
+            }
+        }
+    }
+
+    /**
+     * Record the length and modification time of the heap file after the
+     * HeapFile wrote a batch of pages to it, which keeps the map file valid.
+     */
+    synchronized void heapFileWritten() {
+        if (raf != null) {
+            try {
+                ByteBuffer header = heapFileHeader();
+                while (header.hasRemaining()) {
+                    raf.getChannel().write(header, header.position());
+                }
+            } catch (IOException e) {
+                lost();
+            }
+        }
+    }
+}
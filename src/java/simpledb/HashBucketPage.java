@@ -0,0 +1,321 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Each instance of HashBucketPage stores one page of a bucket of a HashFile
+ * and implements the Page interface that is used by BufferPool.  The pages
+ * of a bucket form a chain: the first page is listed in the HashHeaderPage,
+ * and each page points to the overflow page after it, if any.  Tuples are
+ * kept in no particular order within a bucket.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashBucketPage implements SlottedPage {
+
+    private static final int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+    private final HashPageId pid;
+    private final TupleDesc td;
+    private final int numSlots;
+    private final byte[] header;
+    private final Tuple[] tuples;
+    private int nextPage; // overflow page or 0
+
+    private boolean dirty = false;
+    private TransactionId dirtier = null;
+    private volatile long lsn = 0;
+
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a HashBucketPage from a set of bytes of data read from disk.
+     * The format of a HashBucketPage is an integer for the page number of the
+     * next page of the bucket (0 if there is none), followed by header bytes
+     * indicating the slots of the page that are in use and the tuple slots,
+     * as in a HeapPage.  The number of tuples is equal to: <p>
+     * floor((BufferPool.getPageSize()*8 - 32) / (tuple size * 8 + 1))
+     *
+     * @see Catalog#getTupleDesc
+     * @see BufferPool#getPageSize()
+     */
+    public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getMaxTuples(td);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        nextPage = dis.readInt();
+        header = new byte[(numSlots + 7) / 8];
+        dis.readFully(header);
+        tuples = new Tuple[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            tuples[i] = readNextTuple(dis, i);
+        }
+        dis.close();
+    }
+
+    /**
+     * @return the number of tuples a page of a HashFile with the given
+     * TupleDesc holds
+     */
+    static int getMaxTuples(TupleDesc td) {
+        return (BufferPool.getPageSize() * 8 - INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+    }
+
+    private Tuple readNextTuple(DataInputStream dis, int slotId) throws IOException {
+        if (!isSlotUsed(slotId)) {
+            dis.skipBytes(td.getSize());
+            return null;
+        }
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.setField(j, td.getFieldType(j).parse(dis));
+            }
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+        return t;
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, which
+     * passed to the HashBucketPage constructor produces an identical page.
+     */
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(nextPage);
+            dos.write(header);
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    dos.write(new byte[td.getSize()]);
+                    continue;
+                }
+                for (int j = 0; j < td.numFields(); j++) {
+                    tuples[i].getField(j).serialize(dos);
+                }
+            }
+            dos.write(new byte[BufferPool.getPageSize() - (INDEX_SIZE + header.length + numSlots * td.getSize())]);
+            dos.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the data of an empty bucket page
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) this.dirtier = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? dirtier : null;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HashBucketPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            if (oldDataRef == null) // not modified since the before image was set
+                oldDataRef = getPageData();
+            return new HashBucketPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            // null means the before image equals the current contents
+            oldData = null;
+        }
+    }
+
+    // copy out the before image before the first modification
+    private void snapshotBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null)
+                oldData = getPageData();
+        }
+    }
+
+    /**
+     * @return the page number of the next page of the bucket, or 0 if this
+     * is its last page
+     */
+    public int getNextPageNo() {
+        return nextPage;
+    }
+
+    /**
+     * Link the given page after this one in the bucket.
+     */
+    public void setNextPageNo(int pageNo) {
+        snapshotBeforeImage();
+        nextPage = pageNo;
+    }
+
+    /**
+     * Adds the tuple to the first empty slot of this page and sets its
+     * RecordId.
+     *
+     * @throws DbException if the page is full or the TupleDesc does not match
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in insertTuple");
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                snapshotBeforeImage();
+                markSlotUsed(i, true);
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+                return;
+            }
+        }
+        throw new DbException("called insertTuple on page with no empty slots.");
+    }
+
+    /**
+     * Deletes the tuple from this page and clears its RecordId.
+     *
+     * @throws DbException if the tuple is not on this page
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tried to delete tuple on invalid page or table");
+        if (!isSlotUsed(rid.getTupleNumber()))
+            throw new DbException("tried to delete null tuple.");
+        snapshotBeforeImage();
+        markSlotUsed(rid.getTupleNumber(), false);
+        tuples[rid.getTupleNumber()] = null;
+        t.setRecordId(null);
+    }
+
+    @Override
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    @Override
+    public int getSlotSize() {
+        return td.getSize();
+    }
+
+    @Override
+    public int getHeaderOffset() {
+        // after the next page pointer
+        return INDEX_SIZE;
+    }
+
+    @Override
+    public int getSlotOffset() {
+        return INDEX_SIZE + header.length;
+    }
+
+    @Override
+    public HashBucketPage withPageData(byte[] data) throws IOException {
+        return new HashBucketPage(pid, data);
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        int cnt = 0;
+        for (int i = 0; i < numSlots; i++)
+            if (!isSlotUsed(i))
+                cnt++;
+        return cnt;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return (header[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value)
+            header[i / 8] |= 1 << (i % 8);
+        else
+            header[i / 8] &= ~(1 << (i % 8));
+    }
+
+    /**
+     * @return the tuple in the given slot, or null if the slot is empty
+     */
+    Tuple getTuple(int slot) {
+        if (slot < 0 || slot >= numSlots)
+            throw new NoSuchElementException();
+        return isSlotUsed(slot) ? tuples[slot] : null;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this
+     * iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            private int slot = nextUsed(0);
+
+            private int nextUsed(int from) {
+                while (from < numSlots && !isSlotUsed(from))
+                    from++;
+                return from;
+            }
+
+            public boolean hasNext() {
+                return slot < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = tuples[slot];
+                slot = nextUsed(slot + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
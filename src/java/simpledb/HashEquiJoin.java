@@ -4,6 +4,11 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin builds a hash table from the left relation and probes it with
+ * each tuple of the right one.  If the left relation is a HashScan of a whole
+ * HashFile keyed on the join field, the file already is such a table, and the
+ * join probes it in place of building one.
  */
 public class HashEquiJoin extends Operator {
 
@@ -13,6 +18,9 @@ public class HashEquiJoin extends Operator {
     private TupleDesc comboTD;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
+    // the HashFile scanned by child1, probed instead of a hash table, or null
+    private HashScan buildIndex;
+    transient private DbFileIterator probe = null;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -30,6 +38,22 @@ public class HashEquiJoin extends Operator {
         this.child1 = child1;
         this.child2 = child2;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        buildIndex = getBuildIndex(p, child1);
+    }
+
+    /**
+     * @return the left child of a join with the given predicate, if it is a
+     * scan of a whole HashFile keyed on the join field, or null
+     */
+    static HashScan getBuildIndex(JoinPredicate p, OpIterator child1) {
+        if (p.getOperator() != Predicate.Op.EQUALS || !(child1 instanceof HashScan)) {
+            return null;
+        }
+        HashScan scan = (HashScan) child1;
+        if (scan.getIndexPredicate() != null || scan.getFile().keyField() != p.getField1()) {
+            return null;
+        }
+        return scan;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -75,7 +99,9 @@ public class HashEquiJoin extends Operator {
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        if (buildIndex == null) {
+            loadMap();
+        }
         super.open();
     }
 
@@ -87,11 +113,19 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -116,7 +150,11 @@ public class HashEquiJoin extends Operator {
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
         t1 = listIt.next();
+        return merge();
+    }
 
+    // the combined tuple of t1 and t2
+    private Tuple merge() {
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
 
@@ -131,6 +169,9 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (buildIndex != null) {
+            return probeNext();
+        }
         if (listIt != null && listIt.hasNext()) {
             return processList();
         }
@@ -159,6 +200,26 @@ public class HashEquiJoin extends Operator {
         return null;
     }
 
+    // the next match of t2 in the HashFile of child1, moving on through child2
+    private Tuple probeNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (probe != null && probe.hasNext()) {
+                t1 = probe.next();
+                return merge();
+            }
+            if (probe != null) {
+                probe.close();
+                probe = null;
+            }
+            if (!child2.hasNext()) {
+                return null;
+            }
+            t2 = child2.next();
+            probe = buildIndex.probe(t2.getField(pred.getField2()));
+            probe.open();
+        }
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child1, this.child2};
@@ -168,6 +229,7 @@ public class HashEquiJoin extends Operator {
     public void setChildren(OpIterator[] children) {
         this.child1 = children[0];
         this.child2 = children[1];
+        buildIndex = getBuildIndex(pred, child1);
     }
     
 }
@@ -0,0 +1,446 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * HashFile is a DbFile that stores tuples hashed on a key field, by linear
+ * hashing, so that finding the tuples with a given key reads a single bucket,
+ * usually a single page.  Page 0 is a HashHeaderPage holding the level, the
+ * next bucket to split, and the first page of each bucket; the other pages
+ * are HashBucketPages, chained into buckets.
+ *
+ * <p> An insert into a bucket whose pages are all full chains an overflow
+ * page to it and splits the bucket the header names next, moving the tuples
+ * whose hash now addresses the new bucket, so that the number of buckets grows
+ * with the file.  Operations that map a key to a bucket read the header page
+ * under a short-term latch (see BufferPool#latchPage) rather than locking it,
+ * and look again once they locked the first page of the bucket, in case a
+ * split or the abort of one changed the bucket meanwhile.  A split locks the
+ * header page for writing until its transaction ends, since an abort rolls it
+ * back, and it is skipped if another transaction holds that lock, so inserts
+ * never wait for it; the bucket is split by a later insert instead.  The
+ * split bucket pages stay locked by the splitting transaction, so readers of
+ * them wait for it to end.  Buckets are not merged when tuples are deleted,
+ * and splits stop once the header page can list no more buckets.
+ *
+ * @see HashHeaderPage
+ * @see HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+    private final DbFileChannel channel;
+
+    /**
+     * Constructs a hash file backed by the specified file.
+     *
+     * @param f   the file that stores the on-disk backing store for this file
+     * @param key the field the tuples are hashed on
+     * @param td  the tuple descriptor of tuples in the file
+     */
+    public HashFile(File f, int key, TupleDesc td) {
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+        this.channel = new DbFileChannel(f);
+    }
+
+    /**
+     * Returns the File backing this HashFile on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    @Override
+    public int getId() {
+        return tableid;
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the index of the field the tuples are hashed on
+     */
+    public int keyField() {
+        return keyField;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns the number of pages in this HashFile, including the header page.
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    @Override
+    public Page readPage(PageId pid) {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        try {
+            int retval = channel.read((long) pid.getPageNumber() * BufferPool.getPageSize(), data);
+            if (retval < BufferPool.getPageSize()) {
+                throw new IllegalArgumentException("Unable to read page " + pid.getPageNumber() + " from HashFile");
+            }
+            Debug.log(1, "HashFile.readPage: read page %d", pid.getPageNumber());
+            if (pid.getPageNumber() == 0) {
+                return new HashHeaderPage((HashPageId) pid, data);
+            }
+            return new HashBucketPage((HashPageId) pid, data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void writePage(Page page) throws IOException {
+        channel.write((long) page.getId().getPageNumber() * BufferPool.getPageSize(), page.getPageData());
+    }
+
+    /**
+     * @return the hash of a key; the low bits of it pick the bucket
+     */
+    static int hash(Field key) {
+        // spread the bits of keys that differ only in their high bits
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Write the header page and the page of the single bucket of a new file.
+     */
+    private synchronized void createIfEmpty() throws DbException {
+        if (f.length() == 0) {
+            try {
+                channel.write(0, HashHeaderPage.createInitialPageData());
+                channel.write(BufferPool.getPageSize(), HashBucketPage.createEmptyPageData());
+            } catch (IOException e) {
+                throw new DbException("could not create " + f + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return what read returns for the header page, which is latched for
+     * reading meanwhile
+     */
+    private int readHeader(ToIntFunction<HashHeaderPage> read) throws DbException {
+        BufferPool bp = Database.getBufferPool();
+        HashPageId hid = HashHeaderPage.getId(tableid);
+        createIfEmpty();
+        bp.latchPage(hid, Permissions.READ_ONLY);
+        try {
+            return read.applyAsInt((HashHeaderPage) bp.getLatchedPage(hid));
+        } finally {
+            bp.unlatchPage(hid, Permissions.READ_ONLY);
+        }
+    }
+
+    /**
+     * Lock the first page of a bucket, checking afterwards that the header
+     * page still names it; if not, the lock is released, unless the
+     * transaction held it before, and the header page read again.
+     *
+     * @param firstPage reads the number of the first page of the bucket from
+     *                  the header page, or 0 if there is no such bucket
+     * @return the page, or null if there is no such bucket
+     */
+    private HashBucketPage getFirstBucketPage(TransactionId tid, ToIntFunction<HashHeaderPage> firstPage,
+                                              Permissions perm) throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        while (true) {
+            int pageNo = readHeader(firstPage);
+            if (pageNo == 0) {
+                return null;
+            }
+            HashPageId pid = new HashPageId(tableid, pageNo);
+            boolean wasLocked = bp.holdsLock(tid, pid);
+            HashBucketPage page = getBucketPage(tid, pageNo, perm);
+            if (readHeader(firstPage) == pageNo) {
+                return page;
+            }
+            if (!wasLocked) {
+                bp.releasePage(tid, pid);
+            }
+        }
+    }
+
+    // reads the first page of the bucket of a key from the header page
+    private static ToIntFunction<HashHeaderPage> bucketOf(Field key) {
+        int hash = hash(key);
+        return header -> header.getBucketPageNo(header.getBucket(hash));
+    }
+
+    private HashBucketPage getBucketPage(TransactionId tid, int pageNo, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        return (HashBucketPage) Database.getBufferPool().getPage(tid, new HashPageId(tableid, pageNo), perm);
+    }
+
+    /**
+     * Append an empty bucket page to the file and lock it for writing.
+     */
+    private HashBucketPage newPage(TransactionId tid, Map<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        long position = channel.append(HashBucketPage.createEmptyPageData());
+        HashBucketPage page = getBucketPage(tid, (int) (position / BufferPool.getPageSize()), Permissions.READ_WRITE);
+        dirtypages.put(page.getId(), page);
+        return page;
+    }
+
+    /**
+     * Inserts the tuple into the first page of its bucket with an empty slot.
+     * If there is none, an overflow page is chained to the bucket, and the
+     * next bucket in turn is split, unless another transaction holds the
+     * lock on the header page.
+     */
+    @Override
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("type mismatch, in insertTuple");
+        }
+        Map<PageId, Page> dirtypages = new LinkedHashMap<PageId, Page>();
+        HashBucketPage page = getFirstBucketPage(tid, bucketOf(t.getField(keyField)), Permissions.READ_ONLY);
+        int pageNo = page.getId().getPageNumber();
+        while (true) {
+            if (page.getNumEmptySlots() > 0) {
+                page = getBucketPage(tid, pageNo, Permissions.READ_WRITE);
+                page.insertTuple(t);
+                dirtypages.put(page.getId(), page);
+                return new ArrayList<Page>(dirtypages.values());
+            }
+            if (page.getNextPageNo() == 0) {
+                break;
+            }
+            pageNo = page.getNextPageNo();
+            page = getBucketPage(tid, pageNo, Permissions.READ_ONLY);
+        }
+
+        page = getBucketPage(tid, pageNo, Permissions.READ_WRITE);
+        HashBucketPage overflow = newPage(tid, dirtypages);
+        page.setNextPageNo(overflow.getId().getPageNumber());
+        dirtypages.put(page.getId(), page);
+        overflow.insertTuple(t);
+        HashHeaderPage header = (HashHeaderPage) Database.getBufferPool().tryGetPage(tid,
+                HashHeaderPage.getId(tableid), Permissions.READ_WRITE);
+        if (header != null && header.getNumBuckets() < HashHeaderPage.getMaxBuckets()) {
+            split(tid, header, dirtypages);
+        }
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Split the bucket the header page names next: add a bucket, and move the
+     * tuples of the split bucket whose hash addresses the new bucket into it.
+     * The header page must be locked for writing; it is latched while the
+     * bucket is added.
+     */
+    private void split(TransactionId tid, HashHeaderPage header, Map<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        int bucket = header.getNext();
+        int newBucket = header.getNumBuckets();
+        HashBucketPage target = newPage(tid, dirtypages);
+        BufferPool bp = Database.getBufferPool();
+        bp.latchPage(header.getId(), Permissions.READ_WRITE);
+        try {
+            header.addBucket(target.getId().getPageNumber());
+        } finally {
+            bp.unlatchPage(header.getId(), Permissions.READ_WRITE);
+        }
+        dirtypages.put(header.getId(), header);
+
+        int pageNo = header.getBucketPageNo(bucket);
+        while (pageNo != 0) {
+            HashBucketPage page = getBucketPage(tid, pageNo, Permissions.READ_WRITE);
+            ArrayList<Tuple> moving = new ArrayList<Tuple>();
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+                Tuple t = it.next();
+                if (header.getBucket(hash(t.getField(keyField))) == newBucket) {
+                    moving.add(t);
+                }
+            }
+            for (Tuple t : moving) {
+                page.deleteTuple(t);
+                if (target.getNumEmptySlots() == 0) {
+                    HashBucketPage overflow = newPage(tid, dirtypages);
+                    target.setNextPageNo(overflow.getId().getPageNumber());
+                    target = overflow;
+                }
+                target.insertTuple(t);
+            }
+            if (!moving.isEmpty()) {
+                dirtypages.put(page.getId(), page);
+            }
+            pageNo = page.getNextPageNo();
+        }
+    }
+
+    /**
+     * Deletes the tuple from the page its RecordId names.  A split of its
+     * bucket later in the same transaction may have moved it, in which case
+     * the bucket is searched for a tuple with the same fields.
+     *
+     * @throws DbException if the tuple is not in the file
+     */
+    @Override
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> dirtypages = new ArrayList<Page>();
+        RecordId rid = t.getRecordId();
+        if (rid != null && rid.getPageId() instanceof HashPageId && rid.getPageId().getTableId() == tableid) {
+            HashBucketPage page = getBucketPage(tid, rid.getPageId().getPageNumber(), Permissions.READ_WRITE);
+            if (sameFields(page.getTuple(rid.getTupleNumber()), t)) {
+                page.deleteTuple(t);
+                dirtypages.add(page);
+                return dirtypages;
+            }
+        }
+
+        HashBucketPage page = getFirstBucketPage(tid, bucketOf(t.getField(keyField)), Permissions.READ_ONLY);
+        while (true) {
+            int pageNo = page.getId().getPageNumber();
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+                Tuple candidate = it.next();
+                if (sameFields(candidate, t)) {
+                    page = getBucketPage(tid, pageNo, Permissions.READ_WRITE);
+                    page.deleteTuple(candidate);
+                    t.setRecordId(null);
+                    dirtypages.add(page);
+                    return dirtypages;
+                }
+            }
+            if (page.getNextPageNo() == 0) {
+                throw new DbException("tuple " + t + " is not in the hash file");
+            }
+            page = getBucketPage(tid, page.getNextPageNo(), Permissions.READ_ONLY);
+        }
+    }
+
+    private static boolean sameFields(Tuple a, Tuple b) {
+        if (a == null || a.getTupleDesc().numFields() != b.getTupleDesc().numFields()) {
+            return false;
+        }
+        for (int i = 0; i < a.getTupleDesc().numFields(); i++) {
+            if (!a.getField(i).equals(b.getField(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return an iterator over all tuples of the file, bucket by bucket
+     */
+    @Override
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(tid, null);
+    }
+
+    /**
+     * Get an iterator over the tuples matching an index predicate.  An
+     * EQUALS predicate reads only the bucket of its key; any other is
+     * evaluated against every tuple.
+     *
+     * @param ipred the predicate on the key field
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new HashFileIterator(tid, ipred);
+    }
+
+    /**
+     * Iterator over the buckets of a HashFile, or over the bucket of a key.
+     */
+    private class HashFileIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        // the bucket being read, or -1 when reading the bucket of the key of ipred
+        private int bucket;
+        private HashBucketPage page;
+        private Iterator<Tuple> it;
+
+        HashFileIterator(TransactionId tid, IndexPredicate ipred) {
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            if (ipred != null && ipred.getOp() == Predicate.Op.EQUALS) {
+                bucket = -1;
+                page = getFirstBucketPage(tid, bucketOf(ipred.getField()), Permissions.READ_ONLY);
+            } else {
+                bucket = 0;
+                page = getFirstBucketPage(tid, header -> header.getBucketPageNo(0), Permissions.READ_ONLY);
+            }
+            it = page.iterator();
+        }
+
+        // the first page of the next bucket, or null if there is none; buckets
+        // added by splits since the scan began are read as well
+        private HashBucketPage nextBucket() throws DbException, TransactionAbortedException {
+            if (bucket < 0) {
+                return null;
+            }
+            int next = ++bucket;
+            return getFirstBucketPage(tid,
+                    header -> next < header.getNumBuckets() ? header.getBucketPageNo(next) : 0,
+                    Permissions.READ_ONLY);
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (it != null) {
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    if (ipred == null || t.getField(keyField).compare(ipred.getOp(), ipred.getField())) {
+                        return t;
+                    }
+                }
+                if (page.getNextPageNo() != 0) {
+                    page = getBucketPage(tid, page.getNextPageNo(), Permissions.READ_ONLY);
+                } else {
+                    page = nextBucket();
+                    if (page == null) {
+                        return null;
+                    }
+                }
+                it = page.iterator();
+            }
+            return null;
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            it = null;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashHeaderPage is page 0 of a HashFile.  It holds the state of the linear
+ * hashing scheme: the level, the next bucket to split, and a directory
+ * giving the page number of the first page of each bucket.  The file has
+ * 2^level + next buckets; see HashFile for how a key is mapped to one.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashHeaderPage implements Page {
+
+    private static final int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+    private final HashPageId pid;
+    private boolean dirty = false;
+    private TransactionId dirtier = null;
+    private volatile long lsn = 0;
+
+    private int level;
+    private int next;
+    private final int[] bucketPages;
+
+    private byte[] oldData;
+
+    /**
+     * Create a HashHeaderPage from a set of bytes of data read from disk.
+     * The format is an integer for the level, an integer for the next bucket
+     * to split, and then the page number of the first page of each bucket.
+     */
+    public HashHeaderPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        level = dis.readInt();
+        next = dis.readInt();
+        bucketPages = new int[getMaxBuckets()];
+        for (int i = 0; i < bucketPages.length; i++) {
+            bucketPages[i] = dis.readInt();
+        }
+        dis.close();
+        setBeforeImage();
+    }
+
+    /**
+     * @return the most buckets a HashFile can have
+     */
+    public static int getMaxBuckets() {
+        return (BufferPool.getPageSize() - 2 * INDEX_SIZE) / INDEX_SIZE;
+    }
+
+    /**
+     * @return the id of the header page of the given table
+     */
+    public static HashPageId getId(int tableid) {
+        return new HashPageId(tableid, 0);
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(level);
+            dos.writeInt(next);
+            for (int pageNo : bucketPages) {
+                dos.writeInt(pageNo);
+            }
+            dos.write(new byte[BufferPool.getPageSize() - (2 + bucketPages.length) * INDEX_SIZE]);
+            dos.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the data of the header page of a file with a single bucket,
+     * whose first page is page 1
+     */
+    public static byte[] createInitialPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        // level 0, next 0, bucket 0 on page 1
+        data[3 * INDEX_SIZE - 1] = 1;
+        return data;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) this.dirtier = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? dirtier : null;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HashHeaderPage getBeforeImage() {
+        try {
+            return new HashHeaderPage(pid, oldData);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        oldData = getPageData().clone();
+    }
+
+    /**
+     * @return the level: buckets before getNext() are addressed with
+     * level + 1 bits of the hash, the others with level bits
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the next bucket to split
+     */
+    public int getNext() {
+        return next;
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    public int getNumBuckets() {
+        return (1 << level) + next;
+    }
+
+    /**
+     * @return the bucket holding the keys with the given hash
+     */
+    public int getBucket(int hash) {
+        int bucket = hash & ((1 << level) - 1);
+        if (bucket < next) {
+            bucket = hash & ((1 << (level + 1)) - 1);
+        }
+        return bucket;
+    }
+
+    /**
+     * @return the page number of the first page of the given bucket
+     */
+    public int getBucketPageNo(int bucket) {
+        if (bucket < 0 || bucket >= getNumBuckets()) {
+            throw new IllegalArgumentException("no bucket " + bucket);
+        }
+        return bucketPages[bucket];
+    }
+
+    /**
+     * Record the split of bucket getNext(): the new bucket, numbered
+     * getNumBuckets(), starts at the given page, and the next bucket in
+     * turn is split next.
+     *
+     * @throws DbException if the file already has getMaxBuckets() buckets
+     */
+    public void addBucket(int pageNo) throws DbException {
+        int bucket = getNumBuckets();
+        if (bucket >= bucketPages.length) {
+            throw new DbException("hash file is at its maximum of " + bucketPages.length + " buckets");
+        }
+        bucketPages[bucket] = pageNo;
+        next++;
+        if (next == 1 << level) {
+            level++;
+            next = 0;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package simpledb;
+
+import java.util.Objects;
+
+/**
+ * Unique identifier for HashHeaderPage and HashBucketPage objects.  Page 0
+ * of a HashFile is its header page; every other page is a bucket page.
+ */
+public class HashPageId implements PageId {
+
+    private final int tableId, pageNumber;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific table.
+     *
+     * @param tableId The table that is being referenced
+     * @param pgNo    The page number in that table.
+     */
+    public HashPageId(int tableId, int pgNo) {
+        this.tableId = tableId;
+        this.pageNumber = pgNo;
+    }
+
+    /**
+     * @return the table associated with this PageId
+     */
+    @Override
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the page number in the table getTableId() associated with
+     * this PageId
+     */
+    @Override
+    public int getPageNumber() {
+        return pageNumber;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        HashPageId that = (HashPageId) o;
+        return tableId == that.tableId && pageNumber == that.pageNumber;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tableId, pageNumber, HashPageId.class);
+    }
+
+    @Override
+    public int[] serialize() {
+        return new int[]{tableId, pageNumber};
+    }
+
+    @Override
+    public String toString() {
+        return "HashPageId(" + tableId + ", " + pageNumber + ")";
+    }
+}
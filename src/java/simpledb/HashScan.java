@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * HashScan reads the tuples of a HashFile, either all of them, bucket by
+ * bucket, or those matching an index predicate; an EQUALS predicate on the
+ * key reads only the bucket of the key.
+ *
+ * @see HashFile
+ */
+public class HashScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+    private final TransactionId tid;
+    private final int tableid;
+    private final String tableAlias;
+    private final IndexPredicate ipred;
+
+    private transient DbFileIterator it;
+
+    /**
+     * Creates a scan over the specified HashFile as a part of the specified
+     * transaction.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan, which must be stored in a HashFile.
+     * @param tableAlias the alias of this table; the returned tupleDesc has
+     *                   fields with name tableAlias.fieldName, as for SeqScan.
+     * @param ipred      The index predicate to match. If null, the scan returns
+     *                   all tuples.
+     */
+    public HashScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.ipred = ipred;
+        HashFile file = getFile();
+        this.it = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+    }
+
+    /**
+     * @return return the table name of the table the operator scans.
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return Return the alias of the table this operator scans.
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the predicate the tuples are matched against, or null
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /**
+     * @return the HashFile the operator scans
+     */
+    public HashFile getFile() {
+        return (HashFile) Database.getCatalog().getDatabaseFile(tableid);
+    }
+
+    /**
+     * Get an iterator over the tuples of the scanned file with the given key,
+     * read in the same transaction as the scan; used to probe the file in
+     * place of a hash table built from the scan.
+     */
+    public DbFileIterator probe(Field key) {
+        return getFile().indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        it.open();
+    }
+
+    /**
+     * Returns the TupleDesc of the table, with field names prefixed with the
+     * tableAlias string from the constructor.
+     */
+    @Override
+    public TupleDesc getTupleDesc() {
+        TupleDesc tupleDesc = new TupleDesc(Database.getCatalog().getTupleDesc(tableid));
+        TupleDesc.TDItem tdItem;
+        Iterator<TupleDesc.TDItem> iterator = tupleDesc.iterator();
+        while (iterator.hasNext()) {
+            tdItem = iterator.next();
+            tdItem.fieldName = (getAlias() == null ? "null" : getAlias()) + '.' + (tdItem.fieldName == null ? "null" : tdItem.fieldName);
+        }
+        return tupleDesc;
+    }
+
+    @Override
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        return it.hasNext();
+    }
+
+    @Override
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        return it.next();
+    }
+
+    @Override
+    public void close() {
+        it.close();
+    }
+
+    @Override
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        it.rewind();
+    }
+}
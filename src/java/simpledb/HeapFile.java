@@ -1,8 +1,11 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -17,8 +20,15 @@ import java.util.NoSuchElementException;
  */
 public class HeapFile implements DbFile {
 
+    /** Number of pages a bulk load packs in memory and writes at once */
+    public static final int BULK_LOAD_BATCH_PAGES = 256;
+
     private File file;
     private TupleDesc tupleDesc;
+    private final DbFileChannel channel;
+    private volatile boolean memoryMapped;
+    // opened by the first insert
+    private volatile FreeSpaceMap freeSpace;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -29,6 +39,7 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         this.tupleDesc = td;
         this.file = f;
+        this.channel = new DbFileChannel(f);
     }
 
     /**
@@ -64,21 +75,47 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /**
+     * Turns the memory-mapped read path on or off. When on, readPage parses
+     * pages straight out of a read-only mapping of the file instead of
+     * copying each page into a fresh byte array. Writes are unaffected: dirty
+     * pages still reach the file through the BufferPool and writePage.
+     * Meant for large, rarely updated tables.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * @return true if pages are read through a memory mapping of the file
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
     // see DbFile.java for javadocs
     @Override
     public Page readPage(PageId pid) throws IllegalArgumentException {
         int pageSize = BufferPool.getPageSize();
-        byte[] pageData = new byte[pageSize];
-        HeapPage page;
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(getFile(), "r")) {
-            int position = pid.getPageNumber() * pageSize;
-            randomAccessFile.seek(position);
-            randomAccessFile.read(pageData, 0, pageSize);
-            page = new HeapPage((HeapPageId) pid, pageData);
+        try {
+            if (memoryMapped) {
+                ByteBuffer mapped = channel.map((long) pid.getPageNumber() * pageSize, pageSize);
+                if (mapped != null) {
+                    HeapPage page = new HeapPage((HeapPageId) pid, mapped);
+                    noteFreeSpace(page);
+                    return page;
+                }
+            }
+            byte[] pageData = new byte[pageSize];
+            if (channel.read((long) pid.getPageNumber() * pageSize, pageData) < pageSize) {
+                throw new IllegalArgumentException("page " + pid.getPageNumber() + " does not exist");
+            }
+            HeapPage page = new HeapPage((HeapPageId) pid, pageData);
+            noteFreeSpace(page);
+            return page;
         } catch (IOException e) {
-            throw new IllegalArgumentException();
+            throw new IllegalArgumentException(e);
         }
-        return page;
     }
 
     // see DbFile.java for javadocs
@@ -87,12 +124,84 @@ public class HeapFile implements DbFile {
         if (page.getId().getPageNumber() > numPages()) {
             throw new IllegalArgumentException();
         }
-        RandomAccessFile randomAccessFile = new RandomAccessFile(getFile(), "rw");
+        long position = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+        channel.write(position, page.getPageData());
+        noteFreeSpace(page);
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
         int pageSize = BufferPool.getPageSize();
-        int position = page.getId().getPageNumber() * pageSize;
-        randomAccessFile.seek(position);
-        randomAccessFile.write(page.getPageData());
-        randomAccessFile.close();
+        int start = 0;
+        while (start < pages.size()) {
+            int first = pages.get(start).getId().getPageNumber();
+            if (first > numPages()) {
+                throw new IllegalArgumentException();
+            }
+            int end = start + 1;
+            while (end < pages.size() && pages.get(end).getId().getPageNumber() == first + (end - start)) {
+                end++;
+            }
+            byte[] run = new byte[(end - start) * pageSize];
+            for (int i = start; i < end; i++) {
+                System.arraycopy(pages.get(i).getPageData(), 0, run, (i - start) * pageSize, pageSize);
+            }
+            channel.write((long) first * pageSize, run);
+            start = end;
+        }
+        for (Page page : pages) {
+            noteFreeSpace(page);
+        }
+        heapFileWritten();
+    }
+
+    /**
+     * Returns the free-space map of this file, opening it if needed.
+     */
+    private FreeSpaceMap freeSpaceMap() throws IOException {
+        FreeSpaceMap map = freeSpace;
+        if (map == null) {
+            synchronized (this) {
+                map = freeSpace;
+                if (map == null) {
+                    map = FreeSpaceMap.open(file, channel, tupleDesc);
+                    freeSpace = map;
+                }
+            }
+        }
+        return map;
+    }
+
+    // keeps an open free-space map in line with a page read or written
+    private void noteFreeSpace(Page page) {
+        FreeSpaceMap map = freeSpace;
+        if (map != null) {
+            map.setFree(page.getId().getPageNumber(), ((HeapPage) page).getNumEmptySlots() > 0);
+        }
+    }
+
+    private void heapFileWritten() {
+        FreeSpaceMap map = freeSpace;
+        if (map != null) {
+            map.heapFileWritten();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        FreeSpaceMap map;
+        synchronized (this) {
+            map = freeSpace;
+            freeSpace = null;
+        }
+        try {
+            if (map != null) {
+                map.close();
+            }
+        } finally {
+            channel.close();
+        }
     }
 
     /**
@@ -102,28 +211,150 @@ public class HeapFile implements DbFile {
         return (int) (file.length() / BufferPool.getPageSize());
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * Adds the tuple to a page the free-space map lists as having free
+     * slots, skipping pages other transactions hold locks on, so only the
+     * page the tuple goes to is locked. A new page is appended to the file
+     * if no listed page can take the tuple.
+     *
+     * @see FreeSpaceMap
+     */
     @Override
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         ArrayList<Page> pageList = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
+        FreeSpaceMap map = freeSpaceMap();
+        int numPages = numPages();
+        for (int i = map.nextFree(0); i >= 0 && i < numPages; i = map.nextFree(i + 1)) {
+            HeapPage page = (HeapPage) Database.getBufferPool().tryGetPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
+            if (page == null) {
+                continue;
+            }
             if (page.getNumEmptySlots() != 0) {
                 page.insertTuple(t);
+                map.setFree(i, page.getNumEmptySlots() > 0);
                 pageList.add(page);
                 return pageList;
             }
+            map.setFree(i, false);
         }
-        OutputStream out = new FileOutputStream(file, true);
-        out.write(HeapPage.createEmptyPageData());
-        out.flush();
-        out.close();
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), numPages() - 1), Permissions.READ_WRITE);
+        long position = channel.append(HeapPage.createEmptyPageData());
+        int pageNo = (int) (position / BufferPool.getPageSize());
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pageNo), Permissions.READ_WRITE);
         page.insertTuple(t);
+        map.setFree(pageNo, page.getNumEmptySlots() > 0);
         pageList.add(page);
         return pageList;
+    }
 
+    /**
+     * Appends the tuples of child to this file in new pages, bypassing the
+     * BufferPool. Tuples are packed into full pages in memory, and every
+     * {@link #BULK_LOAD_BATCH_PAGES} pages the file is extended by the whole
+     * batch, which is then written with one sequential write. The pages of a
+     * batch are locked for the transaction before the file grows, and the
+     * batch is logged with one BULK_LOAD record instead of page images; the
+     * file is forced before this method returns, so the tuples are durable
+     * once the transaction commits. If it aborts, its pages are emptied.
+     *
+     * @param tid   the transaction loading the tuples
+     * @param child an open iterator over the tuples to load
+     * @return the number of tuples loaded
+     * @throws DbException if a tuple does not match the TupleDesc of this file
+     * @see LogFile#logBulkLoad
+     */
+    public int bulkLoad(TransactionId tid, OpIterator child)
+            throws DbException, IOException, TransactionAbortedException {
+        int pageSize = BufferPool.getPageSize();
+        int numSlots = HeapPage.getNumTuples(tupleDesc);
+        int headerSize = HeapPage.getHeaderSize(tupleDesc);
+        int tupleSize = tupleDesc.getSize();
+        byte[] batch = new byte[BULK_LOAD_BATCH_PAGES * pageSize];
+        BatchOutputStream bytes = new BatchOutputStream(batch);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        int count = 0;
+        int pages = 0;
+        int slot = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (!t.getTupleDesc().equals(tupleDesc)) {
+                throw new DbException("tupleDesc mismatch");
+            }
+            int pageStart = pages * pageSize;
+            batch[pageStart + slot / 8] |= 1 << (slot % 8);
+            bytes.position = pageStart + headerSize + slot * tupleSize;
+            for (int i = 0; i < tupleDesc.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+            count++;
+            if (++slot == numSlots) {
+                slot = 0;
+                if (++pages == BULK_LOAD_BATCH_PAGES) {
+                    writeBatch(tid, batch, pages, true);
+                    Arrays.fill(batch, (byte) 0);
+                    pages = 0;
+                }
+            }
+        }
+        if (slot > 0) {
+            writeBatch(tid, batch, pages + 1, false);
+        } else if (pages > 0) {
+            writeBatch(tid, batch, pages, true);
+        }
+        channel.force();
+        return count;
+    }
+
+    // lock, log and write the first numPages pages of batch at the end of the file
+    private void writeBatch(TransactionId tid, byte[] batch, int numPages, boolean lastPageFull)
+            throws DbException, IOException {
+        int pageSize = BufferPool.getPageSize();
+        List<PageId> pids = new ArrayList<>();
+        long position;
+        // the pages must be locked before any other transaction can see them
+        synchronized (channel) {
+            int first = (int) (channel.size() / pageSize);
+            for (int i = 0; i < numPages; i++) {
+                PageId pid = new HeapPageId(getId(), first + i);
+                if (!Database.getBufferPool().tryLockPage(tid, pid, Permissions.READ_WRITE)) {
+                    throw new DbException("new page " + pid.getPageNumber() + " is locked by another transaction");
+                }
+                pids.add(pid);
+            }
+            position = channel.allocate((long) numPages * pageSize);
+        }
+        Database.getBufferPool().pagesWritten(tid, pids);
+        LogFile log = Database.getLogFile();
+        log.forceTo(log.logBulkLoad(tid, getId(), pids.get(0).getPageNumber(), numPages));
+        channel.write(position, numPages == BULK_LOAD_BATCH_PAGES ? batch : Arrays.copyOf(batch, numPages * pageSize));
+
+        FreeSpaceMap map = freeSpace;
+        if (map != null) {
+            map.setFree(pids.get(numPages - 1).getPageNumber(), !lastPageFull);
+            map.heapFileWritten();
+        }
+    }
+
+    // writes serialized fields into a batch of pages at a settable position
+    private static class BatchOutputStream extends OutputStream {
+        private final byte[] batch;
+        private int position;
+
+        BatchOutputStream(byte[] batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void write(int b) {
+            batch[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, batch, position, len);
+            position += len;
+        }
     }
 
     // see DbFile.java for javadocs
@@ -134,6 +365,7 @@ public class HeapFile implements DbFile {
         RecordId recordId = t.getRecordId();
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, recordId.getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
+        noteFreeSpace(page);
         pageList.add(page);
         return pageList;
     }
@@ -141,28 +373,45 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     @Override
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(tid);
+        return iterator(tid, AccessStrategy.NORMAL);
+    }
+
+    /**
+     * Returns an iterator over all the tuples stored in this HeapFile that
+     * fetches its pages from the BufferPool with the given access strategy.
+     *
+     * @see AccessStrategy
+     */
+    public DbFileIterator iterator(TransactionId tid, AccessStrategy strategy) {
+        return new HeapFileIterator(tid, strategy);
     }
 
     private class HeapFileIterator implements DbFileIterator {
         private Iterator<Tuple> iterator;
         private TransactionId transactionId;
+        private AccessStrategy strategy;
+        private ReadAhead readAhead;
         private int pagePosition = 0;
 
-        public HeapFileIterator(TransactionId tid) {
+        public HeapFileIterator(TransactionId tid, AccessStrategy strategy) {
             this.transactionId = tid;
+            this.strategy = strategy;
+            this.readAhead = new ReadAhead(getId(), strategy);
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
             pagePosition = 0;
+            readAhead.reset();
             iterator = getTupleIterator();
         }
 
         private Iterator<Tuple> getTupleIterator() throws TransactionAbortedException, DbException {
             HeapPageId heapPageId = new HeapPageId(getId(), pagePosition);
-            if (pagePosition >= 0 && pagePosition < numPages()) {
-                HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(transactionId, heapPageId, Permissions.READ_ONLY);
+            int numPages = numPages();
+            if (pagePosition >= 0 && pagePosition < numPages) {
+                readAhead.pageRequested(pagePosition, numPages);
+                HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(transactionId, heapPageId, Permissions.READ_ONLY, strategy);
                 return heapPage.iterator();
             } else {
                 throw new DbException("Page Position error");
@@ -210,6 +459,7 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             iterator = null;
+            readAhead.reset();
         }
     }
 
@@ -1,28 +1,43 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its contents in their on-disk format in a ByteBuffer.
+ * Tuples are decoded from their fixed slot offsets only when they are
+ * asked for, and insertTuple/deleteTuple patch the bytes of the header and
+ * the slot in place, so reading a page or writing it back out does not
+ * parse or re-serialize every tuple on it.
  *
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage {
 
     private final HeapPageId pid;
     private final TupleDesc td;
-    private final byte[] header;
-    private final Tuple[] tuples;
-    private int numSlots;
+    private final int numSlots;
+    private final int headerSize;
+    private final int tupleSize;
     private boolean dirty;
     private TransactionId dirtyId;
+    private volatile long lsn = 0;
+
+    /**
+     * The page contents, from offset 0. Until the page is first modified this
+     * may be the array it was created from; see {@link #makeWritable}.
+     */
+    private ByteBuffer data;
+    private boolean writable;
 
     byte[] oldData;
-    private final Byte oldDataLock = new Byte((byte) 0);
+    private final Object oldDataLock = new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -36,35 +51,47 @@ public class HeapPage implements Page {
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * The page reads straight out of data and copies it before it is first
+     * modified, so data must not be changed by the caller afterwards.
      *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data), false);
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the page's bytes, from its
+     * position on, e.g. a view of a memory-mapped file. The bytes are copied
+     * in one piece, without decoding any tuples, so the page never sees
+     * later changes to the buffer and does not touch a mapping again once
+     * the file may have been written or truncated.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, true);
+    }
+
+    private HeapPage(HeapPageId id, ByteBuffer data, boolean copy) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++) {
-            header[i] = dis.readByte();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        if (data.remaining() < BufferPool.getPageSize()) {
+            throw new EOFException("page " + id.getPageNumber() + " is truncated");
         }
-
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++) {
-                tuples[i] = readNextTuple(dis, i);
-            }
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        this.data = data.slice();
+        this.writable = false;
+        if (copy) {
+            makeWritable();
         }
-        dis.close();
 
-        setBeforeImage();
+        // the before image is the page as read; it is only copied out once
+        // the page is about to be modified (see snapshotBeforeImage)
     }
 
     /**
@@ -73,6 +100,13 @@ public class HeapPage implements Page {
      * @return the number of tuples on this page
      */
     private int getNumTuples() {
+        return getNumTuples(td);
+    }
+
+    /**
+     * @return the number of tuples on a page of a HeapFile with the given TupleDesc
+     */
+    static int getNumTuples(TupleDesc td) {
         return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
     }
 
@@ -82,7 +116,46 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
-        return (int) Math.ceil(this.getNumTuples() / 8.0);
+        return getHeaderSize(td);
+    }
+
+    /**
+     * @return the number of bytes in the header of a page of a HeapFile with the given TupleDesc
+     */
+    static int getHeaderSize(TupleDesc td) {
+        return (int) Math.ceil(getNumTuples(td) / 8.0);
+    }
+
+    /**
+     * @return the offset of the given slot in the page data
+     */
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
+    }
+
+    @Override
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    @Override
+    public int getSlotSize() {
+        return tupleSize;
+    }
+
+    @Override
+    public int getHeaderOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getSlotOffset() {
+        return headerSize;
+    }
+
+    @Override
+    public HeapPage withPageData(byte[] data) throws IOException {
+        return new HeapPage(pid, data);
     }
 
     /**
@@ -96,6 +169,10 @@ public class HeapPage implements Page {
             synchronized (oldDataLock) {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                // not modified since the before image was last set
+                oldDataRef = getPageData();
+            }
             return new HeapPage(pid, oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -108,7 +185,38 @@ public class HeapPage implements Page {
     @Override
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            // null means the before image equals the current contents
+            oldData = null;
+        }
+    }
+
+    /**
+     * Copies out the current contents as the before image, unless a before
+     * image is already held. Called before each modification of the page.
+     */
+    private void snapshotBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
+        }
+    }
+
+    /**
+     * Copies the page contents into a buffer owned by this page, unless that
+     * has already happened. Called before the page data is patched, so the
+     * array the page was created from is never written to, and by the
+     * constructor for a page created from a buffer.
+     */
+    private void makeWritable() {
+        if (!writable) {
+            ByteBuffer copy = ByteBuffer.allocate(BufferPool.getPageSize());
+            ByteBuffer src = data.duplicate();
+            src.position(0);
+            src.limit(BufferPool.getPageSize());
+            copy.put(src);
+            data = copy;
+            writable = true;
         }
     }
 
@@ -121,19 +229,11 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Decodes the tuple in the given slot, or returns null if the slot is
+     * empty.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
         if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
 
@@ -141,10 +241,12 @@ public class HeapPage implements Page {
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
+        int offset = slotOffset(slotId);
         try {
             for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+                Type type = td.getFieldType(j);
+                t.setField(j, type.parse(data, offset));
+                offset += type.getLen();
             }
         } catch (java.text.ParseException e) {
             e.printStackTrace();
@@ -154,6 +256,46 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /**
+     * @return the tuple in the given slot, or null if the slot is empty
+     */
+    Tuple getTuple(int slotId) {
+        if (slotId < 0 || slotId >= numSlots) {
+            throw new NoSuchElementException("no slot " + slotId + " on page " + pid);
+        }
+        return readTuple(slotId);
+    }
+
+    /**
+     * Writes the fields of t into the given slot.
+     */
+    private void writeTuple(int slotId, Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        ByteBuffer slot = data.duplicate();
+        slot.position(slotOffset(slotId));
+        slot.put(baos.toByteArray(), 0, tupleSize);
+    }
+
+    /**
+     * Zeroes the bytes of the given slot, which is how empty slots are stored.
+     */
+    private void clearTuple(int slotId) {
+        int offset = slotOffset(slotId);
+        for (int i = 0; i < tupleSize; i++) {
+            data.put(offset + i, (byte) 0);
+        }
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -167,64 +309,11 @@ public class HeapPage implements Page {
      */
     @Override
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        byte[] pageData = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.position(0);
+        src.get(pageData);
+        return pageData;
     }
 
     /**
@@ -251,22 +340,25 @@ public class HeapPage implements Page {
      */
     public void deleteTuple(Tuple t) throws DbException {
         RecordId recordId = t.getRecordId();
+        if (recordId == null || !recordId.getPageId().equals(this.pid)) {
+            throw new DbException("This tuple isn’t on this page.");
+        }
         int tupleNumber = recordId.getTupleNumber();
-        if (!recordId.getPageId().equals(this.pid)) {
+        if (tupleNumber < 0 || tupleNumber >= numSlots) {
             throw new DbException("This tuple isn’t on this page.");
         }
         if (!isSlotUsed(tupleNumber)) {
             throw new DbException("This tuple’s slot is already empty.");
         }
-        if (tuples[tupleNumber] == null) {
-            throw new DbException("This tuple isn’t on this page.");
-        }
         // 这里卡了半天不对，然后去看Tuple 发现没有equals 吐了
-        if (!tuples[tupleNumber].equals(t)) {
+        if (!readTuple(tupleNumber).equals(t)) {
             throw new DbException("This tuple isn’t on this page.");
 
         }
+        snapshotBeforeImage();
+        makeWritable();
         markSlotUsed(tupleNumber, false);
+        clearTuple(tupleNumber);
     }
 
     /**
@@ -288,12 +380,12 @@ public class HeapPage implements Page {
         while (isSlotUsed(tupleNumber)) {
             tupleNumber++;
         }
+        snapshotBeforeImage();
+        makeWritable();
         RecordId recordId = new RecordId(this.pid, tupleNumber);
         t.setRecordId(recordId);
+        writeTuple(tupleNumber, t);
         markSlotUsed(tupleNumber, true);
-        tuples[tupleNumber] = t;
-
-
     }
 
     /**
@@ -320,12 +412,22 @@ public class HeapPage implements Page {
 
     }
 
+    @Override
+    public long getLsn() {
+        return lsn;
+    }
+
+    @Override
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         int emptySlotsNumber = 0;
-        for (int i = 0; i < getNumTuples(); i++) {
+        for (int i = 0; i < numSlots; i++) {
             if (!isSlotUsed(i)) {
                 emptySlotsNumber++;
             }
@@ -339,7 +441,7 @@ public class HeapPage implements Page {
     public boolean isSlotUsed(int i) {
         int byteNumber = i / 8;
         int position = i % 8;
-        int bit = (header[byteNumber] << (7 - position)) & 0x80;
+        int bit = (data.get(byteNumber) << (7 - position)) & 0x80;
         return bit == 128;
     }
 
@@ -350,29 +452,27 @@ public class HeapPage implements Page {
         int byteNumber = i / 8;
         int position = i % 8;
         byte mask = (byte) (1 << position);
+        byte header = data.get(byteNumber);
         if (value) {
-            header[byteNumber] |= mask;
+            header |= mask;
         } else {
-            header[byteNumber] &= ~mask;
+            header &= ~mask;
         }
-
+        data.put(byteNumber, header);
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * Tuples are decoded as the iterator reaches them.
      */
     public Iterator<Tuple> iterator() {
         return new Iterator<Tuple>() {
-            int index = 0;
-            int count = 0;
-            int totalTupleCount = getNumTuples();
-            int tupleNumber = totalTupleCount - getNumEmptySlots();
+            int index = nextUsedSlot(0);
 
             @Override
-
             public boolean hasNext() {
-                return index < totalTupleCount && count < tupleNumber;
+                return index < numSlots;
             }
 
             @Override
@@ -380,14 +480,23 @@ public class HeapPage implements Page {
                 if (!hasNext()) {
                     throw new NoSuchElementException();
                 }
-                while (!isSlotUsed(index)) {
-                    index++;
-                }
-                count++;
-                return tuples[index++];
+                Tuple t = readTuple(index);
+                index = nextUsedSlot(index + 1);
+                return t;
             }
         };
     }
 
+    /**
+     * @return the first used slot at or after from, or numSlots if there is none
+     */
+    private int nextUsedSlot(int from) {
+        int i = from;
+        while (i < numSlots && !isSlotUsed(i)) {
+            i++;
+        }
+        return i;
+    }
+
 }
 
@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * IndexScan reads the tuples of a table through one of its secondary indexes:
+ * it walks the index entries matching an index predicate, in key order or in
+ * reverse key order, and fetches the tuple each entry points to.  A covering
+ * scan does not fetch the tuples: it returns what the entries hold, which
+ * suffices when only the indexed and included fields of the index are read.
+ *
+ * @see SecondaryIndex
+ */
+public class IndexScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final String tableAlias;
+    private final IndexPredicate ipred;
+    private final boolean reverse;
+    private final boolean covering;
+
+    private transient DbFileIterator entries;
+
+    /**
+     * Creates a scan of a table through a secondary index as a part of the
+     * specified transaction.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param index      the index to read the table through.
+     * @param tableAlias the alias of the table; the returned tupleDesc has fields
+     *                   with name tableAlias.fieldName, as for SeqScan.
+     * @param ipred      the predicate on the indexed field to match. If null, the
+     *                   scan returns all tuples of the table.
+     * @param reverse    whether to return the tuples in descending instead of
+     *                   ascending order of the indexed field.
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+                     IndexPredicate ipred, boolean reverse) {
+        this(tid, index, tableAlias, ipred, reverse, false);
+    }
+
+    /**
+     * Creates a scan of a table through a secondary index as a part of the
+     * specified transaction.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param index      the index to read the table through.
+     * @param tableAlias the alias of the table; the returned tupleDesc has fields
+     *                   with name tableAlias.fieldName, as for SeqScan.
+     * @param ipred      the predicate on the indexed field to match. If null, the
+     *                   scan returns all tuples of the table.
+     * @param reverse    whether to return the tuples in descending instead of
+     *                   ascending order of the indexed field.
+     * @param covering   whether to return the tuples as the index entries hold
+     *                   them, without reading the table; the fields of the
+     *                   table that are neither indexed nor included are null.
+     * @see SecondaryIndex#getTuple
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+                     IndexPredicate ipred, boolean reverse, boolean covering) {
+        this.tid = tid;
+        this.index = index;
+        this.tableAlias = tableAlias;
+        this.ipred = ipred;
+        this.reverse = reverse;
+        this.covering = covering;
+        BTreeFile file = index.getFile();
+        if (ipred == null) {
+            this.entries = reverse ? file.reverseIterator(tid) : file.iterator(tid);
+        } else {
+            this.entries = reverse ? file.indexReverseIterator(tid, ipred) : file.indexIterator(tid, ipred);
+        }
+    }
+
+    /**
+     * @return return the table name of the table the operator scans.
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return Return the alias of the table this operator scans.
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the index the operator reads the table through
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate the index entries are matched against, or null
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /**
+     * @return whether the tuples come in descending order of the indexed field
+     */
+    public boolean isReverse() {
+        return reverse;
+    }
+
+    /**
+     * @return whether the tuples are taken from the index entries alone
+     */
+    public boolean isCovering() {
+        return covering;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        entries.open();
+    }
+
+    /**
+     * Returns the TupleDesc of the table, with field names prefixed with the
+     * tableAlias string from the constructor.
+     */
+    @Override
+    public TupleDesc getTupleDesc() {
+        TupleDesc tupleDesc = new TupleDesc(Database.getCatalog().getTupleDesc(index.getTableId()));
+        TupleDesc.TDItem tdItem;
+        Iterator<TupleDesc.TDItem> iterator = tupleDesc.iterator();
+        while (iterator.hasNext()) {
+            tdItem = iterator.next();
+            tdItem.fieldName = (getAlias() == null ? "null" : getAlias()) + '.' + (tdItem.fieldName == null ? "null" : tdItem.fieldName);
+        }
+        return tupleDesc;
+    }
+
+    @Override
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        return entries.hasNext();
+    }
+
+    @Override
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        Tuple entry = entries.next();
+        if (covering) {
+            return index.getTuple(entry);
+        }
+        RecordId rid = index.getRecordId(entry);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+        Tuple t = page.getTuple(rid.getTupleNumber());
+        if (t == null) {
+            throw new DbException("index " + index.getName() + " points to empty slot " + rid);
+        }
+        return t;
+    }
+
+    @Override
+    public void close() {
+        entries.close();
+    }
+
+    @Override
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        entries.rewind();
+    }
+}
@@ -12,6 +12,7 @@ public class Insert extends Operator {
     private TransactionId transactionId;
     private OpIterator opIterator;
     private int tableId;
+    private boolean bulkLoad;
     private TupleDesc tupleDesc;
     private boolean first;
     private int count;
@@ -27,6 +28,24 @@ public class Insert extends Operator {
      */
     public Insert(TransactionId t, OpIterator child, int tableId)
             throws DbException {
+        this(t, child, tableId, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param t        The transaction running the insert.
+     * @param child    The child operator from which to read tuples to be inserted.
+     * @param tableId  The table in which to insert tuples.
+     * @param bulkLoad Whether to append the tuples to a HeapFile table with
+     *                 {@link HeapFile#bulkLoad} instead of inserting them one
+     *                 by one through the BufferPool.  Ignored for tables with
+     *                 secondary indexes, which bulk loads would not maintain.
+     * @throws DbException if TupleDesc of child differs from table into which we are to
+     *                     insert.
+     */
+    public Insert(TransactionId t, OpIterator child, int tableId, boolean bulkLoad)
+            throws DbException {
         if (!child.getTupleDesc().equals(Database.getCatalog().getTupleDesc(tableId))) {
             throw new DbException("tupleDesc mismatch");
         }
@@ -34,6 +53,7 @@ public class Insert extends Operator {
 
         this.opIterator = child;
         this.tableId = tableId;
+        this.bulkLoad = bulkLoad;
         this.tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{"count"});
         this.first = true;
         this.count = 0;
@@ -82,13 +102,24 @@ public class Insert extends Operator {
             return null;
         }
         first = false;
-        while (opIterator.hasNext()) {
-            Tuple tuple = opIterator.next();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (bulkLoad && file instanceof HeapFile && Database.getCatalog().getIndexes(tableId).isEmpty()) {
             try {
-                Database.getBufferPool().insertTuple(transactionId, tableId, tuple);
-                count++;
+                count = ((HeapFile) file).bulkLoad(transactionId, opIterator);
             } catch (IOException e) {
-                e.printStackTrace();
+                DbException failed = new DbException("bulk load failed: " + e.getMessage());
+                failed.initCause(e);
+                throw failed;
+            }
+        } else {
+            while (opIterator.hasNext()) {
+                Tuple tuple = opIterator.next();
+                try {
+                    Database.getBufferPool().insertTuple(transactionId, tableId, tuple);
+                    count++;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
         }
         Tuple tuple = new Tuple(tupleDesc);
@@ -68,7 +68,12 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (HashEquiJoin.getBuildIndex(p, plan1) != null) {
+            // the HashFile plan1 scans is probed in place
+            j = new HashEquiJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K (O'Neil et al.) evicts the page whose K-th most recent reference is
+ * the oldest. Pages referenced fewer than K times have an infinite backward
+ * distance and go first, in LRU order, so a one-off scan cannot push out
+ * pages that are touched over and over (e.g. B+ tree internal pages).
+ * <p>
+ * Resident pages are kept ordered by backward K-distance, so a hit or an
+ * eviction costs O(log n) instead of a scan of the pool. The reference
+ * history of recently evicted pages is retained for a while, so a page that
+ * comes straight back is not treated as cold.
+ */
+public class LRUKEvictionPolicy implements EvictionPolicy {
+
+    private static class History {
+        final PageId pid;
+        // reference times, most recent first
+        final long[] times;
+        int count;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        long kthReference() {
+            return count < times.length ? Long.MIN_VALUE : times[times.length - 1];
+        }
+    }
+
+    private static final Comparator<History> BACKWARD_DISTANCE = new Comparator<History>() {
+        @Override
+        public int compare(History a, History b) {
+            int c = Long.compare(a.kthReference(), b.kthReference());
+            if (c != 0) {
+                return c;
+            }
+            // the reference clock is unique, so this never ties for distinct pages
+            return Long.compare(a.times[0], b.times[0]);
+        }
+    };
+
+    private final int k;
+    private long clock = 0;
+    private final HashMap<PageId, History> resident = new HashMap<>();
+    private final TreeSet<History> order = new TreeSet<>(BACKWARD_DISTANCE);
+    private final LinkedHashMap<PageId, History> retained;
+
+    /**
+     * @param k        the number of references to remember per page
+     * @param numPages the capacity of the buffer pool; as many histories of
+     *                 evicted pages are retained
+     */
+    public LRUKEvictionPolicy(int k, int numPages) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        final int retainedCapacity = Math.max(numPages, 1);
+        this.retained = new LinkedHashMap<PageId, History>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, History> eldest) {
+                return size() > retainedCapacity;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void pageAdmitted(PageId pid) {
+        History history = resident.get(pid);
+        if (history == null) {
+            history = retained.remove(pid);
+            if (history == null) {
+                history = new History(pid, k);
+            }
+            resident.put(pid, history);
+        } else {
+            order.remove(history);
+        }
+        reference(history);
+        order.add(history);
+    }
+
+    @Override
+    public synchronized void pageAccessed(PageId pid) {
+        History history = resident.get(pid);
+        if (history != null) {
+            order.remove(history);
+            reference(history);
+            order.add(history);
+        }
+    }
+
+    @Override
+    public synchronized void pageRemoved(PageId pid) {
+        History history = resident.remove(pid);
+        if (history != null) {
+            order.remove(history);
+            retained.put(pid, history);
+        }
+    }
+
+    @Override
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        for (History history : order) {
+            if (evictable.canEvict(history.pid)) {
+                return history.pid;
+            }
+        }
+        return null;
+    }
+
+    private void reference(History history) {
+        System.arraycopy(history.times, 0, history.times, 1, history.times.length - 1);
+        history.times[0] = clock++;
+        history.count = Math.min(history.count + 1, history.times.length);
+    }
+}
@@ -0,0 +1,522 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * LockManager keeps the shared and exclusive page locks of transactions on
+ * behalf of the BufferPool.
+ * <p>
+ * A transaction that cannot be granted a lock is parked on a queue of the
+ * page and woken up when a lock on that page is released. Before parking,
+ * the lock manager looks for a cycle through the transaction in the wait-for
+ * graph, in which each waiting transaction points at the holders of the page
+ * it waits for. If there is one, the {@link VictimPolicy} picks a
+ * transaction of the cycle, which is woken up (if it is not the caller) and
+ * aborted with a TransactionAbortedException. Transactions that wait without
+ * being deadlocked are never aborted.
+ * <p>
+ * The lock table is split into stripes by page, each with its own latch, so
+ * threads locking different pages rarely contend. Each transaction also has
+ * a lock set of the pages it holds, which answers holdsLock and lets a
+ * transaction re-acquire a lock it already holds without taking any latch.
+ * Only deadlock detection latches all stripes. It runs when a transaction
+ * is about to wait, and again after a wakeup only if the transaction now
+ * waits for a holder it did not wait for before: a cycle can only be closed
+ * by a new wait-for edge, and the transaction adding the edge looks for it.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /**
+     * Chooses which transaction of a wait-for cycle gets aborted.
+     */
+    public enum VictimPolicy {
+        /**
+         * Abort the transaction that began last, which has likely done the
+         * least work.
+         */
+        YOUNGEST {
+            @Override
+            TransactionId choose(List<TransactionId> cycle, ToIntFunction<TransactionId> locksHeld) {
+                TransactionId victim = cycle.get(0);
+                for (TransactionId tid : cycle) {
+                    if (tid.getId() > victim.getId()) {
+                        victim = tid;
+                    }
+                }
+                return victim;
+            }
+        },
+        /**
+         * Abort the transaction holding the fewest locks, which frees up the
+         * fewest pages but loses the least work; ties go to the youngest.
+         */
+        FEWEST_LOCKS {
+            @Override
+            TransactionId choose(List<TransactionId> cycle, ToIntFunction<TransactionId> locksHeld) {
+                TransactionId victim = null;
+                int fewest = Integer.MAX_VALUE;
+                for (TransactionId tid : cycle) {
+                    int held = locksHeld.applyAsInt(tid);
+                    if (held < fewest || (held == fewest && tid.getId() > victim.getId())) {
+                        victim = tid;
+                        fewest = held;
+                    }
+                }
+                return victim;
+            }
+        };
+
+        /**
+         * @param cycle     the transactions of the cycle, in wait-for order
+         * @param locksHeld the number of locks a transaction holds
+         * @return the transaction to abort
+         */
+        abstract TransactionId choose(List<TransactionId> cycle, ToIntFunction<TransactionId> locksHeld);
+
+        /**
+         * Returns the policy with the given name: "youngest" or
+         * "fewest-locks", case-insensitive.
+         *
+         * @throws IllegalArgumentException if the name is unknown
+         */
+        public static VictimPolicy fromName(String name) {
+            switch (name.toLowerCase()) {
+                case "youngest":
+                    return YOUNGEST;
+                case "fewest-locks":
+                case "fewest_locks":
+                    return FEWEST_LOCKS;
+                default:
+                    throw new IllegalArgumentException("unknown deadlock victim policy " + name);
+            }
+        }
+    }
+
+    /**
+     * The default number of stripes of the lock table.
+     */
+    public static final int DEFAULT_STRIPES = 16;
+
+    /**
+     * The lock state of one page.
+     */
+    private static class PageLock {
+        /**
+         * Transactions holding the lock, mapped to true if they hold it
+         * exclusively.
+         */
+        final Map<TransactionId, Boolean> holders = new HashMap<>();
+        /**
+         * Signalled whenever the holders change; the transactions waiting for
+         * the page are parked on it.
+         */
+        final Condition released;
+        int waiters;
+
+        PageLock(Condition released) {
+            this.released = released;
+        }
+    }
+
+    /**
+     * One partition of the lock table. Its latch guards its page locks.
+     */
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<PageId, PageLock> pageLocks = new HashMap<>();
+    }
+
+    /**
+     * What a parked transaction is waiting for.
+     */
+    private static class Wait {
+        final PageLock lock;
+        final boolean exclusive;
+
+        Wait(PageLock lock, boolean exclusive) {
+            this.lock = lock;
+            this.exclusive = exclusive;
+        }
+    }
+
+    private final Stripe[] stripes;
+    /**
+     * The pages each transaction holds a lock on, mapped to true for
+     * exclusive locks. Entries are changed under the latch of the page's
+     * stripe but may be read without it.
+     */
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Boolean>> lockSets =
+            new ConcurrentHashMap<>();
+    /**
+     * Parked transactions; changed under the latch of the stripe of the page
+     * waited for, so it is stable while all stripes are latched.
+     */
+    private final ConcurrentHashMap<TransactionId, Wait> waiting = new ConcurrentHashMap<>();
+    /**
+     * Waiting transactions chosen as deadlock victims, which abort as soon as
+     * they wake up.
+     */
+    private final Set<TransactionId> victims = ConcurrentHashMap.newKeySet();
+    private volatile VictimPolicy victimPolicy;
+    /**
+     * The number of times deadlock detection has run.
+     */
+    private final AtomicLong detections = new AtomicLong();
+
+    public LockManager(VictimPolicy victimPolicy) {
+        this(victimPolicy, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param victimPolicy how to choose the transaction to abort on a deadlock
+     * @param numStripes   the number of partitions of the lock table
+     */
+    public LockManager(VictimPolicy victimPolicy, int numStripes) {
+        this.victimPolicy = victimPolicy;
+        this.stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    public void setVictimPolicy(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
+    }
+
+    private Stripe stripeFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= h >>> 16;
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * Acquires a lock on the page for the transaction, blocking until it is
+     * granted. A shared lock is requested for READ_ONLY and an exclusive one
+     * for READ_WRITE; a shared lock held alone is upgraded. A lock that is
+     * already held is re-acquired without blocking.
+     *
+     * @throws TransactionAbortedException if the transaction is chosen as
+     *                                     the victim of a deadlock
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        Map<PageId, Boolean> lockSet = lockSets.get(tid);
+        if (lockSet != null) {
+            Boolean held = lockSet.get(pid);
+            if (held != null && (held || !exclusive)) {
+                return;
+            }
+        }
+
+        Stripe stripe = stripeFor(pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.pageLocks.get(pid);
+            if (lock == null) {
+                lock = new PageLock(stripe.latch.newCondition());
+                stripe.pageLocks.put(pid, lock);
+            }
+            if (grant(lock, tid, pid, exclusive)) {
+                return;
+            }
+            Wait wait = new Wait(lock, exclusive);
+            lock.waiters++;
+            try {
+                // the transactions tid waited for when it last looked for a cycle
+                Set<TransactionId> checked = null;
+                while (true) {
+                    if (victims.remove(tid)) {
+                        throw new TransactionAbortedException();
+                    }
+                    if (grant(lock, tid, pid, exclusive)) {
+                        return;
+                    }
+                    // only a new edge out of tid can close a cycle through it;
+                    // a wakeup that merely removed edges needs no detection
+                    Set<TransactionId> blockers = blockers(lock, tid, exclusive);
+                    if (checked == null || !checked.containsAll(blockers)) {
+                        // detection latches every stripe in order, so let go of
+                        // ours first; the loop re-checks the lock afterwards
+                        waiting.put(tid, wait);
+                        stripe.latch.unlock();
+                        try {
+                            resolveDeadlock(tid);
+                        } finally {
+                            stripe.latch.lock();
+                        }
+                        checked = blockers;
+                        continue;
+                    }
+                    lock.released.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransactionAbortedException();
+            } finally {
+                waiting.remove(tid, wait);
+                lock.waiters--;
+                dropIfUnused(stripe, pid, lock);
+            }
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Acquires a lock on the page for the transaction like {@link #acquire},
+     * but only if it can be granted without waiting.
+     *
+     * @return true if the transaction holds the lock now
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, Permissions perm) {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        Map<PageId, Boolean> lockSet = lockSets.get(tid);
+        if (lockSet != null) {
+            Boolean held = lockSet.get(pid);
+            if (held != null && (held || !exclusive)) {
+                return true;
+            }
+        }
+
+        Stripe stripe = stripeFor(pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.pageLocks.get(pid);
+            if (lock == null) {
+                lock = new PageLock(stripe.latch.newCondition());
+                stripe.pageLocks.put(pid, lock);
+            }
+            boolean granted = grant(lock, tid, pid, exclusive);
+            if (!granted) {
+                dropIfUnused(stripe, pid, lock);
+            }
+            return granted;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Releases the lock of the transaction on the page, if it holds one.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        stripe.latch.lock();
+        try {
+            Map<PageId, Boolean> lockSet = lockSets.get(tid);
+            if (lockSet != null) {
+                lockSet.remove(pid);
+            }
+            releaseLatched(stripe, tid, pid);
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Releases all locks held by the transaction.
+     */
+    public void releaseAll(TransactionId tid) {
+        Map<PageId, Boolean> lockSet = lockSets.remove(tid);
+        if (lockSet != null) {
+            for (PageId pid : lockSet.keySet()) {
+                Stripe stripe = stripeFor(pid);
+                stripe.latch.lock();
+                try {
+                    releaseLatched(stripe, tid, pid);
+                } finally {
+                    stripe.latch.unlock();
+                }
+            }
+        }
+        victims.remove(tid);
+    }
+
+    private void releaseLatched(Stripe stripe, TransactionId tid, PageId pid) {
+        PageLock lock = stripe.pageLocks.get(pid);
+        if (lock != null && lock.holders.remove(tid) != null) {
+            lock.released.signalAll();
+            dropIfUnused(stripe, pid, lock);
+        }
+    }
+
+    /**
+     * @return true if the transaction holds a lock on the page
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Map<PageId, Boolean> lockSet = lockSets.get(tid);
+        return lockSet != null && lockSet.containsKey(pid);
+    }
+
+    /**
+     * @return true if the transaction holds an exclusive lock on the page
+     */
+    public boolean holdsExclusiveLock(TransactionId tid, PageId pid) {
+        Map<PageId, Boolean> lockSet = lockSets.get(tid);
+        return lockSet != null && Boolean.TRUE.equals(lockSet.get(pid));
+    }
+
+    /**
+     * @return the pages the transaction holds a lock on
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Map<PageId, Boolean> lockSet = lockSets.get(tid);
+        if (lockSet == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(lockSet.keySet());
+    }
+
+    /**
+     * Grants the lock if it is compatible with the locks held by other
+     * transactions. Called with the latch of the page's stripe held.
+     *
+     * @return true if the transaction now holds the lock
+     */
+    private boolean grant(PageLock lock, TransactionId tid, PageId pid, boolean exclusive) {
+        Boolean held = lock.holders.get(tid);
+        if (held != null && (held || !exclusive)) {
+            return true;
+        }
+        for (Map.Entry<TransactionId, Boolean> holder : lock.holders.entrySet()) {
+            if (!holder.getKey().equals(tid) && (exclusive || holder.getValue())) {
+                return false;
+            }
+        }
+        lock.holders.put(tid, exclusive);
+        lockSets.computeIfAbsent(tid, t -> new ConcurrentHashMap<>()).put(pid, exclusive);
+        return true;
+    }
+
+    /**
+     * @return the holders of the lock that keep tid from being granted it,
+     * its edges in the wait-for graph. Called with the latch of the page's
+     * stripe held.
+     */
+    private static Set<TransactionId> blockers(PageLock lock, TransactionId tid, boolean exclusive) {
+        Set<TransactionId> blockers = new HashSet<>();
+        for (Map.Entry<TransactionId, Boolean> holder : lock.holders.entrySet()) {
+            if (!holder.getKey().equals(tid) && (exclusive || holder.getValue())) {
+                blockers.add(holder.getKey());
+            }
+        }
+        return blockers;
+    }
+
+    private void dropIfUnused(Stripe stripe, PageId pid, PageLock lock) {
+        if (lock.holders.isEmpty() && lock.waiters == 0) {
+            stripe.pageLocks.remove(pid, lock);
+        }
+    }
+
+    /**
+     * Checks whether the transaction, which has registered itself as
+     * waiting, closes cycles in the wait-for graph, and if so picks a victim
+     * on each until none is left. A victim other than the caller is woken up
+     * to abort itself.
+     * Latches all stripes, in order, so the graph cannot change meanwhile;
+     * the caller must not hold any of them.
+     *
+     * @throws TransactionAbortedException if the caller is the victim
+     */
+    private void resolveDeadlock(TransactionId tid) throws TransactionAbortedException {
+        detections.incrementAndGet();
+        for (Stripe stripe : stripes) {
+            stripe.latch.lock();
+        }
+        try {
+            // the transaction may close several cycles at once
+            List<TransactionId> cycle;
+            while ((cycle = findCycle(tid)) != null) {
+                TransactionId victim = victimPolicy.choose(cycle, this::locksHeld);
+                if (victim.equals(tid)) {
+                    throw new TransactionAbortedException();
+                }
+                victims.add(victim);
+                waiting.get(victim).lock.released.signalAll();
+            }
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the transactions on a cycle of the wait-for graph through tid,
+     * starting with tid, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId tid) {
+        Deque<TransactionId> path = new ArrayDeque<>();
+        Set<TransactionId> visited = new HashSet<>();
+        visited.add(tid);
+        if (findPath(tid, tid, visited, path)) {
+            return new ArrayList<>(path);
+        }
+        return null;
+    }
+
+    /**
+     * Depth-first search of the wait-for graph for a path from tid back to
+     * target, which is collected in path. Victims already chosen are about
+     * to abort and release their locks, so they wait for nothing: a cycle
+     * through one is being broken up, and one that survives its abort is
+     * found here, since the waiters on it need not look again.
+     */
+    private boolean findPath(TransactionId tid, TransactionId target, Set<TransactionId> visited,
+                             Deque<TransactionId> path) {
+        Wait wait = waiting.get(tid);
+        if (wait == null || victims.contains(tid)) {
+            return false;
+        }
+        path.addLast(tid);
+        for (Map.Entry<TransactionId, Boolean> holder : wait.lock.holders.entrySet()) {
+            TransactionId blocker = holder.getKey();
+            if (blocker.equals(tid) || !(wait.exclusive || holder.getValue())) {
+                continue;
+            }
+            if (blocker.equals(target)) {
+                return true;
+            }
+            if (visited.add(blocker) && findPath(blocker, target, visited, path)) {
+                return true;
+            }
+        }
+        path.removeLast();
+        return false;
+    }
+
+    /**
+     * @return the number of times deadlock detection has run
+     */
+    long getDetectionCount() {
+        return detections.get();
+    }
+
+    /**
+     * @return the number of page locks held by the transaction
+     */
+    private int locksHeld(TransactionId tid) {
+        Map<PageId, Boolean> lockSet = lockSets.get(tid);
+        return lockSet == null ? 0 : lockSet.size();
+    }
+}
@@ -4,6 +4,12 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,20 +45,22 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file itself only holds a long integer, the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files of a fixed size next
+to the log file, see SegmentedLog.  The LSN of a record is its position
+in the sequence of all records ever written, and does not change when
+the log is truncated.  Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing the
+position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, SLOT_UPDATE,
+BULK_LOAD, BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,20 +69,60 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li> SLOT_UPDATE records describe an update that only filled, emptied
+or overwrote slots of a SlottedPage, such as a tuple insert or delete,
+as the changed slots with their contents before and after it; see
+SlotUpdate.write() for the format.  logWrite() writes one instead of an
+UPDATE record whenever it is smaller than the two page images.
+
+<li> BULK_LOAD records consist of an integer table id, the integer
+number of the first page and the integer number of pages a bulk load
+wrote to the end of a HeapFile without logging their contents; see
+logBulkLoad().  The pages are forced to disk before the transaction
+commits, so they are never redone; undoing the record empties them.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id and a long integer first record LSN
+for each active transaction.  Checkpoints are fuzzy, so the record then
+holds the dirty page table: an integer count of pages, and for each page
+its id (see writePageId) and the long integer LSN of the first UPDATE
+record recovery has to redo for it.
 
 </ul>
 
+<p> <u> Log buffer and LSNs: </u>
+<p>
+
+Records are appended to an in-memory log tail and written to the
+segment files in large sequential chunks: when the tail fills up, when
+the log is forced, and before the log is read.  Every record has a log sequence
+number (LSN), its position in the log as if the log had never been
+truncated; LSNs grow monotonically and stay valid across {@link
+#logTruncate}.  {@link #logWrite} returns the LSN of the UPDATE record,
+which the BufferPool stores as the page LSN, and {@link #forceTo}
+forces the log only if that record is not durable yet.
+
+<p> <u> Group commit: </u>
+<p>
+
+By default every commit forces the log itself.  With group commit
+enabled (see {@link #setGroupCommit}), a committing transaction only
+appends its COMMIT record and then waits; a single flusher thread
+forces the log once for all the commits appended since the previous
+force and releases their waiters together.  The flusher forces as soon
+as the batch reaches its maximum size, or once the batch window has
+passed since it saw the first commit of the batch.
 */
 
 public class LogFile {
 
     final File logFile;
+    // holds the LSN of the last checkpoint record
     private RandomAccessFile raf;
+    // the log records, in segment files named after logFile
+    private final SegmentedLog segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,17 +130,56 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int SLOT_UPDATE_RECORD = 6;
+    static final int BULK_LOAD_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Size at which the log tail is written to the file */
+    static final int LOG_BUFFER_SIZE = 64 * 1024;
+
     long currentOffset = -1;//protected by this
+
+    // Records not written to the file yet; they go at LSN tailStart.
+    private final ByteArrayOutputStream tailBytes = new ByteArrayOutputStream(LOG_BUFFER_SIZE);
+    private final DataOutputStream tail = new DataOutputStream(tailBytes);
+    private long tailStart = 0; //protected by this
+    // every record with a smaller LSN has been forced to disk
+    private volatile long durableLsn = 0;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    int totalForces = 0; // number of log forces, for tests //protected by this
+
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** How long the flusher thread stays alive without commits to force */
+    static final long FLUSHER_IDLE_MILLIS = 1000;
+
+    // period of background checkpoints, 0 for none; the checkpointer
+    // thread runs while it is set
+    private final Object checkpointerLock = new Object();
+    private long checkpointIntervalMillis = 0; //protected by checkpointerLock
+    private boolean checkpointerRunning = false; //protected by checkpointerLock
+
+    // worker threads recover() replays pages on
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    private volatile boolean groupCommit = false;
+    private volatile long groupCommitWindowMillis = 5;
+    private volatile int groupCommitMaxBatch = 64;
+
+    // Commits are numbered in the order their records are appended; the
+    // numbers survive log truncation.
+    private long commitsAppended = 0; //protected by this
+    private final Object groupCommitLock = new Object();
+    private long commitsRequested = 0; //protected by groupCommitLock
+    private long commitsForced = 0; //protected by groupCommitLock
+    private IOException flushError = null; //protected by groupCommitLock
+    private boolean flusherRunning = false; //protected by groupCommitLock
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,8 +192,20 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, SegmentedLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.  Back the log with the specified file, which holds
+        the checkpoint pointer, and with segment files of segmentSize
+        bytes named after it.
+
+        @param f The log file's name
+        @param segmentSize The size of each segment file in bytes
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new SegmentedLog(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,17 +226,72 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            writeCheckpointPointer(NO_CHECKPOINT_ID);
+            segments.reset(0);
+            tailStart = 0;
+            currentOffset = tailStart;
+        }
+    }
+
+    // a record has been appended to the tail; update currentOffset and
+    // write the tail out if it is full
+    private void recordAppended() throws IOException {
+        currentOffset = tailStart + tailBytes.size();
+        if (tailBytes.size() >= LOG_BUFFER_SIZE)
+            writeTail();
+    }
+
+    // write the log tail to the segments, without forcing it
+    private void writeTail() throws IOException {
+        if (tailBytes.size() > 0) {
+            segments.append(tailBytes.toByteArray());
+            tailStart += tailBytes.size();
+            tailBytes.reset();
         }
     }
 
+    /** Return the LSN the next log record will get */
+    public synchronized long getNextLsn() {
+        return tailStart + tailBytes.size();
+    }
+
+    /** Return the LSN below which all log records are forced to disk */
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** Enable or disable group commit.
+        @param enabled Whether commits wait for a shared force of the log
+        instead of forcing it themselves
+        @param windowMillis How long the flusher waits for more commits
+        after the first commit of a batch before forcing the log
+        @param maxBatch Number of waiting commits that makes the flusher
+        force the log without waiting for the window to pass
+    */
+    public void setGroupCommit(boolean enabled, long windowMillis, int maxBatch) {
+        if (windowMillis < 0 || maxBatch < 1)
+            throw new IllegalArgumentException("invalid group commit window " + windowMillis
+                    + " or batch size " + maxBatch);
+        groupCommitWindowMillis = windowMillis;
+        groupCommitMaxBatch = maxBatch;
+        groupCommit = enabled;
+    }
+
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    public long getGroupCommitWindowMillis() {
+        return groupCommitWindowMillis;
+    }
+
+    public int getGroupCommitMaxBatch() {
+        return groupCommitMaxBatch;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -158,10 +312,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                tail.writeInt(ABORT_RECORD);
+                tail.writeLong(tid.getId());
+                tail.writeLong(currentOffset);
+                recordAppended();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,36 +323,147 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  With group commit enabled, the
+        record is forced by the flusher thread together with the other
+        pending commits, and this method returns once that has happened.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long commit;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            tail.writeInt(COMMIT_RECORD);
+            tail.writeLong(tid.getId());
+            tail.writeLong(currentOffset);
+            recordAppended();
+            tidToFirstLogRecord.remove(tid.getId());
+            if (!groupCommit) {
+                force();
+                return;
+            }
+            commit = ++commitsAppended;
+        }
+        awaitGroupForce(commit);
+    }
+
+    /** Wait until the flusher thread has forced the log past the given
+        commit, starting the flusher if it is not running. */
+    private void awaitGroupForce(long commit) throws IOException {
+        synchronized (groupCommitLock) {
+            if (commit > commitsRequested)
+                commitsRequested = commit;
+            if (!flusherRunning) {
+                flusherRunning = true;
+                Thread flusher = new Thread(this::runFlusher, "simpledb-log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            groupCommitLock.notifyAll();
+            while (commitsForced < commit) {
+                if (flushError != null)
+                    throw new IOException("group commit could not force the log", flushError);
+                try {
+                    groupCommitLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for group commit");
+                }
+            }
+        }
+    }
+
+    /** Body of the flusher thread: collect a batch of commits, force the
+        log once, release the batch, and exit after being idle for
+        FLUSHER_IDLE_MILLIS. */
+    private void runFlusher() {
+        while (true) {
+            synchronized (groupCommitLock) {
+                try {
+                    long idleUntil = System.currentTimeMillis() + FLUSHER_IDLE_MILLIS;
+                    while (commitsRequested <= commitsForced) {
+                        long left = idleUntil - System.currentTimeMillis();
+                        if (left <= 0) {
+                            flusherRunning = false;
+                            return;
+                        }
+                        groupCommitLock.wait(left);
+                    }
+                    long windowEnd = System.currentTimeMillis() + groupCommitWindowMillis;
+                    while (commitsRequested - commitsForced < groupCommitMaxBatch) {
+                        long left = windowEnd - System.currentTimeMillis();
+                        if (left <= 0)
+                            break;
+                        groupCommitLock.wait(left);
+                    }
+                } catch (InterruptedException e) {
+                    // nobody interrupts the flusher; force what we have
+                }
+            }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+            long target, lsn;
+            List<FileChannel> channels;
+            try {
+                synchronized (this) {
+                    writeTail();
+                    target = commitsAppended;
+                    lsn = getNextLsn();
+                    channels = segments.takeUnforced();
+                    totalForces++;
+                }
+                for (FileChannel channel : channels) {
+                    try {
+                        channel.force(true);
+                    } catch (ClosedChannelException e) {
+                        // the segment was truncated away, or the log was
+                        // forced and closed by shutdown
+                    }
+                }
+                forcedThrough(target, lsn);
+            } catch (IOException e) {
+                flushFailed(e);
+            }
+        }
+    }
+
+    private void forcedThrough(long commit, long lsn) {
+        synchronized (groupCommitLock) {
+            if (commit > commitsForced)
+                commitsForced = commit;
+            if (lsn > durableLsn)
+                durableLsn = lsn;
+            flushError = null;
+            groupCommitLock.notifyAll();
+        }
+    }
+
+    private void flushFailed(IOException e) {
+        synchronized (groupCommitLock) {
+            flushError = e;
+            groupCommitLock.notifyAll();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  If the update
+        only changed slots of a SlottedPage, a SLOT_UPDATE record with
+        just those slots is written instead.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
+        @return The LSN of the UPDATE record
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
+        long lsn = currentOffset;
         /* update record conists of
 
            record type
@@ -207,18 +472,53 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        SlotUpdate slots = SlotUpdate.diff(before, after);
+        if (slots != null) {
+            tail.writeInt(SLOT_UPDATE_RECORD);
+            tail.writeLong(tid.getId());
+            slots.write(tail);
+        } else {
+            tail.writeInt(UPDATE_RECORD);
+            tail.writeLong(tid.getId());
+
+            writePageData(tail,before);
+            writePageData(tail,after);
+        }
+        tail.writeLong(currentOffset);
+        recordAppended();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /** Write a BULK_LOAD record for pages the specified tid is going to
+        write to the end of a HeapFile itself, bypassing the BufferPool.
+        The record must be durable before the pages are written, and
+        the pages before the transaction commits.
+        @param tid The transaction loading the pages
+        @param tableId The table the pages belong to
+        @param firstPage The number of the first page
+        @param numPages The number of pages, numbered from firstPage on
+
+        @return The LSN of the BULK_LOAD record
+        @see HeapFile#bulkLoad
+    */
+    public synchronized long logBulkLoad(TransactionId tid, int tableId,
+                                         int firstPage, int numPages)
+        throws IOException {
+        preAppend();
+        long lsn = currentOffset;
+        tail.writeInt(BULK_LOAD_RECORD);
+        tail.writeLong(tid.getId());
+        tail.writeInt(tableId);
+        tail.writeInt(firstPage);
+        tail.writeInt(numPages);
+        tail.writeLong(currentOffset);
+        recordAppended();
+        return lsn;
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -246,7 +546,7 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
@@ -265,22 +565,25 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            Constructor<?> pageConst = pageClass.getDeclaredConstructor(idClass, byte[].class);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         } catch (InstantiationException e) {
             e.printStackTrace();
             throw new IOException();
@@ -307,157 +610,229 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        tail.writeInt(BEGIN_RECORD);
+        tail.writeLong(tid.getId());
+        tail.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        recordAppended();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+
+        The checkpoint is fuzzy: instead of flushing the BufferPool, it
+        records the running transactions and the dirty page table, the
+        committed pages the cleaner has not written yet with the first
+        record each needs redone from.  The BufferPool is only held while
+        the record is appended to the log tail; forcing the record and
+        updating the checkpoint pointer happen without it.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
+        long cpLsn;
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                // pages are logged and written, or logged and made
+                // unwritten, under the BufferPool lock, so this table
+                // covers every logged update not on disk yet
+                Map<PageId,Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+                cpLsn = currentOffset;
+                tail.writeInt(CHECKPOINT_RECORD);
+                tail.writeLong(-1); //no tid , but leave space for convenience
+                writeCheckpointBody(tail, tidToFirstLogRecord, dirtyPages);
+                tail.writeLong(currentOffset);
+                recordAppended();
             }
         }
 
+        synchronized (this) {
+            //once the CP is durable, make sure the CP pointer in the log
+            // file is updated
+            force();
+            writeCheckpointPointer(cpLsn);
+        }
+
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
+    /** Set the number of threads recover() replays pages on, 1 to
+        replay them on the calling thread. */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("invalid number of recovery threads " + threads);
+        recoveryThreads = threads;
+    }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    public int getRecoveryThreads() {
+        return recoveryThreads;
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    /** Start or stop taking a checkpoint every intervalMillis
+        milliseconds in the background, 0 to stop.  Nothing is
+        checkpointed until the log has been recovered or appended to. */
+    public void setCheckpointInterval(long intervalMillis) {
+        if (intervalMillis < 0)
+            throw new IllegalArgumentException("invalid checkpoint interval " + intervalMillis);
+        synchronized (checkpointerLock) {
+            checkpointIntervalMillis = intervalMillis;
+            if (intervalMillis > 0 && !checkpointerRunning) {
+                checkpointerRunning = true;
+                Thread checkpointer = new Thread(this::runCheckpointer, "simpledb-checkpointer");
+                checkpointer.setDaemon(true);
+                checkpointer.start();
             }
+            checkpointerLock.notifyAll();
+        }
+    }
 
-            int numOutstanding = raf.readInt();
+    public long getCheckpointInterval() {
+        return checkpointIntervalMillis;
+    }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+    /** Body of the checkpointer thread; exits when checkpoints are
+        turned off or the log is no longer the Database's log. */
+    private void runCheckpointer() {
+        while (true) {
+            synchronized (checkpointerLock) {
+                try {
+                    if (checkpointIntervalMillis > 0)
+                        checkpointerLock.wait(checkpointIntervalMillis);
+                } catch (InterruptedException e) {
+                    // nobody interrupts the checkpointer
+                }
+                if (checkpointIntervalMillis == 0 || Database.getLogFile() != this) {
+                    checkpointerRunning = false;
+                    return;
                 }
             }
+            synchronized (this) {
+                if (recoveryUndecided)
+                    continue;
+            }
+            try {
+                logCheckpoint();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
+    // active transactions and dirty page table of a CHECKPOINT record
+    void writeCheckpointBody(DataOutput out, Map<Long,Long> active,
+                             Map<PageId,Long> dirtyPages) throws IOException {
+        out.writeInt(active.size());
+        for (Map.Entry<Long,Long> e : active.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue());
+        }
+        out.writeInt(dirtyPages.size());
+        for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+            writePageId(out, e.getKey());
+            out.writeLong(e.getValue());
+        }
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+    // read what writeCheckpointBody wrote into the given maps
+    void readCheckpointBody(DataInput in, Map<Long,Long> active,
+                            Map<PageId,Long> dirtyPages) throws IOException {
+        int numXactions = in.readInt();
+        while (numXactions-- > 0) {
+            long tid = in.readLong();
+            active.put(tid, in.readLong());
+        }
+        int numPages = in.readInt();
+        while (numPages-- > 0) {
+            PageId pid = readPageId(in);
+            dirtyPages.put(pid, in.readLong());
+        }
+    }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
+        }
+    }
 
-            } catch (EOFException e) {
-                break;
-            }
+    static PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        Object idArgs[] = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = in.readInt();
+        }
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            return (PageId)idClass.getDeclaredConstructors()[0].newInstance(idArgs);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("cannot read page id of class " + idClassName, e);
         }
+    }
+
+    // the LSN of the last checkpoint record, or NO_CHECKPOINT_ID
+    private long readCheckpointPointer() throws IOException {
+        if (raf.length() < LONG_SIZE)
+            return NO_CHECKPOINT_ID;
+        raf.seek(0);
+        return raf.readLong();
+    }
+
+    // point the log file at a checkpoint record; the pointer is forced, as
+    // truncation may delete the segments before the record right after
+    private void writeCheckpointPointer(long cpLsn) throws IOException {
+        raf.seek(0);
+        raf.writeLong(cpLsn);
+        raf.getChannel().force(true);
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  The segments holding nothing but records before the
+        first one the last checkpoint needs are deleted; the others are
+        left alone. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        writeTail();
+        long cpLoc = readCheckpointPointer();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        long minLogRecord = cpLoc;
+        segments.seek(cpLoc);
+        int cpType = segments.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = segments.readLong();
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+
+        // keep the first records of running transactions, for undo,
+        // and of unwritten pages, for redo
+        Map<Long,Long> active = new HashMap<Long,Long>();
+        Map<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+        readCheckpointBody(segments, active, dirtyPages);
+        for (long firstLogRecord : active.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        for (long recOffset : dirtyPages.values()) {
+            minLogRecord = Math.min(minLogRecord, recOffset);
+        }
+
+        Debug.log("TRUNCATING LOG BEFORE " + minLogRecord + "; " + segments.getNumSegments() + " SEGMENTS");
+        segments.truncateBefore(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
         of pages it updated to their pre-updated state.  To preserve
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
-        be enforced by this method.)
+        be enforced by this method.)  A transaction that never logged a
+        BEGIN record, e.g. one run directly against the BufferPool, is
+        rolled back from the oldest record in the log.
 
         @param tid The transaction to rollback
     */
@@ -466,7 +841,47 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                writeTail();
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null)
+                    firstRecord = segments.getStart();
+
+                // undo the updates of the transaction from the last one
+                // on; every page it wrote out is on disk as of its last
+                // update, so slot updates are undone from there
+                List<LoggedUpdate> updates = new ArrayList<LoggedUpdate>();
+                segments.seek(firstRecord);
+                while (segments.getFilePointer() < tailStart) {
+                    int type = segments.readInt();
+                    long recordTid = segments.readLong();
+                    switch (type) {
+                    case UPDATE_RECORD:
+                    case SLOT_UPDATE_RECORD:
+                        LoggedUpdate update = readUpdate(type);
+                        if (recordTid == tid.getId())
+                            updates.add(update);
+                        break;
+                    case BULK_LOAD_RECORD:
+                        List<LoggedUpdate> loaded = readBulkLoad();
+                        if (recordTid == tid.getId())
+                            updates.addAll(loaded);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        readCheckpointBody(segments, new HashMap<Long,Long>(), new HashMap<PageId,Long>());
+                        break;
+                    }
+                    segments.readLong();
+                }
+
+                Map<PageId,Page> pages = new HashMap<PageId,Page>();
+                for (int i = updates.size() - 1; i >= 0; i--)
+                    undoUpdate(updates.get(i), pages);
+                for (Page p : pages.values()) {
+                    PageId pid = p.getId();
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                    Database.getBufferPool().discardPage(pid);
+                }
+                Database.getBufferPool().rolledBack(tid);
             }
         }
     }
@@ -475,10 +890,15 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        setCheckpointInterval(0);
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                force();
+                raf.close();
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +908,342 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        <p> Recovery repeats history from the last checkpoint, and from
+        the first unwritten update of each page in its dirty page table:
+        every later UPDATE and SLOT_UPDATE record is redone, and at every
+        later ABORT record the aborted transaction is rolled back again.
+        A first pass over the log only collects what to replay on each
+        page; the pages are then partitioned by PageId and replayed on
+        recoveryThreads worker threads, each page from its version on
+        disk.  Transactions without
+        a COMMIT or ABORT record are then rolled back and get an ABORT
+        record.  Since commits need not write their pages (NO-FORCE),
+        redo is what makes their updates durable.  A partial record at
+        the end of the log, left by a crash while it was being written,
+        is dropped.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                writeTail();
+                long cpLoc = readCheckpointPointer();
+                long end = segments.length();
+
+                // scan from the first record of any transaction that was
+                // running at the checkpoint or any page that was not
+                // written yet; redo from the checkpoint, and from the
+                // first record of each page in the dirty page table
+                long scanStart = segments.getStart();
+                long redoStart = scanStart;
+                Map<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    Map<Long,Long> active = new HashMap<Long,Long>();
+                    segments.seek(cpLoc);
+                    segments.readInt();
+                    segments.readLong();
+                    readCheckpointBody(segments, active, dirtyPages);
+                    scanStart = cpLoc;
+                    redoStart = cpLoc;
+                    for (long firstLogRecord : active.values())
+                        scanStart = Math.min(scanStart, firstLogRecord);
+                    for (long recOffset : dirtyPages.values())
+                        scanStart = Math.min(scanStart, recOffset);
+                }
+
+                // analysis: updates of each unfinished transaction in log
+                // order, and what to replay on every page recovery changes
+                Map<Long,List<LoggedUpdate>> updates = new HashMap<Long,List<LoggedUpdate>>();
+                Set<Long> unfinished = new HashSet<Long>();
+                Map<PageId,List<PageAction>> actions = new HashMap<PageId,List<PageAction>>();
+                long validEnd = scanStart;
+                segments.seek(scanStart);
+                try {
+                    while (segments.getFilePointer() < end) {
+                        long offset = segments.getFilePointer();
+                        int type = segments.readInt();
+                        long tid = segments.readLong();
+                        LoggedUpdate update = null;
+                        List<LoggedUpdate> loaded = null;
+                        switch (type) {
+                        case UPDATE_RECORD:
+                        case SLOT_UPDATE_RECORD:
+                            update = readUpdate(type);
+                            break;
+                        case BULK_LOAD_RECORD:
+                            loaded = readBulkLoad();
+                            break;
+                        case CHECKPOINT_RECORD:
+                            Map<Long,Long> active = new HashMap<Long,Long>();
+                            readCheckpointBody(segments, active, new HashMap<PageId,Long>());
+                            unfinished.addAll(active.keySet());
+                            break;
+                        }
+                        segments.readLong();
+                        validEnd = segments.getFilePointer();
+
+                        // the record is complete, apply it
+                        switch (type) {
+                        case BEGIN_RECORD:
+                            unfinished.add(tid);
+                            break;
+                        case UPDATE_RECORD:
+                        case SLOT_UPDATE_RECORD:
+                        case BULK_LOAD_RECORD:
+                            unfinished.add(tid);
+                            List<LoggedUpdate> done = updates.get(tid);
+                            if (done == null) {
+                                done = new ArrayList<LoggedUpdate>();
+                                updates.put(tid, done);
+                            }
+                            if (loaded != null) {
+                                // forced before commit, nothing to redo
+                                done.addAll(loaded);
+                                break;
+                            }
+                            done.add(update);
+                            if (needsRedo(offset, update.getPageId(), redoStart, dirtyPages))
+                                addAction(actions, update, false);
+                            break;
+                        case ABORT_RECORD:
+                            if (updates.containsKey(tid)) {
+                                List<LoggedUpdate> undone = updates.get(tid);
+                                for (int i = undone.size() - 1; i >= 0; i--) {
+                                    if (needsRedo(offset, undone.get(i).getPageId(), redoStart, dirtyPages))
+                                        addAction(actions, undone.get(i), true);
+                                }
+                            }
+                            // fall through
+                        case COMMIT_RECORD:
+                            unfinished.remove(tid);
+                            updates.remove(tid);
+                            break;
+                        }
+                    }
+                } catch (EOFException e) {
+                    Debug.log("RECOVERY: DROPPING PARTIAL RECORD AT " + validEnd);
+                }
+
+                // drop a partial last record, and append from there
+                segments.setLength(validEnd);
+                tailStart = validEnd;
+                currentOffset = validEnd;
+                tidToFirstLogRecord.clear();
+
+                // each page is undone for losers after it is redone
+                for (Long tid : unfinished) {
+                    List<LoggedUpdate> undone = updates.get(tid);
+                    if (undone != null) {
+                        for (int i = undone.size() - 1; i >= 0; i--)
+                            addAction(actions, undone.get(i), true);
+                    }
+                }
+                replayInParallel(actions);
+
+                for (Long tid : unfinished) {
+                    tail.writeInt(ABORT_RECORD);
+                    tail.writeLong(tid);
+                    tail.writeLong(currentOffset);
+                    recordAppended();
+                }
+                force();
+
+                for (PageId pid : actions.keySet())
+                    Database.getBufferPool().discardPage(pid);
             }
          }
     }
 
+    // whether the record at offset may not be reflected on disk yet: it
+    // follows the checkpoint, or its page was in the checkpoint's dirty
+    // page table and it is not older than the page's first dirtying record
+    private static boolean needsRedo(long offset, PageId pid, long redoStart,
+                                     Map<PageId,Long> dirtyPages) {
+        if (offset >= redoStart)
+            return true;
+        Long recOffset = dirtyPages.get(pid);
+        return recOffset != null && offset >= recOffset;
+    }
+
+    /** An update recovery redoes or undoes on its page */
+    private static class PageAction {
+        final LoggedUpdate update;
+        final boolean undo;
+
+        PageAction(LoggedUpdate update, boolean undo) {
+            this.update = update;
+            this.undo = undo;
+        }
+    }
+
+    private static void addAction(Map<PageId,List<PageAction>> actions, LoggedUpdate update, boolean undo) {
+        List<PageAction> pageActions = actions.get(update.getPageId());
+        if (pageActions == null) {
+            pageActions = new ArrayList<PageAction>();
+            actions.put(update.getPageId(), pageActions);
+        }
+        pageActions.add(new PageAction(update, undo));
+    }
+
+    // Replay the actions of every page and write the pages out.  Pages are
+    // independent, so they are split by PageId among the recovery threads.
+    private void replayInParallel(Map<PageId,List<PageAction>> actions) throws IOException {
+        int threads = Math.max(1, Math.min(recoveryThreads, actions.size()));
+        List<Map<PageId,List<PageAction>>> partitions = new ArrayList<Map<PageId,List<PageAction>>>();
+        for (int i = 0; i < threads; i++)
+            partitions.add(new HashMap<PageId,List<PageAction>>());
+        for (Map.Entry<PageId,List<PageAction>> e : actions.entrySet())
+            partitions.get(Math.floorMod(e.getKey().hashCode(), threads)).put(e.getKey(), e.getValue());
+
+        if (threads == 1) {
+            replay(partitions.get(0));
+            return;
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "simpledb-recovery");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> done = new ArrayList<Future<?>>();
+            for (Map<PageId,List<PageAction>> partition : partitions) {
+                done.add(workers.submit(() -> {
+                    replay(partition);
+                    return null;
+                }));
+            }
+            for (Future<?> f : done)
+                f.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while replaying the log", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("replaying the log failed", e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    // replay the actions of each page on its version on disk, and write it
+    private void replay(Map<PageId,List<PageAction>> actions) throws IOException {
+        Map<PageId,Page> pages = new HashMap<PageId,Page>();
+        for (Map.Entry<PageId,List<PageAction>> e : actions.entrySet()) {
+            for (PageAction action : e.getValue()) {
+                if (action.undo)
+                    undoUpdate(action.update, pages);
+                else
+                    redoUpdate(action.update, pages);
+            }
+            Page p = pages.remove(e.getKey());
+            if (p != null)
+                Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+        }
+    }
+
+    /** An UPDATE record, with its page images, a SLOT_UPDATE record,
+        or one of the pages of a BULK_LOAD record read back from the log */
+    private static class LoggedUpdate {
+        final Page before;
+        final Page after;
+        final SlotUpdate slots;
+        // the page, if it was written by a bulk load
+        final HeapPageId loaded;
+
+        LoggedUpdate(Page before, Page after, SlotUpdate slots) {
+            this(before, after, slots, null);
+        }
+
+        LoggedUpdate(Page before, Page after, SlotUpdate slots, HeapPageId loaded) {
+            this.before = before;
+            this.after = after;
+            this.slots = slots;
+            this.loaded = loaded;
+        }
+
+        PageId getPageId() {
+            if (loaded != null)
+                return loaded;
+            return slots != null ? slots.getPageId() : after.getId();
+        }
+    }
+
+    // read the body of an UPDATE or SLOT_UPDATE record
+    private LoggedUpdate readUpdate(int type) throws IOException {
+        if (type == SLOT_UPDATE_RECORD)
+            return new LoggedUpdate(null, null, SlotUpdate.read(segments));
+        Page before = readPageData(segments);
+        Page after = readPageData(segments);
+        return new LoggedUpdate(before, after, null);
+    }
+
+    // read the body of a BULK_LOAD record, one update per page
+    private List<LoggedUpdate> readBulkLoad() throws IOException {
+        int tableId = segments.readInt();
+        int firstPage = segments.readInt();
+        int numPages = segments.readInt();
+        List<LoggedUpdate> loaded = new ArrayList<LoggedUpdate>(numPages);
+        for (int i = 0; i < numPages; i++)
+            loaded.add(new LoggedUpdate(null, null, null, new HeapPageId(tableId, firstPage + i)));
+        return loaded;
+    }
+
+    // apply an update to the latest version of its page in pages, read
+    // from its file if it is not there yet
+    private void redoUpdate(LoggedUpdate update, Map<PageId,Page> pages) throws IOException {
+        PageId pid = update.getPageId();
+        if (update.slots == null)
+            pages.put(pid, update.after);
+        else
+            pages.put(pid, update.slots.redo(latestVersion(pid, pages)));
+    }
+
+    // revert an update on the latest version of its page in pages
+    private void undoUpdate(LoggedUpdate update, Map<PageId,Page> pages) throws IOException {
+        PageId pid = update.getPageId();
+        if (update.loaded != null) {
+            // empty the page, unless the crash lost the file extension
+            HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (pid.getPageNumber() < f.numPages())
+                pages.put(pid, new HeapPage(update.loaded, HeapPage.createEmptyPageData()));
+        } else if (update.slots == null)
+            pages.put(pid, update.before);
+        else
+            pages.put(pid, update.slots.undo(latestVersion(pid, pages)));
+    }
+
+    private Page latestVersion(PageId pid, Map<PageId,Page> pages) {
+        Page p = pages.get(pid);
+        if (p == null)
+            p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        return p;
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        writeTail();
+        segments.force();
+        totalForces++;
+        forcedThrough(commitsAppended, getNextLsn());
+    }
+
+    /** Force the log to disk up to and including the record with the
+        given LSN.  Does nothing if that record is durable already.
+
+        @param lsn The LSN of the record that must be durable, e.g. a page LSN
+    */
+    public void forceTo(long lsn) throws IOException {
+        if (lsn < durableLsn)
+            return;
+        synchronized (this) {
+            if (lsn >= durableLsn)
+                force();
+        }
     }
 
 }
@@ -2,7 +2,9 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
@@ -272,7 +274,8 @@ public class LogicalPlan {
     }
 
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
-     *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan,
+     *   and by reading each table through an index where that beats a sequential scan.
      *  @param t The transaction that the returned OpIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -289,6 +292,8 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,Vector<Predicate>> tablePreds = new HashMap<String,Vector<Predicate>>();
+        HashMap<String,Vector<Double>> predSelectivities = new HashMap<String,Vector<Double>>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -303,6 +308,8 @@ public class LogicalPlan {
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
+            tablePreds.put(table.alias, new Vector<Predicate>());
+            predSelectivities.put(table.alias, new Vector<Double>());
 
         }
 
@@ -334,15 +341,44 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
             double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            tablePreds.get(lf.tableAlias).addElement(p);
+            predSelectivities.get(lf.tableAlias).addElement(sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // with no join or aggregate in between, a scan in the ORDER BY order saves the sort
+        boolean sorted = false;
+        tableIt = tables.iterator();
+        while (tableIt.hasNext()) {
+            LogicalScanNode table = tableIt.next();
+            int orderField = -1;
+            if (hasOrderBy && joins.isEmpty() && !hasAgg && tables.size() == 1) {
+                try {
+                    orderField = subplanMap.get(table.alias).getTupleDesc().fieldNameToIndex(oByField);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByField + " in ORDER BY");
+                }
+            }
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            AccessPath path = chooseAccessPath(t, table, tablePreds.get(table.alias),
+                    predSelectivities.get(table.alias), s, orderField, oByAsc,
+                    referencedFields(subplanMap.get(table.alias).getTupleDesc()));
+
+            OpIterator subplan = path.scan;
+            for (Predicate p : tablePreds.get(table.alias)) {
+                if (p != path.pred) {
+                    subplan = new Filter(p, subplan);
+                }
+            }
+            subplanMap.put(table.alias, subplan);
+            sorted = path.sorted;
+        }
         
         if (!joins.isEmpty()) {
             JoinOptimizer jo = new JoinOptimizer(this,joins);
@@ -475,13 +511,182 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !sorted) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /** A way of reading one table: a scan, the filter predicate the scan
+        applies itself, if any, and whether the scan returns the tuples in
+        ORDER BY order. */
+    private static class AccessPath {
+        final OpIterator scan;
+        final Predicate pred;
+        final boolean sorted;
+
+        AccessPath(OpIterator scan, Predicate pred, boolean sorted) {
+            this.scan = scan;
+            this.pred = pred;
+            this.sorted = sorted;
+        }
+    }
+
+    /** Choose how to read the table of a scan node: with a {@link SeqScan},
+        or through an index on a filtered field.  A predicate on the key of a
+        {@link BTreeFile} is served by a {@link BTreeScan}, which reads only
+        the leaf pages of the matching key range, so it is never dearer than
+        a sequential scan.  An EQUALS predicate on the key of a {@link HashFile}
+        is served by a {@link HashScan} of the bucket of the key.  A predicate
+        on the field of a {@link SecondaryIndex} is served by an
+        {@link IndexScan}, which reads the matching entries and then a page
+        per matching tuple, so it only pays off when the {@link TableStats}
+        selectivity of the predicate is low; its cost is weighed against that
+        of reading every page of the table.  If the TableStats have no
+        statistics of the table, an EQUALS predicate is taken to match a
+        single tuple, so it is served by the index, while other predicates
+        are taken to match every tuple, so they are not.  If the entries of a secondary
+        index hold every field the query reads, a covering IndexScan skips the
+        table altogether and costs only the index pages it reads, so it may
+        pay off even with no predicate on the indexed field.
+        <p>
+        If orderField is a field of the table, the query sorts the table on
+        it and nothing else, and a scan in key order, forward or backward,
+        makes the sort unnecessary.
+
+        @param t the transaction the scan runs as a part of
+        @param table the scan node
+        @param preds the filter predicates on the table
+        @param sels the selectivity of each of preds
+        @param stats the statistics of the table
+        @param orderField the index of the ORDER BY field, or -1
+        @param asc whether the ORDER BY is ascending
+        @param fields the fields of the table the query reads, or null if it
+          reads all of them
+    */
+    private AccessPath chooseAccessPath(TransactionId t, LogicalScanNode table, Vector<Predicate> preds,
+                                        Vector<Double> sels, TableStats stats, int orderField, boolean asc,
+                                        Set<Integer> fields) {
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        AccessPath best = new AccessPath(new SeqScan(t, table.t, table.alias), null, false);
+
+        if (file instanceof BTreeFile) {
+            int key = ((BTreeFile) file).keyField();
+            Predicate pred = null;
+            double sel = 1.0;
+            for (int i = 0; i < preds.size(); i++) {
+                Predicate p = preds.elementAt(i);
+                if (p.getField() == key && isIndexable(p.getOp()) && (pred == null || sels.elementAt(i) < sel)) {
+                    pred = p;
+                    sel = sels.elementAt(i);
+                }
+            }
+            if (pred == null && orderField != key) {
+                return best;
+            }
+            IndexPredicate ipred = pred == null ? null : new IndexPredicate(pred.getOp(), pred.getOperand());
+            if (orderField == key && !asc) {
+                return new AccessPath(new BTreeReverseScan(t, table.t, table.alias, ipred), pred, true);
+            }
+            return new AccessPath(new BTreeScan(t, table.t, table.alias, ipred), pred, orderField == key);
+        }
+
+        if (file instanceof HashFile) {
+            // a HashFile is always read bucket by bucket, so a join can probe it
+            int key = ((HashFile) file).keyField();
+            for (Predicate p : preds) {
+                if (p.getField() == key && p.getOp() == Predicate.Op.EQUALS) {
+                    return new AccessPath(new HashScan(t, table.t, table.alias,
+                            new IndexPredicate(p.getOp(), p.getOperand())), p, false);
+                }
+            }
+            return new AccessPath(new HashScan(t, table.t, table.alias, null), null, false);
+        }
+
+        if (!(file instanceof HeapFile)) {
+            return best;
+        }
+        HeapFile heap = (HeapFile) file;
+        double cost = (double) heap.numPages() * TableStats.IOCOSTPERPAGE;
+        // TableStats without statistics of the table estimate every
+        // predicate to match every tuple
+        boolean noStats = stats.totalTuples() <= 0;
+        int tuples = noStats ? heap.numPages() * HeapPage.getNumTuples(heap.getTupleDesc())
+                : stats.totalTuples();
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+            boolean covering = fields != null && index.covers(fields);
+            boolean sorted = orderField == index.getField();
+            double indexPages = index.getFile().numPages();
+            if (covering && indexPages * TableStats.IOCOSTPERPAGE < cost) {
+                best = new AccessPath(new IndexScan(t, index, table.alias, null, sorted && !asc, true), null, sorted);
+                cost = indexPages * TableStats.IOCOSTPERPAGE;
+            }
+            for (int i = 0; i < preds.size(); i++) {
+                Predicate p = preds.elementAt(i);
+                if (p.getField() != index.getField() || !isIndexable(p.getOp())) {
+                    continue;
+                }
+                double sel = sels.elementAt(i);
+                if (noStats && p.getOp() == Predicate.Op.EQUALS) {
+                    // guess that it matches a single tuple, as if the field were a key
+                    sel = 1.0 / Math.max(tuples, 1);
+                }
+                double indexCost = sel * (indexPages + (covering ? 0 : tuples))
+                        * TableStats.IOCOSTPERPAGE;
+                if (indexCost < cost) {
+                    IndexScan scan = new IndexScan(t, index, table.alias,
+                            new IndexPredicate(p.getOp(), p.getOperand()), sorted && !asc, covering);
+                    best = new AccessPath(scan, p, sorted);
+                    cost = indexCost;
+                }
+            }
+        }
+        return best;
+    }
+
+    /** @return the indexes of the fields in td, the TupleDesc of the scan of
+        a table, that the query reads anywhere, or null if it reads all of
+        them */
+    private Set<Integer> referencedFields(TupleDesc td) {
+        HashSet<String> names = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            names.add(si.fname);
+        }
+        if (hasAgg) {
+            names.add(aggField);
+            names.add(groupByField);
+        }
+        if (hasOrderBy) {
+            names.add(oByField);
+        }
+        for (LogicalFilterNode lf : filters) {
+            names.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+        for (String name : names) {
+            if (name != null && name.endsWith(".*")) {
+                return null;
+            }
+        }
+        HashSet<Integer> fields = new HashSet<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (names.contains(td.getFieldName(i))) {
+                fields.add(i);
+            }
+        }
+        return fields;
+    }
+
+    /** @return whether an index can find the tuples matching a predicate with
+        operator op without reading all of its entries */
+    private static boolean isIndexable(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
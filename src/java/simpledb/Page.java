@@ -7,7 +7,7 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
+ * For recovery purposes, pages MUST have a constructor of the form:
  *     Page(PageId id, byte[] data)
  */
 public interface Page {
@@ -56,4 +56,18 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the UPDATE log record written for the current
+     * contents of this page, or 0 if none has been written. The page must
+     * not be written to disk before the log is forced up to this LSN.
+     *
+     * @see LogFile#logWrite
+     */
+    public long getLsn();
+
+    /**
+     * Set the page LSN, see {@link #getLsn}.
+     */
+    public void setLsn(long lsn);
 }
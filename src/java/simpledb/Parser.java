@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -390,7 +392,8 @@ public class Parser {
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
-        insertQ.setPhysicalPlan(new Insert(tId, newTups, tableId));
+        // INSERT ... SELECT appends its rows in bulk
+        insertQ.setPhysicalPlan(new Insert(tId, newTups, tableId, s.getValues() == null));
         return insertQ;
     }
 
@@ -463,6 +466,68 @@ public class Parser {
         }
     }
 
+    /**
+     * Zql does not parse CREATE INDEX name ON table (field) [INCLUDE (field, ...)],
+     * so it is matched before statements are passed to Zql.
+     */
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)"
+                    + "(?:\\s*include\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Create a secondary index, in a transaction of its own; if the
+     * transaction were rolled back later, the index would be left empty.
+     * The index is saved to the catalog file, so it is opened again on the
+     * next run.
+     *
+     * @see Catalog#createIndex
+     * @see Catalog#saveIndex
+     */
+    public void handleCreateIndexStatement(String name, String tableName, String fieldName)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException {
+        handleCreateIndexStatement(name, tableName, fieldName, new String[0]);
+    }
+
+    /**
+     * Create a secondary index whose entries include the given fields, so
+     * queries reading only those and the indexed field need not read the table.
+     *
+     * @see Catalog#createIndex
+     */
+    public void handleCreateIndexStatement(String name, String tableName, String fieldName,
+                                           String[] includeNames)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException {
+        if (inUserTrans)
+            throw new simpledb.ParsingException(
+                    "CREATE INDEX cannot run inside a transaction");
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(tableName);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table " + tableName);
+        }
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            Database.getCatalog().createIndex(t.getId(), name, tableId, fieldName, includeNames);
+        } catch (DbException | TransactionAbortedException e) {
+            t.abort();
+            throw e;
+        }
+        t.commit();
+        try {
+            Database.getCatalog().saveIndex(name);
+        } catch (DbException e) {
+            System.out.println("Index " + name + " lasts for this session only: " + e.getMessage());
+        }
+        System.out.println("Created index " + name + " on " + tableName
+                + " (" + fieldName + ")" + (includeNames.length == 0 ? ""
+                : " include (" + String.join(", ", includeNames) + ")"));
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
@@ -493,6 +558,21 @@ public class Parser {
     }
 
     public void processNextStatement(String s) {
+        Matcher createIndex = CREATE_INDEX.matcher(s);
+        if (createIndex.matches()) {
+            try {
+                String include = createIndex.group(4);
+                handleCreateIndexStatement(createIndex.group(1),
+                        createIndex.group(2), createIndex.group(3),
+                        include == null ? new String[0] : include.split("\\s*,\\s*"));
+            } catch (simpledb.ParsingException e) {
+                System.out
+                        .println("Invalid SQL expression: \n \t" + e.getMessage());
+            } catch (TransactionAbortedException | DbException | IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
         try {
             processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
@@ -581,7 +661,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index", "on" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -674,7 +754,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -683,8 +762,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
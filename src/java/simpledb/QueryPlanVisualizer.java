@@ -13,6 +13,10 @@ public class QueryPlanVisualizer {
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "iscan";
+    static final String REVERSE_INDEX_SCAN = "riscan";
+    static final String HASH_SCAN = "hscan";
+    static final String COVERING = "+cover";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -65,24 +69,53 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (!(queryPlan instanceof Operator)) {
+            String scanName = SCAN;
+            String tableName;
+            String alias;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof BTreeScan) {
+                BTreeScan s = (BTreeScan) queryPlan;
+                scanName = INDEX_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof BTreeReverseScan) {
+                BTreeReverseScan s = (BTreeReverseScan) queryPlan;
+                scanName = REVERSE_INDEX_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof HashScan) {
+                HashScan s = (HashScan) queryPlan;
+                scanName = s.getIndexPredicate() == null ? SCAN : HASH_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof IndexScan) {
+                IndexScan s = (IndexScan) queryPlan;
+                scanName = (s.isReverse() ? REVERSE_INDEX_SCAN : INDEX_SCAN) + "[" + s.getIndex().getName() + "]"
+                        + (s.isCovering() ? COVERING : "");
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else {
+                tableName = queryPlan.getClass().getSimpleName();
+                alias = tableName;
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scanName, tableName + alias);
+            if (scanName.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scanName.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scanName.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * ReadAhead watches the pages a scan requests and, while they come in
+ * sequential order, asks the BufferPool to prefetch the next pages on its
+ * background threads so the scan does not wait for each read.
+ * <p>
+ * The window of pages read ahead adapts to the scan: it doubles whenever the
+ * scan reaches a page whose read has not finished yet (the scan is faster
+ * than the I/O), and shrinks by one page after a full window of pages that
+ * were ready in time. Non-sequential access cancels the read-ahead until the
+ * scan is sequential again.
+ */
+public class ReadAhead {
+
+    static final int MIN_WINDOW = 2;
+    static final int MAX_WINDOW = 32;
+
+    private final int tableId;
+    private final IntSupplier frames;
+    private final Function<PageId, Future<?>> prefetcher;
+    private final HashMap<Integer, Future<?>> pending = new HashMap<>();
+    private int lastPage = -1;
+    private int nextToIssue = 0;
+    private int window = MIN_WINDOW;
+    private int hitsInWindow = 0;
+
+    /**
+     * @param tableId  the HeapFile being scanned
+     * @param strategy the access strategy the scan fetches its pages with
+     */
+    public ReadAhead(int tableId, AccessStrategy strategy) {
+        this(tableId, () -> strategy.usesRing() ? strategy.getRingSize() : Database.getBufferPool().getNumPages(),
+                pid -> Database.getBufferPool().prefetchPage(pid, strategy));
+    }
+
+    /**
+     * @param tableId    the HeapFile being scanned
+     * @param frames     gives the number of frames the scan may fill
+     * @param prefetcher issues the prefetch of a page
+     */
+    ReadAhead(int tableId, IntSupplier frames, Function<PageId, Future<?>> prefetcher) {
+        this.tableId = tableId;
+        this.frames = frames;
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * @return the number of pages currently read ahead of the scan, before
+     * the cap of half the frames
+     */
+    int getWindow() {
+        return window;
+    }
+
+    /**
+     * Must be called before the scan fetches page pageNo.
+     *
+     * @param pageNo   the page the scan is about to read
+     * @param numPages the number of pages in the file
+     */
+    public void pageRequested(int pageNo, int numPages) {
+        Future<?> prefetch = pending.remove(pageNo);
+        if (pageNo != lastPage + 1) {
+            reset();
+            lastPage = pageNo;
+            nextToIssue = pageNo + 1;
+            return;
+        }
+        if (prefetch != null) {
+            if (!prefetch.isDone()) {
+                window = Math.min(window * 2, MAX_WINDOW);
+                hitsInWindow = 0;
+            } else if (++hitsInWindow >= window) {
+                window = Math.max(window - 1, MIN_WINDOW);
+                hitsInWindow = 0;
+            }
+        }
+        lastPage = pageNo;
+
+        // never read so far ahead that prefetched pages push out each
+        // other, or the page being scanned, before the scan gets to them
+        int windowSize = Math.min(window, frames.getAsInt() / 2);
+        int limit = Math.min(numPages, pageNo + 1 + windowSize);
+        for (int p = Math.max(nextToIssue, pageNo + 1); p < limit; p++) {
+            pending.put(p, prefetcher.apply(new HeapPageId(tableId, p)));
+        }
+        nextToIssue = Math.max(nextToIssue, limit);
+    }
+
+    /**
+     * Forgets the access history, e.g. when the scan is rewound.
+     */
+    public void reset() {
+        for (Future<?> prefetch : pending.values()) {
+            prefetch.cancel(false);
+        }
+        pending.clear();
+        lastPage = -1;
+        nextToIssue = 0;
+        window = MIN_WINDOW;
+        hitsInWindow = 0;
+    }
+}
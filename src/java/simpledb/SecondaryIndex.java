@@ -0,0 +1,208 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * A secondary index over one field of a HeapFile table.  The index is a
+ * BTreeFile of entries (key, page number, tuple number), keyed on the key,
+ * with one entry per tuple of the table; the page and tuple number make up
+ * the RecordId of the tuple.  An index may also include other fields of the
+ * table, stored in the entries after the tuple number; a query that reads
+ * only the indexed and included fields can then be answered from the index
+ * alone, without fetching the tuples from the table.
+ *
+ * <p> The Catalog keeps the indexes of each table, and BufferPool.insertTuple
+ * and deleteTuple add and remove entries in the same transaction that inserts
+ * or deletes the tuple.
+ *
+ * @see Catalog#createIndex
+ */
+public class SecondaryIndex {
+    private final String name;
+    private final int tableid;
+    private final int field;
+    private final int[] include;
+    private final BTreeFile file;
+
+    /**
+     * Open the secondary index stored in the given file.
+     *
+     * @param name    the name of the index
+     * @param tableid the id of the indexed table
+     * @param field   the index of the indexed field in the TupleDesc of the table
+     * @param f       the file storing the index
+     */
+    public SecondaryIndex(String name, int tableid, int field, File f) {
+        this(name, tableid, field, new int[0], f);
+    }
+
+    /**
+     * Open the secondary index stored in the given file, whose entries
+     * include the given fields of the table.
+     *
+     * @param name    the name of the index
+     * @param tableid the id of the indexed table
+     * @param field   the index of the indexed field in the TupleDesc of the table
+     * @param include the indexes of the included fields in the TupleDesc of the table
+     * @param f       the file storing the index
+     */
+    public SecondaryIndex(String name, int tableid, int field, int[] include, File f) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        this.name = name;
+        this.tableid = tableid;
+        this.field = field;
+        this.include = include.clone();
+        this.file = new BTreeFile(f, 0, getEntryDesc(td, field, include));
+    }
+
+    /**
+     * @return the TupleDesc of the entries of an index over a field of the given type
+     */
+    public static TupleDesc getEntryDesc(Type keyType) {
+        return new TupleDesc(new Type[]{keyType, Type.INT_TYPE, Type.INT_TYPE},
+                new String[]{"key", "page", "tuple"});
+    }
+
+    /**
+     * @return the TupleDesc of the entries of an index over the given field
+     * of a table with the given TupleDesc, including the given fields, which
+     * keep their names
+     */
+    public static TupleDesc getEntryDesc(TupleDesc td, int field, int[] include) {
+        TupleDesc entryDesc = getEntryDesc(td.getFieldType(field));
+        if (include.length == 0) {
+            return entryDesc;
+        }
+        Type[] types = new Type[include.length];
+        String[] names = new String[include.length];
+        for (int i = 0; i < include.length; i++) {
+            types[i] = td.getFieldType(include[i]);
+            names[i] = td.getFieldName(include[i]);
+        }
+        return TupleDesc.merge(entryDesc, new TupleDesc(types, names));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the id of the indexed table
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the index of the indexed field in the TupleDesc of the table
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * @return the indexes of the included fields in the TupleDesc of the table
+     */
+    public int[] getIncludedFields() {
+        return include.clone();
+    }
+
+    /**
+     * @return whether the entries hold all of the given fields of the table,
+     * given by their indexes in its TupleDesc
+     */
+    public boolean covers(Collection<Integer> fields) {
+        for (int f : fields) {
+            if (f == field) {
+                continue;
+            }
+            boolean included = false;
+            for (int i : include) {
+                included |= i == f;
+            }
+            if (!included) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the BTreeFile storing the entries
+     */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /**
+     * @return the entry for a tuple of the table, which must have a RecordId
+     */
+    public Tuple getEntry(Tuple t) {
+        RecordId rid = t.getRecordId();
+        Tuple entry = new Tuple(file.getTupleDesc());
+        entry.setField(0, t.getField(field));
+        entry.setField(1, new IntField(rid.getPageId().getPageNumber()));
+        entry.setField(2, new IntField(rid.getTupleNumber()));
+        for (int i = 0; i < include.length; i++) {
+            entry.setField(3 + i, t.getField(include[i]));
+        }
+        return entry;
+    }
+
+    /**
+     * @return the tuple an entry points to, as far as the entry holds it: the
+     * indexed and included fields are set, the others are null, and the
+     * RecordId is that of the tuple in the table
+     */
+    public Tuple getTuple(Tuple entry) {
+        Tuple t = new Tuple(Database.getCatalog().getTupleDesc(tableid));
+        t.setField(field, entry.getField(0));
+        for (int i = 0; i < include.length; i++) {
+            t.setField(include[i], entry.getField(3 + i));
+        }
+        t.setRecordId(getRecordId(entry));
+        return t;
+    }
+
+    /**
+     * @return the RecordId of the tuple an entry points to
+     */
+    public RecordId getRecordId(Tuple entry) {
+        return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(1)).getValue()),
+                ((IntField) entry.getField(2)).getValue());
+    }
+
+    /**
+     * Add the entry for a tuple just inserted into the table.
+     */
+    void insert(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, file.getId(), getEntry(t));
+    }
+
+    /**
+     * Remove the entry for a tuple about to be deleted from the table.
+     *
+     * @throws DbException if the index has no entry for the tuple
+     */
+    void delete(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, t.getField(field)));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple entry = it.next();
+                if (getRecordId(entry).equals(rid)) {
+                    Database.getBufferPool().deleteTuple(tid, entry);
+                    return;
+                }
+            }
+        } finally {
+            it.close();
+        }
+        throw new DbException("index " + name + " has no entry for tuple " + rid);
+    }
+}
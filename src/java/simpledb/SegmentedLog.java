@@ -0,0 +1,344 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The records of a LogFile, stored in segment files of a fixed size.  A
+ * position in the log is its LSN, which keeps growing from segment to
+ * segment; the segment holding LSN l starts at l - l % segmentSize and is
+ * named after that start, e.g. log.00000000000004194304.  Records may span
+ * two segments.
+ *
+ * <p> Appends go to the end of the log.  Truncating the head of the log
+ * deletes the segments that end before the first LSN still needed, without
+ * touching the rest, and LSNs never change.
+ *
+ * <p> Reads start at a position set with seek() and go through a read-ahead
+ * buffer.  Reading past the end of the log throws an EOFException.  Not
+ * thread safe; LogFile only uses it under its monitor.
+ */
+class SegmentedLog implements DataInput {
+    /** Default size of a segment file */
+    static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+
+    // open segment files by start LSN
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    // segments written since they were last forced
+    private final Set<Long> unforced = new HashSet<Long>();
+    private long start = 0;
+    private long end = 0;
+
+    private long position = 0;
+    private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    private long bufferStart = 0;
+    private int bufferLength = 0;
+    private final DataInputStream in = new DataInputStream(new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return readAt(b, off, len);
+        }
+    });
+
+    /**
+     * Open the segments of the log whose segment files are named after
+     * base, e.g. base.00000000000000000000, creating none yet.
+     *
+     * @param base the path the segment file names start with
+     * @param segmentSize the size of each segment file in bytes
+     */
+    SegmentedLog(File base, long segmentSize) throws IOException {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("invalid log segment size " + segmentSize);
+        File absolute = base.getAbsoluteFile();
+        this.dir = absolute.getParentFile();
+        this.prefix = absolute.getName() + ".";
+        this.segmentSize = segmentSize;
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long segmentStart = parseSegmentStart(file.getName());
+                if (segmentStart >= 0)
+                    segments.put(segmentStart, new RandomAccessFile(file, "rw"));
+            }
+        }
+        if (!segments.isEmpty()) {
+            start = segments.firstKey();
+            end = segments.lastKey() + segments.lastEntry().getValue().length();
+        }
+    }
+
+    private long parseSegmentStart(String name) {
+        if (!name.startsWith(prefix))
+            return -1;
+        String suffix = name.substring(prefix.length());
+        if (suffix.length() != 20)
+            return -1;
+        for (int i = 0; i < suffix.length(); i++) {
+            if (!Character.isDigit(suffix.charAt(i)))
+                return -1;
+        }
+        return Long.parseLong(suffix);
+    }
+
+    private File segmentFile(long segmentStart) {
+        return new File(dir, prefix + String.format("%020d", segmentStart));
+    }
+
+    private long segmentOf(long lsn) {
+        return lsn - lsn % segmentSize;
+    }
+
+    /** @return the first LSN kept in the log */
+    long getStart() {
+        return start;
+    }
+
+    /** @return the LSN following the last byte of the log */
+    long length() {
+        return end;
+    }
+
+    /** @return the number of segment files */
+    int getNumSegments() {
+        return segments.size();
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** Delete all segments; the log starts again, empty, at the given LSN */
+    void reset(long lsn) throws IOException {
+        for (Map.Entry<Long, RandomAccessFile> e : segments.entrySet())
+            deleteSegment(e.getKey(), e.getValue());
+        segments.clear();
+        unforced.clear();
+        start = lsn;
+        end = lsn;
+        position = lsn;
+        bufferLength = 0;
+    }
+
+    private void deleteSegment(long segmentStart, RandomAccessFile file) throws IOException {
+        file.close();
+        segmentFile(segmentStart).delete();
+    }
+
+    /** Append bytes at the end of the log, without forcing them */
+    void append(byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            long segmentStart = segmentOf(end);
+            RandomAccessFile file = segments.get(segmentStart);
+            if (file == null) {
+                file = new RandomAccessFile(segmentFile(segmentStart), "rw");
+                segments.put(segmentStart, file);
+            }
+            int n = (int) Math.min(b.length - off, segmentStart + segmentSize - end);
+            file.seek(end - segmentStart);
+            file.write(b, off, n);
+            unforced.add(segmentStart);
+            end += n;
+            off += n;
+        }
+    }
+
+    /**
+     * @return the channels of the segments written since they were last
+     * forced; they count as forced from now on, so the caller must force them
+     */
+    List<FileChannel> takeUnforced() {
+        List<FileChannel> channels = new ArrayList<FileChannel>();
+        for (long segmentStart : unforced)
+            channels.add(segments.get(segmentStart).getChannel());
+        unforced.clear();
+        return channels;
+    }
+
+    /** Force everything appended so far to disk */
+    void force() throws IOException {
+        for (FileChannel channel : takeUnforced())
+            channel.force(true);
+    }
+
+    /**
+     * Delete the segments that end at or before lsn, keeping the last one.
+     */
+    void truncateBefore(long lsn) throws IOException {
+        Iterator<Map.Entry<Long, RandomAccessFile>> it = segments.entrySet().iterator();
+        while (it.hasNext() && segments.size() > 1) {
+            Map.Entry<Long, RandomAccessFile> e = it.next();
+            if (e.getKey() + segmentSize > lsn)
+                break;
+            deleteSegment(e.getKey(), e.getValue());
+            unforced.remove(e.getKey());
+            it.remove();
+        }
+        if (!segments.isEmpty() && segments.firstKey() > start)
+            start = segments.firstKey();
+        bufferLength = 0;
+    }
+
+    /**
+     * Cut the log at lsn, deleting everything from there on, e.g. a record
+     * only partly written by a crash.
+     */
+    void setLength(long lsn) throws IOException {
+        Iterator<Map.Entry<Long, RandomAccessFile>> it = segments.tailMap(lsn, true).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, RandomAccessFile> e = it.next();
+            deleteSegment(e.getKey(), e.getValue());
+            unforced.remove(e.getKey());
+            it.remove();
+        }
+        Map.Entry<Long, RandomAccessFile> last = segments.lastEntry();
+        if (last != null && last.getKey() + last.getValue().length() > lsn) {
+            last.getValue().setLength(lsn - last.getKey());
+            unforced.add(last.getKey());
+        }
+        end = Math.max(start, lsn);
+        bufferLength = 0;
+    }
+
+    void close() throws IOException {
+        for (RandomAccessFile file : segments.values())
+            file.close();
+    }
+
+    /** Set the LSN the next read starts at */
+    void seek(long lsn) {
+        position = lsn;
+    }
+
+    /** @return the LSN the next read starts at */
+    long getFilePointer() {
+        return position;
+    }
+
+    private int readAt(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (position >= end)
+            return -1;
+        if (position < start)
+            throw new IOException("LSN " + position + " precedes the start of the log at " + start);
+        if (position < bufferStart || position >= bufferStart + bufferLength) {
+            long segmentStart = segmentOf(position);
+            RandomAccessFile file = segments.get(segmentStart);
+            if (file == null)
+                throw new IOException("no log segment holds LSN " + position);
+            int n = (int) Math.min(buffer.length, Math.min(segmentStart + segmentSize, end) - position);
+            file.seek(position - segmentStart);
+            file.readFully(buffer, 0, n);
+            bufferStart = position;
+            bufferLength = n;
+        }
+        int n = (int) Math.min(len, bufferStart + bufferLength - position);
+        System.arraycopy(buffer, (int) (position - bufferStart), b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        in.readFully(b);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        in.readFully(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        int skipped = (int) Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return in.readBoolean();
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return in.readByte();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return in.readUnsignedByte();
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return in.readShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return in.readUnsignedShort();
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return in.readChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return in.readInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return in.readLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return in.readFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return in.readDouble();
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        throw new UnsupportedOperationException("the log holds no lines");
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return in.readUTF();
+    }
+}
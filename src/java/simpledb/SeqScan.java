@@ -34,7 +34,14 @@ public class SeqScan implements OpIterator {
         this.tid = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
-        this.dbFileIterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile) {
+            // 大表扫描只用一个小的私有环，不挤占共享的BufferPool
+            HeapFile heapFile = (HeapFile) file;
+            this.dbFileIterator = heapFile.iterator(tid, AccessStrategy.forScan(heapFile.numPages()));
+        } else {
+            this.dbFileIterator = file.iterator(tid);
+        }
     }
 
     /**
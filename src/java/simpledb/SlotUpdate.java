@@ -0,0 +1,204 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The slots an update of a SlottedPage changed, with their contents before
+ * and after it, as logged by a SLOT_UPDATE record of the LogFile.  Inserting
+ * or deleting a tuple changes one slot, and moving entries between slots of
+ * a BTreeLeafPage changes the slots they move from and to; the rest of the
+ * page is left as it was.
+ *
+ * <p> Redo sets each slot to its contents after the update and undo to its
+ * contents before it, so either can be applied to a version of the page that
+ * already reflects it.
+ */
+class SlotUpdate {
+    private final String pageClassName;
+    private final PageId pid;
+    private final int headerOffset;
+    private final int slotOffset;
+    private final int slotSize;
+    private final int[] slots;
+    // contents of each changed slot, null if it is empty
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private SlotUpdate(String pageClassName, PageId pid, int headerOffset, int slotOffset,
+                       int slotSize, int[] slots, byte[][] before, byte[][] after) {
+        this.pageClassName = pageClassName;
+        this.pid = pid;
+        this.headerOffset = headerOffset;
+        this.slotOffset = slotOffset;
+        this.slotSize = slotSize;
+        this.slots = slots;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the slots changed between two versions of a page.
+     *
+     * @return the changed slots, or null if the pages are not SlottedPages,
+     * bytes outside the slots changed, or the changed slots are no smaller
+     * than a page image
+     */
+    static SlotUpdate diff(Page before, Page after) {
+        if (!(after instanceof SlottedPage) || before.getClass() != after.getClass())
+            return null;
+        SlottedPage page = (SlottedPage) after;
+        int headerOffset = page.getHeaderOffset();
+        int slotOffset = page.getSlotOffset();
+        int slotSize = page.getSlotSize();
+        int numSlots = page.getNumSlots();
+        int slotsEnd = slotOffset + numSlots * slotSize;
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+
+        // header bytes may only differ in slot bits
+        if (!sameRange(b, a, 0, headerOffset)
+                || !sameRange(b, a, headerOffset + (numSlots + 7) / 8, slotOffset)
+                || !sameRange(b, a, slotsEnd, a.length))
+            return null;
+
+        List<Integer> slots = new ArrayList<Integer>();
+        List<byte[]> beforeSlots = new ArrayList<byte[]>();
+        List<byte[]> afterSlots = new ArrayList<byte[]>();
+        int size = 0;
+        for (int i = 0; i < numSlots; i++) {
+            byte[] was = readSlot(b, i, headerOffset, slotOffset, slotSize);
+            byte[] is = readSlot(a, i, headerOffset, slotOffset, slotSize);
+            if (was == null ? is == null : is != null && Arrays.equals(was, is))
+                continue;
+            slots.add(i);
+            beforeSlots.add(was);
+            afterSlots.add(is);
+            size += 6 + (was == null ? 0 : slotSize) + (is == null ? 0 : slotSize);
+            if (size >= a.length)
+                return null;
+        }
+
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++)
+            slotArray[i] = slots.get(i);
+        return new SlotUpdate(after.getClass().getName(), after.getId(), headerOffset, slotOffset,
+                slotSize, slotArray, beforeSlots.toArray(new byte[0][]), afterSlots.toArray(new byte[0][]));
+    }
+
+    private static boolean sameRange(byte[] b, byte[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] != a[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] readSlot(byte[] data, int slot, int headerOffset, int slotOffset, int slotSize) {
+        if ((data[headerOffset + slot / 8] & (1 << (slot % 8))) == 0)
+            return null;
+        int start = slotOffset + slot * slotSize;
+        return Arrays.copyOfRange(data, start, start + slotSize);
+    }
+
+    /**
+     * @return the id of the updated page
+     */
+    PageId getPageId() {
+        return pid;
+    }
+
+    /**
+     * @return the number of slots the update changed
+     */
+    int getNumSlots() {
+        return slots.length;
+    }
+
+    /**
+     * Apply the update to a version of its page.
+     *
+     * @return a copy of page with the changed slots as they were after the update
+     */
+    Page redo(Page page) throws IOException {
+        return apply(page, after);
+    }
+
+    /**
+     * Revert the update on a version of its page.
+     *
+     * @return a copy of page with the changed slots as they were before the update
+     */
+    Page undo(Page page) throws IOException {
+        return apply(page, before);
+    }
+
+    private Page apply(Page page, byte[][] contents) throws IOException {
+        if (!page.getClass().getName().equals(pageClassName) || !page.getId().equals(pid))
+            throw new IOException("cannot apply update of " + pageClassName + " " + pid + " to " + page.getId());
+        byte[] data = page.getPageData();
+        for (int i = 0; i < slots.length; i++) {
+            int slot = slots[i];
+            int start = slotOffset + slot * slotSize;
+            int mask = 1 << (slot % 8);
+            if (contents[i] == null) {
+                data[headerOffset + slot / 8] &= ~mask;
+                Arrays.fill(data, start, start + slotSize, (byte) 0);
+            } else {
+                data[headerOffset + slot / 8] |= mask;
+                System.arraycopy(contents[i], 0, data, start, slotSize);
+            }
+        }
+        return ((SlottedPage) page).withPageData(data);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(pageClassName);
+        LogFile.writePageId(out, pid);
+        out.writeInt(headerOffset);
+        out.writeInt(slotOffset);
+        out.writeInt(slotSize);
+        out.writeInt(slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            out.writeInt(slots[i]);
+            writeSlot(out, before[i]);
+            writeSlot(out, after[i]);
+        }
+    }
+
+    private static void writeSlot(DataOutput out, byte[] contents) throws IOException {
+        out.writeBoolean(contents != null);
+        if (contents != null)
+            out.write(contents);
+    }
+
+    static SlotUpdate read(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = LogFile.readPageId(in);
+        int headerOffset = in.readInt();
+        int slotOffset = in.readInt();
+        int slotSize = in.readInt();
+        int numSlots = in.readInt();
+        int[] slots = new int[numSlots];
+        byte[][] before = new byte[numSlots][];
+        byte[][] after = new byte[numSlots][];
+        for (int i = 0; i < numSlots; i++) {
+            slots[i] = in.readInt();
+            before[i] = readSlot(in, slotSize);
+            after[i] = readSlot(in, slotSize);
+        }
+        return new SlotUpdate(pageClassName, pid, headerOffset, slotOffset, slotSize, slots, before, after);
+    }
+
+    private static byte[] readSlot(DataInput in, int slotSize) throws IOException {
+        if (!in.readBoolean())
+            return null;
+        byte[] contents = new byte[slotSize];
+        in.readFully(contents);
+        return contents;
+    }
+}
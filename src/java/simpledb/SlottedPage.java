@@ -0,0 +1,41 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * A page whose data holds a bitmap of used slots followed by fixed-size
+ * slots, one tuple per slot, like HeapPage and BTreeLeafPage.  Slot i is
+ * used if bit i % 8 of header byte i / 8 is set.  The LogFile logs an
+ * update that only filled, emptied or overwrote slots of such a page as
+ * the changed slots instead of two page images.
+ *
+ * @see SlotUpdate
+ */
+public interface SlottedPage extends Page {
+    /**
+     * @return the number of slots on this page
+     */
+    public int getNumSlots();
+
+    /**
+     * @return the size of a slot in bytes
+     */
+    public int getSlotSize();
+
+    /**
+     * @return the offset of the used slot bitmap in the page data
+     */
+    public int getHeaderOffset();
+
+    /**
+     * @return the offset of the first slot in the page data; slot i starts
+     * i * getSlotSize() bytes after it
+     */
+    public int getSlotOffset();
+
+    /**
+     * @return a new page with the id of this page and the given data, as
+     * returned by getPageData
+     */
+    public SlottedPage withPageData(byte[] data) throws IOException;
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Full 2Q (Johnson and Shasha). A page seen for the first time enters the
+ * FIFO queue A1in; if it is evicted from there its id is remembered in the
+ * ghost queue A1out. Only a page that is requested again while its id is
+ * still in A1out is admitted into the LRU queue Am, so pages that are read
+ * once by a scan never displace the hot set.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    // FIFO of resident pages seen once
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    // FIFO of ids of pages recently evicted from a1in (not resident)
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    // LRU of resident hot pages, least recently used first
+    private final LinkedHashMap<PageId, Boolean> am = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Uses the tuning suggested in the paper: A1in holds a quarter of the
+     * pool and A1out remembers half as many ids as the pool holds pages.
+     *
+     * @param numPages the capacity of the buffer pool
+     */
+    public TwoQueueEvictionPolicy(int numPages) {
+        this(Math.max(numPages / 4, 1), Math.max(numPages / 2, 1));
+    }
+
+    /**
+     * @param kin  the target size of A1in
+     * @param kout the number of ids remembered in A1out
+     */
+    public TwoQueueEvictionPolicy(int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    @Override
+    public synchronized void pageAdmitted(PageId pid) {
+        if (am.containsKey(pid) || a1in.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    @Override
+    public synchronized void pageAccessed(PageId pid) {
+        // a hit in a1in is deliberately ignored: correlated references
+        // right after the first one do not make a page hot
+        am.get(pid);
+    }
+
+    @Override
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    @Override
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = firstEvictable(a1in, evictable);
+        }
+        if (victim == null) {
+            victim = firstEvictable(am.keySet(), evictable);
+        }
+        if (victim == null) {
+            victim = firstEvictable(a1in, evictable);
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(Iterable<PageId> queue, Evictable evictable) {
+        for (PageId pid : queue) {
+            if (evictable.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
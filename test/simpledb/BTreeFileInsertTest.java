@@ -1,10 +1,13 @@
 package simpledb;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.BTreeUtility.BTreeWriter;
 import simpledb.Predicate.Op;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.After;
 import org.junit.Before;
@@ -172,6 +175,132 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	@Test
+	public void testSplitWhileReading() throws Exception {
+		// This should create a B+ tree with 100 leaf pages under the root page
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+		BTreePageId rootPtrPid = BTreeRootPtrPage.getId(bigFile.getId());
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getLatchedPage(rootPtrPid);
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getLatchedPage(rootId);
+		Iterator<BTreeEntry> it = root.iterator();
+		for (int i = 0; i < 50; i++) {
+			it.next();
+		}
+		int key = ((IntField) it.next().getKey()).getValue();
+
+		// reading the first leaf page locks neither the root pointer page nor the root page
+		DbFileIterator fit = bigFile.iterator(tid);
+		fit.open();
+		assertTrue(fit.hasNext());
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrPid));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+
+		// so a split of a leaf page in the middle of the tree, which changes the
+		// root page, goes ahead while the first leaf page is being read
+		int numPages = bigFile.numPages();
+		TransactionId tid1 = new TransactionId();
+		BTreeWriter bw1 = new BTreeWriter(tid1, bigFile, key, 1);
+		bw1.start();
+		bw1.join(10000);
+		assertTrue(bw1.succeeded());
+		assertTrue(bigFile.numPages() > numPages);
+		Database.getBufferPool().transactionComplete(tid1);
+		fit.close();
+
+		// an insert into a leaf page with room locks no page above it either
+		Database.getBufferPool().insertTuple(tid, bigFile.getId(), BTreeUtility.getBTreeTuple(key, 2));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrPid));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+	}
+
+	@Test
+	public void testConcurrentWritesAndAborts() throws Exception {
+		// a tree of 100 leaf pages under the root page, in a buffer pool too small to hold them
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		final AtomicInteger tuples = new AtomicInteger(50200);
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+		// writers insert tuples into a few leaf pages, which splits them, and delete ranges of
+		// keys, which merges them, and abort a third of the time, while deadlocks abort some more
+		ArrayList<Thread> writers = new ArrayList<Thread>();
+		for (int w = 0; w < 8; w++) {
+			final Random r = new Random(w);
+			writers.add(new Thread(() -> {
+				for (int i = 0; i < 40 && error.get() == null; i++) {
+					TransactionId wtid = new TransactionId();
+					int low = r.nextInt(BTreeUtility.MAX_RAND_VALUE - 800);
+					int change = 0;
+					try {
+						if (r.nextBoolean()) {
+							for (int j = 0; j < 200; j++) {
+								Database.getBufferPool().insertTuple(wtid, bigFile.getId(),
+										BTreeUtility.getBTreeTuple(low + r.nextInt(800), 2));
+								change++;
+							}
+						} else {
+							DbFileIterator it = bigFile.indexIterator(wtid,
+									new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(low)));
+							it.open();
+							while (it.hasNext()) {
+								Tuple t = it.next();
+								if (((IntField) t.getField(0)).getValue() >= low + 800) {
+									break;
+								}
+								Database.getBufferPool().deleteTuple(wtid, t);
+								change--;
+							}
+							it.close();
+						}
+						if (r.nextInt(3) == 0) {
+							Database.getBufferPool().transactionComplete(wtid, false);
+						} else {
+							Database.getBufferPool().transactionComplete(wtid);
+							tuples.addAndGet(change);
+						}
+					} catch (TransactionAbortedException e) {
+						try {
+							Database.getBufferPool().transactionComplete(wtid, false);
+						} catch (Exception e2) {
+							error.compareAndSet(null, e2);
+						}
+					} catch (Exception e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			}));
+		}
+		for (Thread writer : writers) {
+			writer.start();
+		}
+		for (Thread writer : writers) {
+			writer.join(300000);
+			assertFalse(writer.isAlive());
+		}
+		if (error.get() != null) {
+			throw error.get();
+		}
+
+		// no page was lost or linked twice: the tree holds exactly the committed tuples, in order
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<PageId, Page>(), false);
+		DbFileIterator it = bigFile.iterator(tid);
+		it.open();
+		int count = 0;
+		int last = Integer.MIN_VALUE;
+		while (it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(key >= last);
+			last = key;
+			count++;
+		}
+		it.close();
+		assertEquals(tuples.get(), count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
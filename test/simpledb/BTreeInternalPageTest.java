@@ -82,6 +82,52 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		assertEquals(pid, page.getId());
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChildId() and findLastChildId(),
+	 * against a linear scan of the entries, with empty slots between them
+	 */
+	@Test public void findChildId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (i++ % 3 == 1)
+				page.deleteKeyAndRightChild(e);
+		}
+
+		List<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		assertEquals(entries.get(0).getLeftChild(), page.findChildId(null));
+		assertEquals(entries.get(entries.size() - 1).getRightChild(), page.findLastChildId(null));
+
+		List<Integer> probes = new ArrayList<Integer>();
+		for (int[] value : EXAMPLE_VALUES) {
+			probes.add(value[1]);
+			probes.add(value[1] + 1);
+		}
+		probes.add(0);
+		for (int probe : probes) {
+			IntField f = new IntField(probe);
+			BTreePageId first = entries.get(entries.size() - 1).getRightChild();
+			for (BTreeEntry e : entries) {
+				if (e.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, f)) {
+					first = e.getLeftChild();
+					break;
+				}
+			}
+			BTreePageId last = entries.get(0).getLeftChild();
+			for (BTreeEntry e : entries) {
+				if (e.getKey().compare(Predicate.Op.LESS_THAN_OR_EQ, f))
+					last = e.getRightChild();
+			}
+			assertEquals(first, page.findChildId(f));
+			assertEquals(last, page.findLastChildId(f));
+		}
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getParentId()
 	 */
@@ -166,6 +212,37 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() with empty slots
+	 * between the entries, which must return the same entries as iterator()
+	 */
+	@Test public void reverseIteratorWithEmptySlots() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (i++ % 3 == 1)
+				page.deleteKeyAndRightChild(e);
+		}
+
+		LinkedList<BTreeEntry> entries = new LinkedList<BTreeEntry>();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.addFirst(it.next());
+
+		it = page.reverseIterator();
+		for (BTreeEntry expected : entries) {
+			assertTrue(it.hasNext());
+			BTreeEntry e = it.next();
+			assertEquals(expected.getKey(), e.getKey());
+			assertEquals(expected.getLeftChild(), e.getLeftChild());
+			assertEquals(expected.getRightChild(), e.getRightChild());
+			assertEquals(expected.getRecordId(), e.getRecordId());
+		}
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
@@ -80,6 +80,65 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		assertEquals(pid, page.getId());
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.findSlot() and the iterators starting at a
+	 * key, against a linear scan of the tuples, with empty slots and
+	 * duplicate keys between them
+	 */
+	@Test public void findSlot() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		Iterator<Tuple> it = page.iterator();
+		int i = 0;
+		List<Tuple> deleted = new ArrayList<Tuple>();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (i++ % 3 == 1)
+				deleted.add(t);
+		}
+		for (Tuple t : deleted)
+			page.deleteTuple(t);
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[] { EXAMPLE_VALUES[0][0], 2 }));
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[] { EXAMPLE_VALUES[0][0], 2 }));
+
+		List<Integer> probes = new ArrayList<Integer>();
+		for (int[] value : EXAMPLE_VALUES) {
+			probes.add(value[0]);
+			probes.add(value[0] + 1);
+		}
+		probes.add(0);
+		for (int probe : probes) {
+			IntField f = new IntField(probe);
+			List<Tuple> atLeast = new ArrayList<Tuple>();
+			List<Tuple> atMost = new ArrayList<Tuple>();
+			it = page.iterator();
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+					atLeast.add(t);
+				else
+					atMost.add(0, t);
+				if (t.getField(0).equals(f))
+					atMost.add(0, t);
+			}
+			int slot = page.findSlot(f, true);
+			if (atLeast.isEmpty())
+				assertEquals(page.getMaxTuples(), slot);
+			else
+				assertEquals(atLeast.get(0).getRecordId().getTupleNumber(), slot);
+
+			List<Tuple> found = new ArrayList<Tuple>();
+			it = page.iterator(f);
+			while (it.hasNext())
+				found.add(it.next());
+			assertEquals(atLeast, found);
+			found.clear();
+			it = page.reverseIterator(f);
+			while (it.hasNext())
+				found.add(it.next());
+			assertEquals(atMost, found);
+		}
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getParentId()
 	 */
@@ -0,0 +1,227 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 20;
+
+    private BufferPool bp;
+    private TransactionId tid;
+    // a table larger than the pool, scanned with a ring
+    private HeapFile big;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        big = SystemTestUtil.createRandomHeapFile(2, 3 * POOL_PAGES * HeapPage.getNumTuples(Utility.getTupleDesc(2)),
+                null, null);
+        bp = Database.resetBufferPool(POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A HeapFile that counts its page reads and can hold them until released
+     */
+    private static class InstrumentedHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+        final CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(0);
+        // whether a read is held after reading the page rather than before
+        boolean holdAfterRead = false;
+
+        InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            Page page = holdAfterRead ? super.readPage(pid) : null;
+            reading.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return holdAfterRead ? page : super.readPage(pid);
+        }
+    }
+
+    private InstrumentedHeapFile instrument(HeapFile f) {
+        InstrumentedHeapFile instrumented = new InstrumentedHeapFile(f.getFile(), f.getTupleDesc());
+        Database.getCatalog().addTable(instrumented, Database.getCatalog().getTableName(f.getId()));
+        return instrumented;
+    }
+
+    private HeapPageId page(HeapFile f, int pgNo) {
+        return new HeapPageId(f.getId(), pgNo);
+    }
+
+    /**
+     * A scan with a ring reads a table larger than the pool without evicting
+     * the pages other queries cached
+     */
+    @Test public void ringScanKeepsCachedPages() throws Exception {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 5 * HeapPage.getNumTuples(Utility.getTupleDesc(2)),
+                null, null);
+        for (int i = 0; i < hot.numPages(); i++) {
+            bp.getPage(tid, page(hot, i), Permissions.READ_ONLY);
+        }
+
+        AccessStrategy strategy = AccessStrategy.forScan(big.numPages());
+        assertTrue(strategy.usesRing());
+        for (int i = 0; i < big.numPages(); i++) {
+            bp.getPage(tid, page(big, i), Permissions.READ_ONLY, strategy);
+        }
+
+        for (int i = 0; i < hot.numPages(); i++) {
+            assertTrue(bp.isCached(page(hot, i)));
+        }
+        int cached = 0;
+        for (int i = 0; i < big.numPages(); i++) {
+            if (bp.isCached(page(big, i))) {
+                cached++;
+            }
+        }
+        assertEquals(strategy.getRingSize(), cached);
+    }
+
+    /**
+     * A normal access to a page in a ring moves it to the shared pool, so the
+     * ring does not recycle its frame
+     */
+    @Test public void normalAccessPromotesRingPage() throws Exception {
+        AccessStrategy strategy = AccessStrategy.forScan(big.numPages());
+        int promoted = POOL_PAGES / 2;
+        for (int i = 0; i < big.numPages(); i++) {
+            bp.getPage(tid, page(big, i), Permissions.READ_ONLY, strategy);
+            if (i == promoted) {
+                bp.getPage(tid, page(big, i), Permissions.READ_ONLY);
+            }
+        }
+        assertTrue(bp.isCached(page(big, promoted)));
+        assertFalse(bp.isCached(page(big, promoted + 1)));
+    }
+
+    /**
+     * Prefetching a page that is already cached does not read it again
+     */
+    @Test public void prefetchSkipsCachedPage() throws Exception {
+        InstrumentedHeapFile f = instrument(big);
+        bp.getPage(tid, page(f, 0), Permissions.READ_ONLY);
+        assertEquals(1, f.reads.get());
+        bp.prefetchPage(page(f, 0), AccessStrategy.NORMAL).get();
+        assertEquals(1, f.reads.get());
+
+        bp.prefetchPage(page(f, 1), AccessStrategy.NORMAL).get();
+        assertEquals(2, f.reads.get());
+        assertTrue(bp.isCached(page(f, 1)));
+    }
+
+    /**
+     * A prefetched page is dropped if a page was discarded while it was being
+     * read, since the copy read may be stale
+     */
+    @Test public void prefetchDroppedAfterDiscard() throws Exception {
+        InstrumentedHeapFile f = instrument(big);
+        f.proceed = new CountDownLatch(1);
+        Future<?> prefetch = bp.prefetchPage(page(f, 0), AccessStrategy.NORMAL);
+        f.reading.await();
+        bp.discardPage(page(f, 0));
+        f.proceed.countDown();
+        prefetch.get();
+        assertEquals(1, f.reads.get());
+        assertFalse(bp.isCached(page(f, 0)));
+    }
+
+    /**
+     * A page read while the pool discarded or wrote out pages is read again
+     * instead of cached, since a newer version may have been written out and
+     * evicted meanwhile
+     */
+    @Test public void readDuringWriteNotCachedStale() throws Exception {
+        InstrumentedHeapFile f = instrument(big);
+        f.holdAfterRead = true;
+        f.proceed = new CountDownLatch(1);
+        FutureTask<Page> read = new FutureTask<>(() -> bp.getPage(tid, page(f, 0), Permissions.READ_ONLY));
+        new Thread(read).start();
+        f.reading.await();
+        HeapPage newer = new HeapPage(page(f, 0), HeapPage.createEmptyPageData());
+        f.writePage(newer);
+        bp.discardPage(page(f, 0));
+        f.proceed.countDown();
+        assertArrayEquals(newer.getPageData(), read.get().getPageData());
+        assertEquals(2, f.reads.get());
+    }
+
+    /**
+     * The latch table keeps no entry for a page once its latches are released
+     */
+    @Test public void latchesDroppedWhenReleased() throws Exception {
+        bp.latchPage(page(big, 0), Permissions.READ_ONLY);
+        bp.latchPage(page(big, 0), Permissions.READ_ONLY);
+        assertTrue(bp.tryLatchPage(page(big, 1), Permissions.READ_WRITE));
+        assertEquals(2, bp.latchedPageCount());
+
+        // a try that fails leaves nothing behind either
+        FutureTask<Boolean> other = new FutureTask<>(() -> bp.tryLatchPage(page(big, 0), Permissions.READ_WRITE));
+        new Thread(other).start();
+        assertFalse(other.get());
+        assertEquals(2, bp.latchedPageCount());
+
+        bp.unlatchPage(page(big, 0), Permissions.READ_ONLY);
+        assertEquals(2, bp.latchedPageCount());
+        bp.unlatchPage(page(big, 0), Permissions.READ_ONLY);
+        bp.unlatchPage(page(big, 1), Permissions.READ_WRITE);
+        assertEquals(0, bp.latchedPageCount());
+
+        assertTrue(bp.tryLatchPage(page(big, 0), Permissions.READ_WRITE));
+        bp.unlatchPage(page(big, 0), Permissions.READ_WRITE);
+        assertEquals(0, bp.latchedPageCount());
+    }
+
+    /**
+     * A page read without a lock is no longer current once an abort rolled
+     * it back, while pages the abort did not touch stay current
+     */
+    @Test public void abortReplacesRolledBackPages() throws Exception {
+        Page written = bp.getLatchedPage(page(big, 0));
+        Page untouched = bp.getLatchedPage(page(big, 1));
+        assertTrue(bp.isCurrent(Arrays.asList(written, untouched)));
+
+        TransactionId aborted = new TransactionId();
+        bp.getPage(aborted, page(big, 0), Permissions.READ_WRITE).markDirty(true, aborted);
+        bp.transactionComplete(aborted, false);
+        assertFalse(bp.isCurrent(Arrays.asList(written)));
+        assertTrue(bp.isCurrent(Arrays.asList(untouched)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
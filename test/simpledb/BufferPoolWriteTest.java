@@ -133,6 +133,102 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Committing or aborting a transaction only touches its own pages; pages
+     * dirtied by other transactions stay dirty in the pool
+     */
+    @Test public void transactionCompleteOwnPagesOnly() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        TransactionId tid2 = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().insertTuple(tid2, other.getId(), Utility.getHeapTuple(2, 2));
+
+        HeapPageId mine = new HeapPageId(empty.getId(), 0);
+        HeapPageId theirs = new HeapPageId(other.getId(), 0);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(503, ((HeapPage) empty.readPage(mine)).getNumEmptySlots());
+        assertFalse(Database.getBufferPool().holdsLock(tid, mine));
+        assertEquals(504, ((HeapPage) other.readPage(theirs)).getNumEmptySlots());
+        assertTrue(Database.getBufferPool().holdsLock(tid2, theirs));
+
+        Page dirty = Database.getBufferPool().getPage(tid2, theirs, Permissions.READ_ONLY);
+        assertEquals(tid2, dirty.isDirty());
+        Database.getBufferPool().transactionComplete(tid2, false);
+        Page restored = Database.getBufferPool().getPage(tid, theirs, Permissions.READ_ONLY);
+        assertNull(restored.isDirty());
+        assertEquals(504, ((HeapPage) restored).getNumEmptySlots());
+    }
+
+    /**
+     * In STEAL mode a transaction can dirty more pages than the pool holds;
+     * dirty pages are written out on eviction and undone from the log when
+     * the transaction aborts
+     */
+    @Test public void stealEvictsDirtyPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*4, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.setSteal(true);
+        Transaction t = new Transaction();
+        t.start();
+
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        for (int i = 0; i < 4; i++) {
+            bp.deleteTuple(t.getId(), tuples.get(i * 504));
+        }
+        assertEquals(1, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).getNumEmptySlots());
+
+        t.abort();
+        for (int i = 0; i < 4; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            assertEquals(0, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+            assertEquals(0, ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).getNumEmptySlots());
+        }
+    }
+
+    /**
+     * In NO-FORCE mode commit only logs the pages of the transaction; they
+     * stay in the pool until the cleaner writes them out, in one write per
+     * run of adjacent pages
+     */
+    @Test public void noForceLeavesPagesToCleaner() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*3, null, null);
+        BufferPool bp = Database.getBufferPool();
+        bp.setNoForce(true);
+        bp.setCleaner(100, 60000);
+        Transaction t = new Transaction();
+        t.start();
+
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        for (int i = 0; i < 3; i++) {
+            bp.deleteTuple(t.getId(), tuples.get(i * 504));
+        }
+        t.commit();
+
+        assertEquals(3, bp.getNumUnwrittenPages());
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+        assertEquals(0, ((HeapPage) hf.readPage(first)).getNumEmptySlots());
+        assertNull(bp.getPage(tid, first, Permissions.READ_ONLY).isDirty());
+
+        bp.cleanPages();
+        assertEquals(0, bp.getNumUnwrittenPages());
+        for (int i = 0; i < 3; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            assertEquals(1, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -2,6 +2,10 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -93,6 +97,162 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Check that a trailing mmap annotation in the schema marks the table
+     * for the memory-mapped read path
+     */
+    @Test public void loadSchemaMemoryMapped() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("mapped_t (a int pk, b int) mmap\n");
+        w.write("plain_t (a int, b int)\n");
+        w.close();
+
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        int mapped = Database.getCatalog().getTableId("mapped_t");
+        int plain = Database.getCatalog().getTableId("plain_t");
+        Assert.assertTrue(Database.getCatalog().isMemoryMapped(mapped));
+        Assert.assertFalse(Database.getCatalog().isMemoryMapped(plain));
+        assertEquals("a", Database.getCatalog().getPrimaryKey(mapped));
+
+        Database.getCatalog().setMemoryMapped(plain, true);
+        Assert.assertTrue(((HeapFile) Database.getCatalog().getDatabaseFile(plain)).isMemoryMapped());
+    }
+
+    /**
+     * Check that a trailing hash annotation in the schema stores the table in
+     * a HashFile keyed on its primary key
+     */
+    @Test public void loadSchemaHash() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("hashed_t (a int, b int pk) hash\n");
+        w.close();
+        new File(schema.getParent(), "hashed_t.dat").deleteOnExit();
+
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("hashed_t"));
+        Assert.assertTrue(f instanceof HashFile);
+        assertEquals(1, ((HashFile) f).keyField());
+    }
+
+    /**
+     * Check that an index line in the schema builds a secondary index the
+     * first time and opens it afterwards
+     */
+    @Test public void loadSchemaIndex() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        String table = "t" + Math.abs(r.nextInt());
+        FileWriter w = new FileWriter(schema);
+        w.write(table + " (a int, b int)\n");
+        w.write("index " + table + "_b on " + table + " (b)\n");
+        w.close();
+        File tableFile = new File(schema.getParent(), table + ".dat");
+        File indexFile = new File(schema.getParent(), table + "_b.idx");
+        tableFile.deleteOnExit();
+        new File(tableFile.getPath() + ".fsm").deleteOnExit();
+        indexFile.deleteOnExit();
+
+        for (int i = 0; i < 2; i++) {
+            Database.getCatalog().clear();
+            Database.getCatalog().loadSchema(schema.getAbsolutePath());
+            int tableid = Database.getCatalog().getTableId(table);
+            assertEquals(1, Database.getCatalog().getIndexes(tableid).size());
+            SecondaryIndex index = Database.getCatalog().getIndexes(tableid).get(0);
+            assertEquals(1, index.getField());
+            assertEquals(indexFile.getAbsoluteFile(), index.getFile().getFile().getAbsoluteFile());
+            Assert.assertTrue(indexFile.exists());
+        }
+    }
+
+    /**
+     * Check that a saved index is listed in the schema and opened again when
+     * it is loaded, and that an index file no index uses is replaced
+     */
+    @Test public void saveIndex() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        String table = "t" + Math.abs(r.nextInt());
+        FileWriter w = new FileWriter(schema);
+        w.write(table + " (a int, b int)");
+        w.close();
+        File tableFile = new File(schema.getParent(), table + ".dat");
+        File indexFile = new File(schema.getParent(), table + "_b.idx");
+        tableFile.deleteOnExit();
+        new File(tableFile.getPath() + ".fsm").deleteOnExit();
+        indexFile.deleteOnExit();
+        // left behind by an index that was not saved
+        Assert.assertTrue(indexFile.createNewFile());
+
+        Database.getCatalog().clear();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        int tableid = Database.getCatalog().getTableId(table);
+        TransactionId tid = new TransactionId();
+        Database.getCatalog().createIndex(tid, table + "_b", tableid, "b", new String[] {"a"});
+        Database.getBufferPool().transactionComplete(tid);
+        try {
+            Database.getCatalog().createIndex(tid, table + "_b", tableid, "b");
+            Assert.fail("expected the index file to be in use");
+        } catch (DbException e) {
+            // expected
+        }
+        Database.getCatalog().saveIndex(table + "_b");
+
+        BufferedReader in = new BufferedReader(new FileReader(schema));
+        assertEquals(table + " (a int, b int)", in.readLine());
+        assertEquals("index " + table + "_b on " + table + " (b) include (a)", in.readLine());
+        Assert.assertNull(in.readLine());
+        in.close();
+
+        Database.getCatalog().clear();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        tableid = Database.getCatalog().getTableId(table);
+        assertEquals(1, Database.getCatalog().getIndexes(tableid).size());
+        SecondaryIndex index = Database.getCatalog().getIndexes(tableid).get(0);
+        assertEquals(1, index.getField());
+        assertEquals(1, index.getIncludedFields().length);
+        assertEquals(0, index.getIncludedFields()[0]);
+        assertEquals(indexFile.getAbsoluteFile(), index.getFile().getFile().getAbsoluteFile());
+    }
+
+    /**
+     * A file counting how often it is closed
+     */
+    private static class ClosingFile extends SkeletonFile {
+        int closed = 0;
+
+        ClosingFile(int tableid) {
+            super(tableid, Utility.getTupleDesc(2));
+        }
+
+        @Override
+        public void close() {
+            closed++;
+        }
+    }
+
+    /**
+     * Check that the file of a table is closed when another file replaces it
+     * or the catalog is cleared, but not when it is added again
+     */
+    @Test public void closesFiles() throws Exception {
+        ClosingFile f1 = new ClosingFile(id1);
+        Database.getCatalog().addTable(f1, nameThisTestRun);
+        Database.getCatalog().addTable(f1, nameThisTestRun);
+        assertEquals(0, f1.closed);
+
+        ClosingFile f2 = new ClosingFile(id1);
+        Database.getCatalog().addTable(f2, nameThisTestRun);
+        assertEquals(1, f1.closed);
+
+        Database.getCatalog().clear();
+        assertEquals(1, f1.closed);
+        assertEquals(1, f2.closed);
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,162 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class DbFileChannelTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int BLOCKS = 64;
+    private static final int BLOCK_SIZE = 512;
+
+    private File file;
+    private DbFileChannel channel;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("channel", ".dat");
+        file.deleteOnExit();
+        channel = new DbFileChannel(file);
+    }
+
+    @After public void tearDown() throws Exception {
+        channel.close();
+    }
+
+    // the contents of block b as written by round r
+    private static byte[] block(int b, int r) {
+        byte[] data = new byte[BLOCK_SIZE];
+        Arrays.fill(data, (byte) (b * 31 + r));
+        return data;
+    }
+
+    private void runAll(List<Callable<Void>> tasks) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Threads writing and reading disjoint blocks of one channel at the same
+     * time never see each other's data, since no file pointer is shared
+     */
+    @Test public void concurrentPositionalIo() throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            tasks.add(() -> {
+                for (int r = 0; r < 10; r++) {
+                    for (int b = thread; b < BLOCKS; b += THREADS) {
+                        channel.write((long) b * BLOCK_SIZE, block(b, r));
+                    }
+                    for (int b = thread; b < BLOCKS; b += THREADS) {
+                        byte[] data = new byte[BLOCK_SIZE];
+                        assertEquals(BLOCK_SIZE, channel.read((long) b * BLOCK_SIZE, data));
+                        assertArrayEquals(block(b, r), data);
+                    }
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+        assertEquals((long) BLOCKS * BLOCK_SIZE, channel.size());
+    }
+
+    /**
+     * Concurrent appends get distinct positions and all of their data lands
+     */
+    @Test public void concurrentAppends() throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        final long[] positions = new long[BLOCKS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            tasks.add(() -> {
+                for (int b = thread; b < BLOCKS; b += THREADS) {
+                    positions[b] = channel.append(block(b, 0));
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+        assertEquals((long) BLOCKS * BLOCK_SIZE, channel.size());
+        for (int b = 0; b < BLOCKS; b++) {
+            byte[] data = new byte[BLOCK_SIZE];
+            channel.read(positions[b], data);
+            assertArrayEquals(block(b, 0), data);
+        }
+    }
+
+    /**
+     * A closed channel reopens on the next access
+     */
+    @Test public void reopensAfterClose() throws Exception {
+        channel.write(0, block(1, 0));
+        channel.close();
+        byte[] data = new byte[BLOCK_SIZE];
+        assertEquals(BLOCK_SIZE, channel.read(0, data));
+        assertArrayEquals(block(1, 0), data);
+    }
+
+    /**
+     * Closing the channel waits for reads and writes in progress instead of
+     * failing them, and they reopen it afterwards
+     */
+    @Test public void closeDuringIo() throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        tasks.add(() -> {
+            while (!done.get()) {
+                channel.close();
+            }
+            return null;
+        });
+        for (int t = 1; t < THREADS; t++) {
+            final int thread = t;
+            tasks.add(() -> {
+                try {
+                    for (int r = 0; r < 50; r++) {
+                        for (int b = thread; b < BLOCKS; b += THREADS) {
+                            channel.write((long) b * BLOCK_SIZE, block(b, r));
+                            byte[] data = new byte[BLOCK_SIZE];
+                            assertEquals(BLOCK_SIZE, channel.read((long) b * BLOCK_SIZE, data));
+                            assertArrayEquals(block(b, r), data);
+                        }
+                    }
+                } finally {
+                    done.set(true);
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DbFileChannelTest.class);
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final EvictionPolicy.Evictable ANY = pid -> true;
+
+    private static HeapPageId pid(int pgno) {
+        return new HeapPageId(-1, pgno);
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: referenced pages get a second chance
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy policy = new ClockEvictionPolicy(3);
+        policy.pageAdmitted(pid(0));
+        policy.pageAdmitted(pid(1));
+        policy.pageAdmitted(pid(2));
+        // first sweep clears all bits and comes back to page 0
+        assertEquals(pid(0), policy.chooseVictim(ANY));
+        policy.pageAccessed(pid(0));
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(1));
+        policy.pageAdmitted(pid(3));
+        assertEquals(pid(2), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for LRUKEvictionPolicy: pages referenced once go before pages
+     * referenced K times, no matter how recent
+     */
+    @Test public void lruKPrefersCorrelatedPages() {
+        EvictionPolicy policy = new LRUKEvictionPolicy(2, 4);
+        policy.pageAdmitted(pid(0));
+        policy.pageAccessed(pid(0));
+        policy.pageAdmitted(pid(1));
+        policy.pageAdmitted(pid(2));
+        policy.pageAccessed(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(2));
+        assertEquals(pid(0), policy.chooseVictim(ANY));
+        // an evicted page keeps its history when it comes back, so it is
+        // not as cold as a page referenced only once
+        policy.pageRemoved(pid(0));
+        policy.pageAdmitted(pid(0));
+        policy.pageAdmitted(pid(3));
+        assertEquals(pid(3), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: a page seen once is evicted before
+     * a page that came back through the ghost queue
+     */
+    @Test public void twoQueueScanResistance() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy(1, 4);
+        policy.pageAdmitted(pid(0));
+        assertEquals(pid(0), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(0));
+        // page 0 is requested again while it is remembered in A1out
+        policy.pageAdmitted(pid(0));
+        for (int i = 1; i <= 3; i++) {
+            policy.pageAdmitted(pid(i));
+        }
+        // pages seen once go first while A1in is above its target size
+        for (int i = 1; i <= 2; i++) {
+            assertEquals(pid(i), policy.chooseVictim(ANY));
+            policy.pageRemoved(pid(i));
+        }
+        assertEquals(pid(0), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * Pages that must not be evicted are skipped by every policy
+     */
+    @Test public void skipsPinnedPages() {
+        EvictionPolicy[] policies = {new ClockEvictionPolicy(3), new LRUKEvictionPolicy(2, 3),
+                new TwoQueueEvictionPolicy(3)};
+        for (EvictionPolicy policy : policies) {
+            final Set<PageId> dirty = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                policy.pageAdmitted(pid(i));
+                dirty.add(pid(i));
+            }
+            assertNull(policy.chooseVictim(pid -> !dirty.contains(pid)));
+            dirty.remove(pid(1));
+            assertEquals(pid(1), policy.chooseVictim(pid -> !dirty.contains(pid)));
+        }
+    }
+
+    /**
+     * A full buffer pool evicts instead of failing, whatever the policy
+     */
+    @Test public void bufferPoolEvicts() throws Exception {
+        for (String name : new String[]{"clock", "lru-k", "2q"}) {
+            Database.reset();
+            HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+            BufferPool bp = Database.resetBufferPool(3, EvictionPolicy.create(name, 3));
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < hf.numPages(); i++) {
+                bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            }
+            bp.transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
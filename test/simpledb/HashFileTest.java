@@ -0,0 +1,259 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final int KEYS = 1000;
+
+    private TransactionId tid;
+    private HashFile file;
+    // number of tuples inserted with each key
+    private HashMap<Integer, Integer> counts;
+
+    /**
+     * Create a HashFile keyed on its first field and insert ROWS random
+     * tuples with KEYS distinct keys, enough to split its buckets.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("hash", ".dat");
+        f.deleteOnExit();
+        file = new HashFile(f, 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(file, UUID.randomUUID().toString());
+        tid = new TransactionId();
+        counts = new HashMap<Integer, Integer>();
+        Random r = new Random(7);
+        for (int i = 0; i < ROWS; i++) {
+            int key = r.nextInt(KEYS);
+            Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(new int[] {key, i}));
+            counts.merge(key, 1, Integer::sum);
+        }
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int lookup(TransactionId tid, int key) throws Exception {
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(key), it.next().getField(0));
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private int scan(TransactionId tid) throws Exception {
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private HashHeaderPage header(TransactionId tid) throws Exception {
+        return (HashHeaderPage) Database.getBufferPool().getPage(tid, HashHeaderPage.getId(file.getId()), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Inserts split buckets, and every tuple can be found by its key
+     */
+    @Test public void insertAndLookup() throws Exception {
+        assertTrue(header(tid).getNumBuckets() > 1);
+        assertEquals(ROWS, scan(tid));
+        for (int key = 0; key < KEYS; key++) {
+            assertEquals(counts.getOrDefault(key, 0).intValue(), lookup(tid, key));
+        }
+    }
+
+    /**
+     * A lookup reads only the bucket of its key
+     */
+    @Test public void lookupReadsOneBucket() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        HashHeaderPage header = header(tid);
+        int key = counts.keySet().iterator().next();
+        lookup(tid, key);
+        int bucket = header.getBucket(HashFile.hash(new IntField(key)));
+        for (int b = 0; b < header.getNumBuckets(); b++) {
+            HashPageId pid = new HashPageId(file.getId(), header.getBucketPageNo(b));
+            assertEquals(b == bucket, Database.getBufferPool().holdsLock(tid, pid));
+        }
+    }
+
+    /**
+     * Deleted tuples are gone, including ones a split moved after they were
+     * read in the same transaction
+     */
+    @Test public void delete() throws Exception {
+        int key = counts.keySet().iterator().next();
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        for (int i = 0; i < ROWS; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(new int[] {KEYS + i, i}));
+        }
+        for (Tuple t : tuples) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        assertEquals(0, lookup(tid, key));
+        assertEquals(2 * ROWS - tuples.size(), scan(tid));
+    }
+
+    /**
+     * An aborted transaction leaves neither its tuples nor its splits behind
+     */
+    @Test public void abort() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        int buckets = header(tid).getNumBuckets();
+        Database.getBufferPool().transactionComplete(tid);
+
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < ROWS; i++) {
+            Database.getBufferPool().insertTuple(writer, file.getId(), Utility.getHeapTuple(new int[] {i, i}));
+        }
+        assertTrue(header(writer).getNumBuckets() > buckets);
+        Database.getBufferPool().transactionComplete(writer, false);
+
+        tid = new TransactionId();
+        assertEquals(buckets, header(tid).getNumBuckets());
+        assertEquals(ROWS, scan(tid));
+    }
+
+    // the header page, read without locking it
+    private HashHeaderPage peekHeader() throws Exception {
+        return (HashHeaderPage) Database.getBufferPool().getLatchedPage(HashHeaderPage.getId(file.getId()));
+    }
+
+    // a key other than those given whose bucket is not among the given ones
+    private int keyOutside(HashHeaderPage header, int... buckets) {
+        for (int key = 0; ; key++) {
+            boolean outside = true;
+            for (int b : buckets) {
+                outside &= header.getBucket(HashFile.hash(new IntField(key))) != b;
+            }
+            if (outside) {
+                return key;
+            }
+        }
+    }
+
+    // inserts tuples with the key until the file grows, in another thread, and returns how many
+    private int insertUntilNewPage(TransactionId tid, int key) throws Exception {
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            return thread.submit(() -> {
+                int pages = file.numPages();
+                int n = 0;
+                while (file.numPages() == pages) {
+                    Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(new int[] {key, n++}));
+                }
+                return n;
+            }).get(10, TimeUnit.SECONDS);
+        } finally {
+            thread.shutdownNow();
+        }
+    }
+
+    /**
+     * Readers do not lock the header page, so a split waits only for readers
+     * of the bucket it splits, and an insert that finds the header page locked
+     * by a split leaves its own split to a later insert rather than waiting
+     */
+    @Test public void splitsDoNotWaitForHeader() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        HashPageId headerId = HashHeaderPage.getId(file.getId());
+        HashHeaderPage header = peekHeader();
+        int buckets = header.getNumBuckets();
+        int next = header.getNext();
+        int readKey = keyOutside(header, next);
+        int readBucket = header.getBucket(HashFile.hash(new IntField(readKey)));
+        int splitKey = 0;
+        while (header.getBucket(HashFile.hash(new IntField(splitKey))) != next) {
+            splitKey++;
+        }
+        lookup(tid, readKey);
+
+        TransactionId writer = new TransactionId();
+        int splitInserts = insertUntilNewPage(writer, splitKey);
+        assertEquals(buckets + 1, peekHeader().getNumBuckets());
+        assertTrue(Database.getBufferPool().holdsLock(writer, headerId));
+
+        TransactionId other = new TransactionId();
+        int otherKey = keyOutside(peekHeader(), readBucket, next, buckets);
+        int otherInserts = insertUntilNewPage(other, otherKey);
+        assertEquals(buckets + 1, peekHeader().getNumBuckets());
+        assertFalse(Database.getBufferPool().holdsLock(other, headerId));
+        Database.getBufferPool().transactionComplete(writer);
+        Database.getBufferPool().transactionComplete(other);
+
+        assertEquals(ROWS + splitInserts + otherInserts, scan(tid));
+        assertEquals(counts.getOrDefault(splitKey, 0) + splitInserts, lookup(tid, splitKey));
+        assertEquals(counts.getOrDefault(otherKey, 0) + otherInserts, lookup(tid, otherKey));
+    }
+
+    /**
+     * HashEquiJoin probes a HashFile on its left instead of building a hash table
+     */
+    @Test public void hashEquiJoinProbe() throws Exception {
+        ArrayList<Tuple> probes = new ArrayList<Tuple>();
+        int expected = 0;
+        for (int key = 0; key < KEYS; key += 10) {
+            probes.add(Utility.getHeapTuple(new int[] {key, -key}));
+            expected += counts.getOrDefault(key, 0);
+        }
+        OpIterator right = new TupleIterator(Utility.getTupleDesc(2), probes);
+        HashScan left = new HashScan(tid, file.getId(), "h", null);
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        assertSame(left, HashEquiJoin.getBuildIndex(p, left));
+
+        HashEquiJoin join = new HashEquiJoin(p, left, right);
+        join.open();
+        int count = 0;
+        while (join.hasNext()) {
+            Tuple t = join.next();
+            assertEquals(t.getField(0), t.getField(2));
+            count++;
+        }
+        join.close();
+        assertEquals(expected, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashFileTest.class);
+    }
+}
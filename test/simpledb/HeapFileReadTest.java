@@ -77,6 +77,50 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() on the memory-mapped read path
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage copied = (HeapPage) hf.readPage(pid);
+
+        hf.setMemoryMapped(true);
+        assertTrue(hf.isMemoryMapped());
+        HeapPage mapped = (HeapPage) hf.readPage(pid);
+        assertEquals(484, mapped.getNumEmptySlots());
+        assertTrue(Arrays.equals(copied.getPageData(), mapped.getPageData()));
+
+        // writes go through the channel and show up in the mapping
+        Tuple t = mapped.iterator().next();
+        mapped.deleteTuple(t);
+        hf.writePage(mapped);
+        assertEquals(485, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+
+        // the before image is the page as it was read
+        assertEquals(484, mapped.getBeforeImage().getNumEmptySlots());
+    }
+
+    /**
+     * A page read through the mapping keeps the contents it was read with
+     * when the file is written afterwards.
+     */
+    @Test
+    public void mappedPageKeepsContents() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.setMemoryMapped(true);
+        HeapPage cached = (HeapPage) hf.readPage(pid);
+        byte[] contents = cached.getPageData();
+
+        HeapPage written = (HeapPage) hf.readPage(pid);
+        written.deleteTuple(written.iterator().next());
+        hf.writePage(written);
+
+        assertEquals(484, cached.getNumEmptySlots());
+        assertTrue(Arrays.equals(contents, cached.getPageData()));
+        assertEquals(485, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -1,5 +1,13 @@
 package simpledb;
 
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +51,188 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts go to a page with free slots without locking the full pages
+     * before it, also once the file is opened again.
+     */
+    @Test public void insertLocksOnlyTargetPage() throws Exception {
+        for (int i = 0; i < 504 * 2 + 1; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+
+        for (HeapFile hf : new HeapFile[] {empty, reopened}) {
+            tid = new TransactionId();
+            hf.insertTuple(tid, Utility.getHeapTuple(0, 2));
+            assertEquals(3, hf.numPages());
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 1)));
+            assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 2)));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * A page freed by a delete takes the next insert.
+     */
+    @Test public void insertIntoFreedPage() throws Exception {
+        Tuple first = null;
+        for (int i = 0; i < 504; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (first == null)
+                first = t;
+        }
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(2, empty.numPages());
+
+        empty.deleteTuple(tid, first);
+        Tuple t = Utility.getHeapTuple(1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * An insert does not wait for a page another transaction is inserting
+     * into, but adds a page of its own.
+     */
+    @Test public void concurrentInsertsUseSeparatePages() throws Exception {
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        TransactionId other = new TransactionId();
+        try {
+            Tuple t = Utility.getHeapTuple(1, 2);
+            empty.insertTuple(other, t);
+            assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+            assertFalse(Database.getBufferPool().holdsLock(other, new HeapPageId(empty.getId(), 0)));
+        } finally {
+            Database.getBufferPool().transactionComplete(other);
+        }
+    }
+
+    /**
+     * A bulk load fills new pages, more than one batch of them, and locks
+     * them for the transaction.
+     */
+    @Test public void bulkLoad() throws Exception {
+        int rows = 504 * HeapFile.BULK_LOAD_BATCH_PAGES + 504 * 2 + 10;
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < rows; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        TupleIterator it = new TupleIterator(Utility.getTupleDesc(2), tuples);
+        it.open();
+        assertEquals(rows, empty.bulkLoad(tid, it));
+        it.close();
+
+        int pages = HeapFile.BULK_LOAD_BATCH_PAGES + 3;
+        assertEquals(1 + pages, empty.numPages());
+        for (int i = 1; i <= pages; ++i) {
+            assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), i)));
+        }
+
+        // the empty page before them still takes the next insert
+        Tuple t = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        DbFileIterator scan = empty.iterator(tid);
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            assertEquals(count == 0 ? 0 : count - 1, ((IntField) scan.next().getField(0)).getValue());
+            count++;
+        }
+        scan.close();
+        assertEquals(rows + 1, count);
+    }
+
+    /**
+     * Closing the file closes its free-space map, which the next insert
+     * opens again.
+     */
+    @Test public void insertAfterClose() throws Exception {
+        for (int i = 0; i < 504 + 1; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        empty.close();
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * The free-space map file records the length of the heap file when the
+     * BufferPool flushes pages and when the file is closed, not on every
+     * page written one at a time.
+     */
+    @Test public void mapFileRecordedPerFlush() throws Exception {
+        File map = new File(empty.getFile().getPath() + ".fsm");
+        map.deleteOnExit();
+        empty.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(empty.getFile().length(), recordedLength(map));
+
+        long flushed = empty.getFile().length();
+        HeapPageId appended = new HeapPageId(empty.getId(), empty.numPages());
+        empty.writePage(new HeapPage(appended, HeapPage.createEmptyPageData()));
+        assertTrue(empty.getFile().length() > flushed);
+        assertEquals(flushed, recordedLength(map));
+
+        empty.close();
+        assertEquals(empty.getFile().length(), recordedLength(map));
+    }
+
+    private static long recordedLength(File map) throws Exception {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(map))) {
+            return in.readLong();
+        }
+    }
+
+    /**
+     * The free-space map file of a heap file made by File.createTempFile is
+     * gone once the JVM exits, like the heap file itself.
+     */
+    @Test public void temporaryMapFileDeletedOnExit() throws Exception {
+        File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+        Process child = new ProcessBuilder(java.getPath(), "-cp", System.getProperty("java.class.path"),
+                InsertIntoTempFile.class.getName()).redirectErrorStream(true).start();
+        String path = null;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream()))) {
+            for (String line = out.readLine(); line != null; line = out.readLine()) {
+                path = line;
+            }
+        }
+        assertEquals(0, child.waitFor());
+        assertTrue(path.endsWith(".dat"));
+        assertFalse(new File(path).exists());
+        assertFalse(new File(path + ".fsm").exists());
+    }
+
+    /**
+     * Inserts into a temporary heap file, which opens its free-space map,
+     * and prints the path of the heap file.
+     */
+    public static class InsertIntoTempFile {
+        public static void main(String[] args) throws Exception {
+            File f = File.createTempFile("empty", ".dat");
+            f.deleteOnExit();
+            HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+            TransactionId tid = new TransactionId();
+            hf.insertTuple(tid, Utility.getHeapTuple(0, 2));
+            Database.getBufferPool().transactionComplete(tid);
+            if (!new File(f.getPath() + ".fsm").exists()) {
+                throw new AssertionError("no free-space map file");
+            }
+            System.out.println(f.getAbsolutePath());
+        }
+    }
+
     /**
      * JUnit suite target
      */
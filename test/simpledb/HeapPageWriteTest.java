@@ -4,6 +4,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +128,31 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for in-place modification of a page backed by a read-only
+     * buffer: the buffer is left alone and getPageData reflects the change
+     */
+    @Test public void modifyReadOnlyBuffer() throws Exception {
+        byte[] original = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, ByteBuffer.wrap(original).asReadOnlyBuffer());
+        int free = page.getNumEmptySlots();
+
+        Tuple addition = Utility.getHeapTuple(42, 2);
+        page.insertTuple(addition);
+        Tuple victim = page.iterator().next();
+        page.deleteTuple(victim);
+        assertEquals(free, page.getNumEmptySlots());
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, original));
+
+        HeapPage reread = new HeapPage(pid, page.getPageData());
+        assertEquals(free, reread.getNumEmptySlots());
+        boolean found = false;
+        for (Iterator<Tuple> it = reread.iterator(); it.hasNext(); ) {
+            found |= TestUtil.compareTuples(addition, it.next());
+        }
+        assertTrue(found);
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,241 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    private final PageId p0 = new HeapPageId(-1, 0);
+    private final PageId p1 = new HeapPageId(-1, 1);
+    private final PageId p2 = new HeapPageId(-1, 2);
+    private ExecutorService threads;
+
+    @Before public void startThreads() {
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After public void stopThreads() {
+        threads.shutdownNow();
+    }
+
+    private Future<?> acquireAsync(LockManager lm, TransactionId tid, PageId pid, Permissions perm) {
+        return threads.submit(() -> {
+            lm.acquire(tid, pid, perm);
+            return null;
+        });
+    }
+
+    private static void assertBlocked(Future<?> f) throws Exception {
+        try {
+            f.get(200, TimeUnit.MILLISECONDS);
+            fail("expected the lock request to block");
+        } catch (TimeoutException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A transaction waiting for a lock without being deadlocked keeps
+     * waiting until the lock is released, however long that takes
+     */
+    @Test public void longWaitIsNotAborted() throws Exception {
+        LockManager lm = new LockManager(LockManager.VictimPolicy.YOUNGEST);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+
+        Future<?> waiter = acquireAsync(lm, t2, p0, Permissions.READ_ONLY);
+        assertBlocked(waiter);
+        assertBlocked(waiter);
+
+        lm.releaseAll(t1);
+        waiter.get(1, TimeUnit.SECONDS);
+        assertTrue(lm.holdsLock(t2, p0));
+        assertFalse(lm.holdsLock(t1, p0));
+    }
+
+    /**
+     * Shared locks are compatible, re-acquiring a held lock does not block,
+     * and a shared lock held alone can be upgraded
+     */
+    @Test public void sharedAndUpgrade() throws Exception {
+        LockManager lm = new LockManager(LockManager.VictimPolicy.YOUNGEST);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t2, p0, Permissions.READ_ONLY);
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+
+        Future<?> upgrade = acquireAsync(lm, t1, p0, Permissions.READ_WRITE);
+        assertBlocked(upgrade);
+        lm.release(t2, p0);
+        upgrade.get(1, TimeUnit.SECONDS);
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+    }
+
+    /**
+     * With the youngest policy, the transaction that began last is aborted,
+     * even if it is not the one closing the cycle
+     */
+    @Test public void youngestVictim() throws Exception {
+        LockManager lm = new LockManager(LockManager.VictimPolicy.YOUNGEST);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, Permissions.READ_WRITE);
+        lm.acquire(younger, p1, Permissions.READ_WRITE);
+
+        Future<?> youngerWait = acquireAsync(lm, younger, p0, Permissions.READ_WRITE);
+        assertBlocked(youngerWait);
+        Future<?> olderWait = acquireAsync(lm, older, p1, Permissions.READ_WRITE);
+
+        try {
+            youngerWait.get(1, TimeUnit.SECONDS);
+            fail("expected the younger transaction to be aborted");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+        }
+        assertBlocked(olderWait);
+        lm.releaseAll(younger);
+        olderWait.get(1, TimeUnit.SECONDS);
+        assertTrue(lm.holdsLock(older, p1));
+    }
+
+    /**
+     * With the fewest-locks policy, the transaction of the cycle holding the
+     * fewest locks is aborted
+     */
+    @Test public void fewestLocksVictim() throws Exception {
+        LockManager lm = new LockManager(LockManager.VictimPolicy.FEWEST_LOCKS);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, Permissions.READ_WRITE);
+        lm.acquire(younger, p1, Permissions.READ_WRITE);
+        lm.acquire(younger, p2, Permissions.READ_WRITE);
+
+        Future<?> youngerWait = acquireAsync(lm, younger, p0, Permissions.READ_WRITE);
+        assertBlocked(youngerWait);
+        try {
+            lm.acquire(older, p1, Permissions.READ_WRITE);
+            fail("expected the transaction holding fewer locks to be aborted");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAll(older);
+        youngerWait.get(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Each transaction's lock set tracks the pages it holds across stripes,
+     * and a held lock is re-acquired without blocking even while another
+     * transaction waits for the page
+     */
+    @Test public void lockSets() throws Exception {
+        LockManager lm = new LockManager(LockManager.VictimPolicy.YOUNGEST, 4);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            lm.acquire(t1, new HeapPageId(-1, i), Permissions.READ_ONLY);
+        }
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        assertEquals(10, lm.getLockedPages(t1).size());
+        assertTrue(lm.holdsExclusiveLock(t1, p0));
+        assertFalse(lm.holdsExclusiveLock(t1, p1));
+
+        Future<?> waiter = acquireAsync(lm, t2, p0, Permissions.READ_ONLY);
+        assertBlocked(waiter);
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+
+        lm.releaseAll(t1);
+        assertTrue(lm.getLockedPages(t1).isEmpty());
+        assertFalse(lm.holdsLock(t1, p1));
+        waiter.get(1, TimeUnit.SECONDS);
+        assertEquals(1, lm.getLockedPages(t2).size());
+    }
+
+    /**
+     * Waiters look for a deadlock again after a wakeup only if they wait for
+     * a transaction they did not wait for before
+     */
+    @Test public void detectionOnlyOnNewEdges() throws Exception {
+        LockManager lm = new LockManager(LockManager.VictimPolicy.YOUNGEST);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t2, p0, Permissions.READ_ONLY);
+        Future<?>[] waiters = new Future<?>[4];
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i] = acquireAsync(lm, new TransactionId(), p0, Permissions.READ_WRITE);
+        }
+        for (Future<?> waiter : waiters) {
+            assertBlocked(waiter);
+        }
+        assertEquals(waiters.length, lm.getDetectionCount());
+
+        // the waiters wake up but still wait for t2 only
+        lm.release(t1, p0);
+        Thread.sleep(200);
+        assertEquals(waiters.length, lm.getDetectionCount());
+
+        // now they wait for t3, a new edge
+        TransactionId t3 = new TransactionId();
+        lm.acquire(t3, p0, Permissions.READ_ONLY);
+        lm.release(t2, p0);
+        Thread.sleep(200);
+        assertEquals(2 * waiters.length, lm.getDetectionCount());
+        lm.releaseAll(t3);
+    }
+
+    /**
+     * A transaction that closes two cycles at once has a victim picked on
+     * each; once the first is aborted, its waiters get no new edges and
+     * would not look again
+     */
+    @Test public void allCyclesResolved() throws Exception {
+        LockManager lm = new LockManager(LockManager.VictimPolicy.YOUNGEST);
+        TransactionId oldest = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquire(oldest, p0, Permissions.READ_ONLY);
+        lm.acquire(t2, p1, Permissions.READ_ONLY);
+        lm.acquire(t3, p1, Permissions.READ_ONLY);
+        Future<?> t2Wait = acquireAsync(lm, t2, p0, Permissions.READ_WRITE);
+        Future<?> t3Wait = acquireAsync(lm, t3, p0, Permissions.READ_WRITE);
+        assertBlocked(t2Wait);
+        assertBlocked(t3Wait);
+
+        // waits for both t2 and t3, which both wait for it
+        Future<?> oldestWait = acquireAsync(lm, oldest, p1, Permissions.READ_WRITE);
+        for (Future<?> victimWait : new Future<?>[] { t2Wait, t3Wait }) {
+            try {
+                victimWait.get(1, TimeUnit.SECONDS);
+                fail("expected both younger transactions to be aborted");
+            } catch (java.util.concurrent.ExecutionException e) {
+                assertTrue(e.getCause() instanceof TransactionAbortedException);
+            }
+        }
+        lm.releaseAll(t2);
+        lm.releaseAll(t3);
+        oldestWait.get(1, TimeUnit.SECONDS);
+        assertTrue(lm.holdsLock(oldest, p1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
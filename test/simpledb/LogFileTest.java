@@ -0,0 +1,183 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private File file;
+    private LogFile log;
+    private ExecutorService threads;
+
+    @Before public void createLog() throws Exception {
+        file = File.createTempFile("logfiletest", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After public void stopThreads() {
+        threads.shutdownNow();
+        for (File segment : segmentFiles()) {
+            segment.delete();
+        }
+    }
+
+    private File[] segmentFiles() {
+        return file.getAbsoluteFile().getParentFile().listFiles(
+                (dir, name) -> name.startsWith(file.getName() + "."));
+    }
+
+    /**
+     * Without group commit, every commit forces the log
+     */
+    @Test public void commitForcesLog() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            log.logCommit(new TransactionId());
+        }
+        assertEquals(3, log.totalForces);
+    }
+
+    /**
+     * With group commit, commits waiting together are released by a single
+     * force once the batch is full, without waiting for the window
+     */
+    @Test public void groupCommitBatchesForces() throws Exception {
+        int commits = 8;
+        log.setGroupCommit(true, 10000, commits);
+        List<Future<?>> waiters = new ArrayList<Future<?>>();
+        for (int i = 0; i < commits; i++) {
+            waiters.add(threads.submit(() -> {
+                log.logCommit(new TransactionId());
+                return null;
+            }));
+        }
+        for (Future<?> f : waiters) {
+            f.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(commits, log.getTotalRecords());
+        assertEquals(1, log.totalForces);
+    }
+
+    /**
+     * A lone commit is forced once the batch window has passed
+     */
+    @Test public void groupCommitWindow() throws Exception {
+        log.setGroupCommit(true, 20, 64);
+        long start = System.currentTimeMillis();
+        log.logCommit(new TransactionId());
+        assertTrue(System.currentTimeMillis() - start >= 20);
+        assertEquals(1, log.totalForces);
+
+        log.setGroupCommit(false, 20, 64);
+        log.logCommit(new TransactionId());
+        assertEquals(2, log.totalForces);
+    }
+
+    /**
+     * UPDATE records get increasing LSNs, and forcing up to a record that is
+     * durable already does not force the log again
+     */
+    @Test public void forceToLsn() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        HeapPage page = new HeapPage(new HeapPageId(-1, 0), HeapPageReadTest.EXAMPLE_DATA);
+        TransactionId tid = new TransactionId();
+
+        long first = log.logWrite(tid, page, page);
+        long second = log.logWrite(tid, page, page);
+        assertTrue(first < second);
+        assertTrue(second < log.getNextLsn());
+        assertEquals(0, log.totalForces);
+        assertTrue(log.getDurableLsn() <= first);
+
+        log.forceTo(first);
+        assertEquals(1, log.totalForces);
+        assertEquals(log.getNextLsn(), log.getDurableLsn());
+        log.forceTo(second);
+        assertEquals(1, log.totalForces);
+        assertEquals(log.getNextLsn(), segmentFiles()[0].length());
+
+        long third = log.logWrite(tid, page, page);
+        assertEquals(second + (second - first), third);
+        log.forceTo(third);
+        assertEquals(2, log.totalForces);
+    }
+
+    /**
+     * An update that only inserts and deletes tuples is logged as the changed
+     * slots, and redoing or undoing it again has no further effect
+     */
+    @Test public void slotUpdateRecords() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        HeapPageId pid = new HeapPageId(-1, 0);
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        after.insertTuple(Utility.getHeapTuple(42, 2));
+        after.deleteTuple(after.iterator().next());
+
+        long lsn = log.logWrite(new TransactionId(), before, after);
+        assertTrue(log.getNextLsn() - lsn < BufferPool.getPageSize() / 16);
+
+        SlotUpdate update = SlotUpdate.diff(before, after);
+        assertEquals(2, update.getNumSlots());
+        Page redone = update.redo(before);
+        assertEquals(0, SlotUpdate.diff(after, redone).getNumSlots());
+        assertEquals(0, SlotUpdate.diff(after, update.redo(redone)).getNumSlots());
+        Page undone = update.undo(redone);
+        assertEquals(0, SlotUpdate.diff(before, undone).getNumSlots());
+        assertEquals(0, SlotUpdate.diff(before, update.undo(undone)).getNumSlots());
+    }
+
+    /**
+     * Records are stored in segment files; a checkpoint deletes the segments
+     * before the first record still needed, and LSNs are not affected
+     */
+    @Test public void truncationDeletesSegments() throws Exception {
+        log = new LogFile(file, 256);
+        TransactionId open = new TransactionId();
+        log.logXactionBegin(open);
+        for (int i = 0; i < 40; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        long lsn = log.getNextLsn();
+        assertTrue(segmentFiles().length >= lsn / 256);
+
+        // the BEGIN record of the open transaction is still needed
+        log.logCheckpoint();
+        assertTrue(segmentFiles().length >= lsn / 256);
+        assertTrue(log.getNextLsn() > lsn);
+
+        log.logCommit(open);
+        log.logCheckpoint();
+        assertTrue(segmentFiles().length <= 2);
+        long next = log.getNextLsn();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        assertEquals(next + LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE, log.getNextLsn());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,284 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+    private static final int ROWS = 2000;
+    private static final int VALUES = 50;
+
+    private TransactionId tid;
+
+    /**
+     * TableStats of a table of ROWS tuples that estimate the same
+     * selectivity for every predicate
+     */
+    private static class FixedSelectivityStats extends TableStats {
+        private final double selectivity;
+
+        FixedSelectivityStats(int tableid, double selectivity) {
+            super(tableid, IOCOSTPERPAGE);
+            this.selectivity = selectivity;
+        }
+
+        @Override
+        public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+            return selectivity;
+        }
+
+        @Override
+        public int totalTuples() {
+            return ROWS;
+        }
+    }
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // a B+ tree table keyed on c0, registered under the returned name
+    private String createBTreeTable() throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, ROWS, VALUES, null, null, 0);
+        String name = UUID.randomUUID().toString();
+        Database.getCatalog().addTable(new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c")), name);
+        return name;
+    }
+
+    // the scan at the bottom of a plan over one table
+    private static OpIterator leaf(OpIterator plan) {
+        while (plan instanceof Operator) {
+            plan = ((Operator) plan).getChildren()[0];
+        }
+        return plan;
+    }
+
+    private static boolean contains(OpIterator plan, Class<?> op) {
+        while (plan instanceof Operator) {
+            if (op.isInstance(plan)) {
+                return true;
+            }
+            plan = ((Operator) plan).getChildren()[0];
+        }
+        return op.isInstance(plan);
+    }
+
+    private static ArrayList<Integer> run(OpIterator plan) throws Exception {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        plan.open();
+        while (plan.hasNext()) {
+            values.add(((IntField) plan.next().getField(0)).getValue());
+        }
+        plan.close();
+        return values;
+    }
+
+    private static LogicalPlan scan(String table, String alias) {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(Database.getCatalog().getTableId(table), alias);
+        return lp;
+    }
+
+    private static HashMap<String, TableStats> stats(String table, TableStats s) {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(table, s);
+        return stats;
+    }
+
+    /**
+     * A filter on the key of a B+ tree table is served by a BTreeScan
+     */
+    @Test public void btreeKeyFilter() throws Exception {
+        String table = createBTreeTable();
+        int tableid = Database.getCatalog().getTableId(table);
+        LogicalPlan lp = scan(table, "t");
+        lp.addFilter("t.c0", Predicate.Op.LESS_THAN, "10");
+        lp.addFilter("t.c1", Predicate.Op.GREATER_THAN, "5");
+        lp.addProjectField("t.c0", null);
+        OpIterator plan = lp.physicalPlan(tid, stats(table, new TableStats(tableid, TableStats.IOCOSTPERPAGE)), false);
+
+        assertTrue(leaf(plan) instanceof BTreeScan);
+        OpIterator expected = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(5)),
+                new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)), new SeqScan(tid, tableid, "t")));
+        ArrayList<Integer> values = run(plan);
+        assertEquals(run(expected).size(), values.size());
+        for (int v : values) {
+            assertTrue(v < 10);
+        }
+    }
+
+    /**
+     * A descending ORDER BY on the key of a B+ tree table reads the table
+     * backward instead of sorting it
+     */
+    @Test public void btreeOrderByDescending() throws Exception {
+        String table = createBTreeTable();
+        int tableid = Database.getCatalog().getTableId(table);
+        LogicalPlan lp = scan(table, "t");
+        lp.addFilter("t.c0", Predicate.Op.GREATER_THAN_OR_EQ, "20");
+        lp.addProjectField("t.c0", null);
+        lp.addOrderBy("t.c0", false);
+        OpIterator plan = lp.physicalPlan(tid, stats(table, new TableStats(tableid, TableStats.IOCOSTPERPAGE)), false);
+
+        assertTrue(leaf(plan) instanceof BTreeReverseScan);
+        assertFalse(contains(plan, OrderBy.class));
+        ArrayList<Integer> values = run(plan);
+        assertFalse(values.isEmpty());
+        for (int i = 0; i < values.size(); i++) {
+            assertTrue(values.get(i) >= 20);
+            if (i > 0) {
+                assertTrue(values.get(i) <= values.get(i - 1));
+            }
+        }
+    }
+
+    /**
+     * A selective filter on the field of a secondary index is served by an
+     * IndexScan, and an unselective one by a SeqScan
+     */
+    @Test public void secondaryIndexFilter() throws Exception {
+        SecondaryIndex index = TestUtil.createIndexedHeapFile(tid, 2, ROWS, VALUES, "c1");
+        HeapFile heap = (HeapFile) Database.getCatalog().getDatabaseFile(index.getTableId());
+        String table = Database.getCatalog().getTableName(heap.getId());
+
+        LogicalPlan lp = scan(table, "t");
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, "7");
+        lp.addProjectField("t.c1", null);
+        // reading a page per matching tuple beats reading the few pages of the table only if very few match
+        OpIterator plan = lp.physicalPlan(tid, stats(table, new FixedSelectivityStats(heap.getId(), 0.001)), false);
+        assertTrue(leaf(plan) instanceof IndexScan);
+        ArrayList<Integer> values = run(plan);
+
+        lp = scan(table, "t");
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, "7");
+        lp.addProjectField("t.c1", null);
+        OpIterator seq = lp.physicalPlan(tid, stats(table, new FixedSelectivityStats(heap.getId(), 1.0)), false);
+        assertTrue(leaf(seq) instanceof SeqScan);
+        assertEquals(run(seq).size(), values.size());
+        for (int v : values) {
+            assertEquals(7, v);
+        }
+    }
+
+    /**
+     * Without statistics of the table, an equality filter on the field of a
+     * secondary index is served by an IndexScan, and a range filter by a
+     * SeqScan
+     */
+    @Test public void secondaryIndexWithoutStats() throws Exception {
+        SecondaryIndex index = TestUtil.createIndexedHeapFile(tid, 2, ROWS, VALUES, "c1");
+        String table = Database.getCatalog().getTableName(index.getTableId());
+        TableStats noStats = new TableStats(index.getTableId(), TableStats.IOCOSTPERPAGE);
+
+        LogicalPlan lp = scan(table, "t");
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, "7");
+        lp.addProjectField("t.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats(table, noStats), false);
+        assertTrue(leaf(plan) instanceof IndexScan);
+        for (int v : run(plan)) {
+            assertEquals(7, v);
+        }
+
+        lp = scan(table, "t");
+        lp.addFilter("t.c1", Predicate.Op.GREATER_THAN, "7");
+        lp.addProjectField("t.c1", null);
+        assertTrue(leaf(lp.physicalPlan(tid, stats(table, noStats), false)) instanceof SeqScan);
+    }
+
+    /**
+     * A query that reads only the indexed and included fields of a secondary
+     * index is answered from the index without reading the table, and one
+     * that reads another field is not
+     */
+    @Test public void coveringIndexScan() throws Exception {
+        // wide tuples, so that the index, with half-full leaves, is smaller than the table
+        SecondaryIndex index = TestUtil.createIndexedHeapFile(tid, 12, ROWS, VALUES, "c1", "c2");
+        HeapFile heap = (HeapFile) Database.getCatalog().getDatabaseFile(index.getTableId());
+        String table = Database.getCatalog().getTableName(heap.getId());
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        LogicalPlan lp = scan(table, "t");
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, "7");
+        lp.addProjectField("t.c2", null);
+        OpIterator plan = lp.physicalPlan(tid, stats(table, new FixedSelectivityStats(heap.getId(), 0.02)), false);
+        assertTrue(leaf(plan) instanceof IndexScan);
+        assertTrue(((IndexScan) leaf(plan)).isCovering());
+        ArrayList<Integer> values = run(plan);
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(heap.getId(), 0)));
+        OpIterator expected = new Project(new ArrayList<Integer>(java.util.Arrays.asList(2)),
+                new Type[] {Type.INT_TYPE},
+                new Filter(new Predicate(1, Predicate.Op.EQUALS, new IntField(7)), new SeqScan(tid, heap.getId(), "t")));
+        ArrayList<Integer> expectedValues = run(expected);
+        java.util.Collections.sort(values);
+        java.util.Collections.sort(expectedValues);
+        assertEquals(expectedValues, values);
+
+        // with no filter, reading the whole index is cheaper than reading the table
+        lp = scan(table, "t");
+        lp.addProjectField("t.c2", null);
+        lp.addProjectField("t.c1", null);
+        plan = lp.physicalPlan(tid, stats(table, new FixedSelectivityStats(heap.getId(), 1.0)), false);
+        assertTrue(((IndexScan) leaf(plan)).isCovering());
+        assertEquals(ROWS, run(plan).size());
+
+        lp = scan(table, "t");
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, "7");
+        lp.addProjectField("t.c3", null);
+        plan = lp.physicalPlan(tid, stats(table, new FixedSelectivityStats(heap.getId(), 0.02)), false);
+        assertFalse(leaf(plan) instanceof IndexScan && ((IndexScan) leaf(plan)).isCovering());
+    }
+
+    /**
+     * An equality filter on the key of a HashFile table reads the bucket of
+     * the key, and a join with the table on its key probes the file
+     */
+    @Test public void hashKeyFilterAndJoin() throws Exception {
+        File f = File.createTempFile("hash", ".dat");
+        f.deleteOnExit();
+        HashFile hash = new HashFile(f, 0, Utility.getTupleDesc(2, "c"));
+        String table = UUID.randomUUID().toString();
+        Database.getCatalog().addTable(hash, table);
+        for (int i = 0; i < ROWS; i++) {
+            Database.getBufferPool().insertTuple(tid, hash.getId(), Utility.getHeapTuple(new int[] {i % VALUES, i}));
+        }
+
+        LogicalPlan lp = scan(table, "t");
+        lp.addFilter("t.c0", Predicate.Op.EQUALS, "3");
+        lp.addProjectField("t.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats(table, new TableStats(hash.getId(), TableStats.IOCOSTPERPAGE)), false);
+        assertTrue(leaf(plan) instanceof HashScan);
+        assertEquals(ROWS / VALUES, run(plan).size());
+
+        File other = SystemTestUtil.createRandomHeapFileUnopened(2, 10, VALUES, null, new ArrayList<ArrayList<Integer>>());
+        HeapFile heap = Utility.openHeapFile(2, "d", other);
+        LogicalJoinNode lj = new LogicalJoinNode("t", "u", "c0", "d0", Predicate.Op.EQUALS);
+        OpIterator join = JoinOptimizer.instantiateJoin(lj, new HashScan(tid, hash.getId(), "t", null),
+                new SeqScan(tid, heap.getId(), "u"));
+        assertTrue(join instanceof HashEquiJoin);
+        assertEquals(10 * ROWS / VALUES, run(join).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
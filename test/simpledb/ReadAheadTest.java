@@ -0,0 +1,145 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    /**
+     * Issues prefetches that complete only when told to, and records them
+     */
+    private static class Prefetcher {
+        final HashMap<Integer, CompletableFuture<Void>> issued = new HashMap<>();
+        final List<Integer> order = new ArrayList<>();
+        boolean instant = false;
+
+        Future<?> prefetch(PageId pid) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            if (instant) {
+                future.complete(null);
+            }
+            issued.put(pid.getPageNumber(), future);
+            order.add(pid.getPageNumber());
+            return future;
+        }
+
+        void completeAll() {
+            for (CompletableFuture<Void> future : issued.values()) {
+                future.complete(null);
+            }
+            instant = true;
+        }
+    }
+
+    private static ReadAhead readAhead(Prefetcher prefetcher, int frames) {
+        return new ReadAhead(0, () -> frames, prefetcher::prefetch);
+    }
+
+    private static List<Integer> pages(int from, int to) {
+        List<Integer> pages = new ArrayList<>();
+        for (int p = from; p < to; p++) {
+            pages.add(p);
+        }
+        return pages;
+    }
+
+    /**
+     * The window doubles each time the scan catches up with a prefetch that
+     * has not finished
+     */
+    @Test public void doublesOnSlowPrefetch() {
+        Prefetcher prefetcher = new Prefetcher();
+        ReadAhead ra = readAhead(prefetcher, 100);
+        ra.pageRequested(0, 100);
+        assertEquals(pages(1, 3), prefetcher.order);
+        ra.pageRequested(1, 100);
+        assertEquals(4, ra.getWindow());
+        ra.pageRequested(2, 100);
+        assertEquals(8, ra.getWindow());
+        assertEquals(pages(1, 11), prefetcher.order);
+    }
+
+    /**
+     * The window shrinks by one page after a full window of pages that were
+     * ready in time, but not below the minimum
+     */
+    @Test public void shrinksAfterWindowOfHits() {
+        Prefetcher prefetcher = new Prefetcher();
+        ReadAhead ra = readAhead(prefetcher, 100);
+        for (int p = 0; p < 3; p++) {
+            ra.pageRequested(p, 100);
+        }
+        assertEquals(8, ra.getWindow());
+        prefetcher.completeAll();
+        for (int p = 3; p < 3 + 7; p++) {
+            ra.pageRequested(p, 100);
+        }
+        assertEquals(8, ra.getWindow());
+        ra.pageRequested(10, 100);
+        assertEquals(7, ra.getWindow());
+        for (int p = 11; p < 90; p++) {
+            ra.pageRequested(p, 100);
+        }
+        assertEquals(ReadAhead.MIN_WINDOW, ra.getWindow());
+    }
+
+    /**
+     * A non-sequential page cancels the outstanding prefetches and starts over
+     * with the minimum window from that page
+     */
+    @Test public void resetsOnNonSequentialPage() {
+        Prefetcher prefetcher = new Prefetcher();
+        ReadAhead ra = readAhead(prefetcher, 100);
+        for (int p = 0; p < 3; p++) {
+            ra.pageRequested(p, 100);
+        }
+        prefetcher.order.clear();
+        ra.pageRequested(50, 100);
+        assertEquals(ReadAhead.MIN_WINDOW, ra.getWindow());
+        for (int p = 3; p < 11; p++) {
+            assertTrue(prefetcher.issued.get(p).isCancelled());
+        }
+        // the page that broke the sequence is its first page
+        assertTrue(prefetcher.order.isEmpty());
+        ra.pageRequested(51, 100);
+        assertEquals(pages(52, 54), prefetcher.order);
+    }
+
+    /**
+     * No more than half the frames of the scan are read ahead, however large
+     * the window grows, and nothing past the end of the file
+     */
+    @Test public void cappedByFramesAndFile() {
+        Prefetcher prefetcher = new Prefetcher();
+        ReadAhead ra = readAhead(prefetcher, 6);
+        for (int p = 0; p < 6; p++) {
+            ra.pageRequested(p, 100);
+        }
+        assertEquals(ReadAhead.MAX_WINDOW, ra.getWindow());
+        assertEquals(pages(1, 9), prefetcher.order);
+
+        prefetcher = new Prefetcher();
+        ra = readAhead(prefetcher, 100);
+        ra.pageRequested(0, 2);
+        assertEquals(pages(1, 2), prefetcher.order);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 2000;
+    private static final int VALUES = 50;
+
+    private TransactionId tid;
+    private HeapFile table;
+    private SecondaryIndex index;
+
+    /**
+     * Create a table with ROWS random tuples, with VALUES distinct values
+     * in the second field, and an index over that field.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        index = TestUtil.createIndexedHeapFile(tid, 2, ROWS, VALUES, "c1");
+        table = (HeapFile) Database.getCatalog().getDatabaseFile(index.getTableId());
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // the tuples the index lists for a value, checking that each entry points to a tuple with that value
+    private int lookup(int value) throws Exception {
+        DbFileIterator it = index.getFile().indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(value)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            RecordId rid = index.getRecordId(it.next());
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+            Tuple t = null;
+            for (Iterator<Tuple> tuples = page.iterator(); tuples.hasNext(); ) {
+                Tuple candidate = tuples.next();
+                if (candidate.getRecordId().equals(rid)) {
+                    t = candidate;
+                }
+            }
+            assertNotNull(t);
+            assertEquals(new IntField(value), t.getField(1));
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private int scan(int value) throws Exception {
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            if (it.next().getField(1).equals(new IntField(value))) {
+                count++;
+            }
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * Unit test for Catalog.createIndex()
+     */
+    @Test public void createIndex() throws Exception {
+        assertEquals(1, Database.getCatalog().getIndexes(table.getId()).size());
+        int total = 0;
+        for (int value = 0; value < VALUES; value++) {
+            int count = lookup(value);
+            assertEquals(scan(value), count);
+            total += count;
+        }
+        assertEquals(ROWS, total);
+    }
+
+    /**
+     * Inserts and deletes through the BufferPool maintain the index
+     */
+    @Test public void insertAndDelete() throws Exception {
+        int before = lookup(VALUES);
+        Tuple t = Utility.getHeapTuple(new int[] {1, VALUES});
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] {2, VALUES}));
+        assertEquals(before + 2, lookup(VALUES));
+
+        Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(before + 1, lookup(VALUES));
+    }
+
+    /**
+     * Entries added by a transaction that aborts are gone afterwards
+     */
+    @Test public void abortRemovesEntries() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        TransactionId writer = new TransactionId();
+        Database.getBufferPool().insertTuple(writer, table.getId(), Utility.getHeapTuple(new int[] {1, VALUES}));
+        Database.getBufferPool().transactionComplete(writer, false);
+
+        tid = new TransactionId();
+        assertEquals(0, lookup(VALUES));
+        assertEquals(0, scan(VALUES));
+    }
+
+    /**
+     * Entries of an index with included fields hold those fields, also for
+     * tuples inserted after the index is built
+     */
+    @Test public void includedFields() throws Exception {
+        SecondaryIndex covering = Database.getCatalog().createIndex(tid, index.getName() + "_c0", table.getId(),
+                "c1", new String[] {"c0"});
+        covering.getFile().getFile().deleteOnExit();
+        assertTrue(covering.covers(java.util.Arrays.asList(0, 1)));
+        assertFalse(index.covers(java.util.Arrays.asList(0, 1)));
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] {-1, VALUES}));
+
+        DbFileIterator it = covering.getFile().iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = covering.getTuple(it.next());
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_ONLY);
+            Tuple stored = page.getTuple(t.getRecordId().getTupleNumber());
+            assertEquals(stored.getField(0), t.getField(0));
+            assertEquals(stored.getField(1), t.getField(1));
+            count++;
+        }
+        it.close();
+        assertEquals(ROWS + 1, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -5,6 +5,8 @@ import java.util.*;
 
 import static org.junit.Assert.*;
 
+import simpledb.systemtest.SystemTestUtil;
+
 public class TestUtil {
     /**
      * @return an IntField with value n
@@ -190,6 +192,29 @@ public class TestUtil {
         return buf;
     }
 
+    /**
+     * Create a HeapFile table of random tuples, with fields named c0, c1, ...,
+     * and a secondary index over one of its fields, deleting both files when
+     * the JVM exits.
+     *
+     * @param tid the transaction building the index
+     * @param columns the number of fields of the table
+     * @param rows the number of tuples of the table
+     * @param maxValue the bound of the values of the fields
+     * @param fieldName the name of the field to index
+     * @param includeNames the names of the fields the index includes
+     * @return the index, whose table is index.getTableId()
+     */
+    public static SecondaryIndex createIndexedHeapFile(TransactionId tid, int columns, int rows, int maxValue,
+            String fieldName, String... includeNames)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(columns, rows, maxValue, null, null, "c");
+        SecondaryIndex index = Database.getCatalog().createIndex(tid,
+                "idx" + Math.abs(table.getFile().getName().hashCode()), table.getId(), fieldName, includeNames);
+        index.getFile().getFile().deleteOnExit();
+        return index;
+    }
+
     /**
      * Stub DbFile class for unit testing.
      */
@@ -37,6 +37,36 @@ public class LogTest extends SimpleDbTestBase {
         insert.close();
     }
 
+    // bulk load count rows with first fields first, first + 1, ...
+    void bulkInsert(HeapFile hf, Transaction t, int first, int count)
+        throws DbException, TransactionAbortedException {
+        List<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = first; i < first + count; i++) {
+            Tuple value = new Tuple(Utility.getTupleDesc(2));
+            value.setField(0, new IntField(i));
+            value.setField(1, new IntField(0));
+            rows.add(value);
+        }
+        Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), rows), hf.getId(), true);
+        insert.open();
+        assertEquals(count, ((IntField)insert.next().getField(0)).getValue());
+        insert.close();
+    }
+
+    // count the rows of a table
+    int count(HeapFile hf, Transaction t)
+        throws DbException, TransactionAbortedException {
+        int count = 0;
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        return count;
+    }
+
     // check that the specified tuple is, or is not, present
     void look(HeapFile hf, Transaction t, int v1, boolean present)
         throws DbException, TransactionAbortedException {
@@ -190,6 +220,68 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // commit without writing pages (NO-FORCE), crash before the
+        // cleaner runs: recovery must redo the insert
+
+        Database.getBufferPool().setNoForce(true);
+        Database.getBufferPool().setCleaner(100, 60000);
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 3, 0);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestNoForceCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint between two NO-FORCE commits writes no pages, but
+        // keeps the log from the first unwritten update: recovery must
+        // redo both inserts
+
+        Database.getBufferPool().setNoForce(true);
+        Database.getBufferPool().setCleaner(100, 60000);
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 3, 0);
+        t.commit();
+
+        Database.getLogFile().logCheckpoint();
+        assertEquals(1, Database.getBufferPool().getNumUnwrittenPages());
+
+        t = new Transaction();
+        t.start();
+        insertRow(hf2, t, 4, 0);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf2, t, 4, true);
+        t.commit();
+    }
+
     @Test public void TestAbort()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -379,6 +471,64 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestBulkLoadAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 bulk loads rows and aborts
+        // the rows should be gone, and the table usable
+
+        Transaction t = new Transaction();
+        t.start();
+        bulkInsert(hf1, t, 1000, 2000);
+        assertEquals(2002, count(hf1, t));
+        t.abort();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(2, count(hf1, t));
+        look(hf1, t, 1000, false);
+        insertRow(hf1, t, 3, 0);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(3, count(hf1, t));
+        t.commit();
+    }
+
+    @Test public void TestBulkLoadCommitOpenCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 bulk loads rows and commits
+        // T2 bulk loads rows but does not commit
+        // crash
+        // only T1 rows should be there
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        bulkInsert(hf1, t1, 1000, 2000);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        bulkInsert(hf2, t2, 5000, 2000);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(2002, count(hf1, t));
+        look(hf1, t, 2999, true);
+        assertEquals(0, count(hf2, t));
+        t.commit();
+    }
+
     @Test public void TestOpenCommitCheckpointOpenCrash()
             throws IOException, DbException, TransactionAbortedException {
         setup();
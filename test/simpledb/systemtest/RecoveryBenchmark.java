@@ -0,0 +1,116 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how long LogFile.recover() takes after a crash, in a crash
+ * scenario like those of LogTest but with a long log: many NO-FORCE commits
+ * whose pages were never written, and a transaction still running at the
+ * crash.  Recovery runs once on a single thread and once on one thread per
+ * processor, at least two.
+ *
+ * <p> Not part of the system test suite; run it with
+ * ant runsystest -Dtest=RecoveryBenchmark
+ */
+public class RecoveryBenchmark extends SimpleDbTestBase {
+    private static final int TABLES = 8;
+    private static final int TRANSACTIONS = 2000;
+    private static final int ROWS_PER_TRANSACTION = 20;
+
+    private final List<File> files = new ArrayList<File>();
+    private final List<HeapFile> tables = new ArrayList<HeapFile>();
+
+    private void insertRows(HeapFile hf, Transaction t, int first, int count)
+            throws DbException, TransactionAbortedException {
+        List<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = first; i < first + count; i++) {
+            Tuple row = new Tuple(Utility.getTupleDesc(2));
+            row.setField(0, new IntField(i));
+            row.setField(1, new IntField(0));
+            rows.add(row);
+        }
+        Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), rows), hf.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+    }
+
+    // commit TRANSACTIONS transactions without writing their pages, leave
+    // one running after writing its pages, and crash
+    private void crash() throws IOException, DbException, TransactionAbortedException {
+        Database.reset();
+        files.clear();
+        tables.clear();
+        for (int i = 0; i < TABLES; i++) {
+            File f = File.createTempFile("recovery", ".db");
+            f.deleteOnExit();
+            files.add(f);
+            tables.add(Utility.createEmptyHeapFile(f.getAbsolutePath(), 2));
+        }
+        Database.getBufferPool().setNoForce(true);
+        Database.getBufferPool().setCleaner(Integer.MAX_VALUE, 60000);
+
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insertRows(tables.get(i % TABLES), t, i * ROWS_PER_TRANSACTION, ROWS_PER_TRANSACTION);
+            t.commit();
+        }
+        Transaction loser = new Transaction();
+        loser.start();
+        insertRows(tables.get(0), loser, -ROWS_PER_TRANSACTION, ROWS_PER_TRANSACTION);
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        tables.clear();
+        for (File f : files)
+            tables.add(Utility.openHeapFile(2, f));
+    }
+
+    private long recover(int threads) throws Exception {
+        crash();
+        Database.getLogFile().setRecoveryThreads(threads);
+        long start = System.nanoTime();
+        Database.getLogFile().recover();
+        long nanos = System.nanoTime() - start;
+
+        Transaction t = new Transaction();
+        t.start();
+        int rows = 0;
+        for (HeapFile hf : tables) {
+            SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+            scan.open();
+            while (scan.hasNext()) {
+                assertTrue(((IntField) scan.next().getField(0)).getValue() >= 0);
+                rows++;
+            }
+            scan.close();
+        }
+        t.commit();
+        assertEquals(TRANSACTIONS * ROWS_PER_TRANSACTION, rows);
+        return nanos;
+    }
+
+    @Test public void recoveryTime() throws Exception {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        recover(threads); // warm up
+        long serial = recover(1);
+        long parallel = recover(threads);
+        System.out.printf("recovery of %d transactions: %.1f ms on 1 thread, %.1f ms on %d threads%n",
+                TRANSACTIONS, serial / 1e6, parallel / 1e6, threads);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryBenchmark.class);
+    }
+}